@@ -25,30 +25,66 @@ import android.graphics.BitmapFactory
 import android.graphics.Canvas
 import android.graphics.Color
 import android.graphics.Paint
+import android.graphics.PorterDuff
 import android.graphics.Rect
 import android.media.MediaPlayer
+import android.net.Uri
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import android.util.Log
 import android.view.Surface
 import android.widget.Toast
+import com.dmitrybrant.photo360.rendering.ChunkedDownload
+import com.dmitrybrant.photo360.rendering.DownloadCache
+import com.dmitrybrant.photo360.rendering.FisheyeLens
 import com.dmitrybrant.photo360.rendering.Mesh
+import com.dmitrybrant.photo360.rendering.MeshCache
+import com.dmitrybrant.photo360.rendering.MetadataIndex
 import com.dmitrybrant.photo360.rendering.PhotoSphereTools
+import com.dmitrybrant.photo360.rendering.PhotoSphereTools.JpegMetadata
 import com.dmitrybrant.photo360.rendering.PhotoSphereTools.PhotoSphereData
+import com.dmitrybrant.photo360.rendering.PhotoSphereTools.ScannedStream
 import com.dmitrybrant.photo360.rendering.SceneRenderer
-import com.dmitrybrant.photo360.rendering.Utils
+import com.dmitrybrant.photo360.rendering.TilePlanner
+import okhttp3.CacheControl
+import okhttp3.Headers
 import okhttp3.OkHttpClient
+import okhttp3.Protocol
 import okhttp3.Request
 import okhttp3.Response
-import java.io.ByteArrayInputStream
+import okio.blackholeSink
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.IOException
 import java.io.InputStream
+import java.net.HttpURLConnection.HTTP_OK
+import java.net.HttpURLConnection.HTTP_PARTIAL
 import java.net.URLConnection
 import java.security.InvalidParameterException
 import androidx.core.net.toUri
 import kotlinx.coroutines.CoroutineExceptionHandler
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.asExecutor
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.runInterruptible
 import kotlinx.coroutines.withContext
+import kotlin.math.ceil
+import kotlin.math.max
+import kotlin.math.min
 
-class MediaLoader(private val context: Context) {
+/**
+ * Loads media from an Intent, and displays it once the GL scene is ready.
+ *
+ * @param rendersStereo whether the media is displayed separately to each eye, as in VR. Stereo
+ * images that come as separate pictures per eye (i.e. MPO) only have their right eye decoded if so.
+ */
+class MediaLoader(private val context: Context, private val rendersStereo: Boolean = false) {
     // This can be replaced by any media player that renders to a Surface. In a real app, this
     // media player would be separated from the rendering code. It is left in this class for
     // simplicity.
@@ -57,7 +93,17 @@ class MediaLoader(private val context: Context) {
 
     // This sample also supports loading images.
     private var mediaImage: Bitmap? = null
+    // Only present for MPO stereo images, and only when rendering in stereo.
+    private var rightEyeImage: Bitmap? = null
     private var photoSphereData: PhotoSphereData? = null
+    // Embedded preview that is displayed while the full image is still loading.
+    private var previewImage: Bitmap? = null
+    // What is currently drawn on the display surface, one of the DISPLAY_* values.
+    private var displayStage = DISPLAY_NONE
+    // Image dimensions from the header, and the number of eyes that will have their own image.
+    private var expectedImageWidth = 0
+    private var expectedImageHeight = 0
+    private var eyeCount = 1
 
     // Due to the slow loading media times, it's possible to tear down the app before mediaPlayer is
     // ready. In that case, abandon all the pending work.
@@ -66,6 +112,14 @@ class MediaLoader(private val context: Context) {
 
     // The type of mesh created depends on the type of media.
     private var mesh: Mesh? = null
+    // Whether the mesh fits the dimensions and photosphere data of the image, e.g. it's only the
+    // part of the sphere that a cropped panorama covers.
+    private var isImageMeshReady = false
+    // The MEDIA_* format of the mesh.
+    private var mediaFormat = Mesh.MEDIA_MONOSCOPIC
+
+    // The LAYOUT_* of cubemap media, or NO_CUBEMAP for equirectangular and dual fisheye media.
+    private var cubemapLayout = NO_CUBEMAP
 
     // The sceneRenderer is set after GL initialization is complete.
     private var sceneRenderer: SceneRenderer? = null
@@ -73,6 +127,14 @@ class MediaLoader(private val context: Context) {
     // The displaySurface is configured after both GL initialization and media loading.
     private var displaySurface: Surface? = null
 
+    // Large remote images that were downloaded over several connections.
+    private val downloadCache = DownloadCache(File(context.cacheDir, DOWNLOAD_DIRECTORY), DOWNLOAD_CACHE_BYTES)
+
+    init {
+        // Keep generated meshes across runs, so that each one is only generated once.
+        MeshCache.getInstance().setDirectory(File(context.cacheDir, MESH_DIRECTORY), MESH_CACHE_BYTES)
+    }
+
     fun loadFromIntent(intent: Intent, coroutineScope: CoroutineScope, uiView: VideoUiView) {
         coroutineScope.launch (CoroutineExceptionHandler { _, throwable ->
             throwable.printStackTrace()
@@ -86,49 +148,41 @@ class MediaLoader(private val context: Context) {
 
             val uri = intent.data ?: defaultUrl.toUri()
             var stereoFormat = intent.getIntExtra(MEDIA_FORMAT_KEY, Mesh.MEDIA_MONOSCOPIC)
-            if (stereoFormat != Mesh.MEDIA_STEREO_LEFT_RIGHT && stereoFormat != Mesh.MEDIA_STEREO_TOP_BOTTOM) {
+            if (stereoFormat != Mesh.MEDIA_STEREO_LEFT_RIGHT && stereoFormat != Mesh.MEDIA_STEREO_TOP_BOTTOM
+                && stereoFormat != Mesh.MEDIA_DUAL_FISHEYE) {
                 stereoFormat = Mesh.MEDIA_MONOSCOPIC
             }
 
-            mesh = Mesh.createUvSphere(
-                SPHERE_RADIUS_METERS.toFloat(),
-                DEFAULT_SPHERE_ROWS,
-                DEFAULT_SPHERE_COLUMNS,
-                DEFAULT_SPHERE_VERTICAL_DEGREES.toFloat(),
-                DEFAULT_SPHERE_HORIZONTAL_DEGREES.toFloat(),
-                stereoFormat
-            )
+            var layout = intent.getIntExtra(CUBEMAP_LAYOUT_KEY, NO_CUBEMAP)
+            if ((layout != Mesh.LAYOUT_CUBEMAP_3X2 && layout != Mesh.LAYOUT_CUBEMAP_6X1 && layout != Mesh.LAYOUT_EAC_3X2)
+                || stereoFormat == Mesh.MEDIA_DUAL_FISHEYE) {
+                layout = NO_CUBEMAP
+            }
 
-            var stream: InputStream? = null
-            try {
-                val type = URLConnection.guessContentTypeFromName(uri.path)
-                if (type == null) {
-                    throw InvalidParameterException("Unknown file type: $uri")
-                } else if (type.startsWith("image")) {
-                    // TODO: figure out how to NOT need to read the whole file at once.
-                    withContext(Dispatchers.IO) {
-                        var response: Response? = null
-                        if ("http" == uri.scheme || "https" == uri.scheme) {
-                            val client = OkHttpClient()
-                            val request = Request.Builder().url(uri.toString()).build()
-                            response = client.newCall(request).execute()
-                        }
-                        val bytes = response!!.body.bytes()
-                        //stream = response.body().byteStream();
-                        stream = ByteArrayInputStream(bytes)
-
-                        mediaImage = BitmapFactory.decodeStream(stream)
-                        photoSphereData = PhotoSphereTools.getPhotoSphereData(bytes)
-                    }
-                } else if (type.startsWith("video")) {
-                    val mp = MediaPlayer.create(context, uri)
-                    synchronized(this@MediaLoader) {
-                        // This needs to be synchronized with the methods that could clear mediaPlayer.
-                        mediaPlayer = mp
+            mediaFormat = stereoFormat
+            cubemapLayout = layout
+            // The mesh may be read from or written to a file by MeshCache.
+            mesh = withContext(Dispatchers.IO) {
+                if (layout != NO_CUBEMAP) createCubemapMesh(layout, stereoFormat) else createSphereMesh(stereoFormat)
+            }
+
+            val type = URLConnection.guessContentTypeFromName(uri.path) ?: context.contentResolver.getType(uri)
+            if (type == null) {
+                throw InvalidParameterException("Unknown file type: $uri")
+            } else if (type.startsWith("image")) {
+                withContext(Dispatchers.IO) {
+                    if ("http" == uri.scheme || "https" == uri.scheme) {
+                        loadRemoteImage(SharedHttpClient.get(context), uri, coroutineScope)
+                    } else {
+                        loadLocalImage(uri)
                     }
                 }
-            } finally {
-                Utils.closeSilently(stream)
+            } else if (type.startsWith("video")) {
+                val mp = MediaPlayer.create(context, uri)
+                synchronized(this@MediaLoader) {
+                    // This needs to be synchronized with the methods that could clear mediaPlayer.
+                    mediaPlayer = mp
+                }
             }
 
             displayWhenReady()
@@ -144,6 +198,514 @@ class MediaLoader(private val context: Context) {
         }
     }
 
+    /**
+     * Loads a remote image. An image that is in the HTTP cache is simply requested as a whole, which
+     * costs nothing if it's fresh, or a conditional request if not. Otherwise the start of the image
+     * is fetched with a range request first, whose response tells how large the image is and whether
+     * the server serves it in ranges, so that a large image can be downloaded over several
+     * connections without first starting a body that would only be thrown away. The header in it
+     * also sets up the display, while the body of a smaller image streams into the decoder.
+     *
+     * @param drainScope Scope of the job that reads the rest of a response after the image is
+     * displayed.
+     */
+    private suspend fun loadRemoteImage(client: OkHttpClient, uri: Uri, drainScope: CoroutineScope) {
+        val request = Request.Builder().url(uri.toString()).build()
+        if (isCached(client, request)) {
+            // Range responses are never cached, so a range request would always go to the network.
+            loadResponse(client.newCall(request).execute(), uri, drainScope)
+            return
+        }
+        val headerCall = client.newCall(request.newBuilder()
+            .header("Range", "bytes=0-${HEADER_RANGE_BYTES - 1}").build())
+        val headerResponse = try {
+            headerCall.execute()
+        } catch (e: IOException) {
+            Log.d(TAG, "Header request failed.", e)
+            null
+        }
+        if (headerResponse != null && headerResponse.code == HTTP_OK) {
+            // A server that doesn't support ranges sends the whole image, which is all that's needed.
+            loadResponse(headerResponse, uri, drainScope)
+            return
+        }
+        if (headerResponse == null || headerResponse.code != HTTP_PARTIAL) {
+            headerResponse?.close()
+            loadResponse(client.newCall(request).execute(), uri, drainScope)
+            return
+        }
+        val validator = getValidator(headerResponse.headers)
+        val length = getTotalLength(headerResponse)
+        coroutineScope {
+            launch { scanHeader(headerResponse) }
+            try {
+                if (validator != null && length != null && canDownloadInParallel(validator, length)) {
+                    // Large images are downloaded over several connections into a file instead.
+                    lookUpMetadata(uri, validator)
+                    loadLocalImage(Uri.fromFile(downloadInParallel(client, uri, validator, length)), uri, validator)
+                } else {
+                    loadResponse(client.newCall(request).execute(), uri, drainScope)
+                }
+            } finally {
+                // Whatever is left of the header is of no use once the image is decoded.
+                headerCall.cancel()
+            }
+        }
+    }
+
+    /**
+     * Loads an image from the response to a request for the whole of it. Only the header segments
+     * are buffered while scanning for metadata, and the rest of the body is streamed straight into
+     * the decoder.
+     */
+    private suspend fun loadResponse(response: Response, uri: Uri, drainScope: CoroutineScope) {
+        var isDraining = false
+        try {
+            // The response headers are enough to look up the metadata from a previous visit, and to
+            // get the display ready before the body arrives.
+            val validator = getValidator(response.headers)
+            if (validator != null) {
+                lookUpMetadata(uri, validator)
+            }
+            val scanned = PhotoSphereTools.scanStream(response.body.byteStream())
+            if (validator != null) {
+                storeMetadata(uri, validator, scanned.metadata)
+            }
+            decodeImage(scanned)
+            // The decoder stops at the end of the image that it needs, but the HTTP cache only keeps
+            // responses that are read to the end, so the rest of a body from the network is read as
+            // well. That can be a lot, e.g. the right eye of an MPO that is viewed in 2D, so it's only
+            // read once the image is displayed, in a job of its own.
+            if (validator != null && response.networkResponse?.code == HTTP_OK) {
+                withContext(Dispatchers.Main) {
+                    displayWhenReady()
+                }
+                // Started atomically, so that the job closes the response even if it's cancelled.
+                drainScope.launch(Dispatchers.IO, CoroutineStart.ATOMIC) { drain(response) }
+                isDraining = true
+            }
+        } finally {
+            if (!isDraining) {
+                response.close()
+            }
+        }
+    }
+
+    /** Reads the rest of a response, so that the HTTP cache keeps it, and closes it. */
+    private fun drain(response: Response) {
+        try {
+            response.use {
+                it.body.source().readAll(blackholeSink())
+            }
+        } catch (e: IOException) {
+            Log.d(TAG, "Failed to read the rest of the response.", e)
+        }
+    }
+
+    /**
+     * Loads an image from a file:// or content:// Uri. The metadata is read through a memory-mapped
+     * view of the file header, and the image is decoded directly from the file descriptor.
+     *
+     * @param remoteUri The Uri that a downloaded file came from, along with the validator of the HTTP
+     * response, which the metadata is indexed under instead, since the file may be evicted from the
+     * download cache. The metadata is expected to be looked up by those already.
+     */
+    private suspend fun loadLocalImage(uri: Uri, remoteUri: Uri? = null, remoteValidator: String? = null) {
+        val pfd = context.contentResolver.openFileDescriptor(uri, "r")
+            ?: throw FileNotFoundException(uri.toString())
+        pfd.use {
+            val indexUri = remoteUri ?: uri
+            val validator = remoteValidator ?: try {
+                val stat = Os.fstat(pfd.fileDescriptor)
+                // A pipe has no modification time or size that would tell its content apart.
+                if (OsConstants.S_ISREG(stat.st_mode)) "${stat.st_mtime}:${stat.st_size}" else null
+            } catch (e: ErrnoException) {
+                null
+            }
+            if (validator != null && remoteUri == null) {
+                lookUpMetadata(uri, validator)
+            }
+            val channel = FileInputStream(pfd.fileDescriptor).channel
+            val metadata = try {
+                PhotoSphereTools.getMetadata(channel)
+            } catch (e: IOException) {
+                // Not every provider gives us a seekable file, e.g. if the content is piped.
+                null
+            }
+            if (metadata != null) {
+                if (validator != null) {
+                    storeMetadata(indexUri, validator, metadata)
+                }
+                onHeaderScanned(metadata, PhotoSphereTools.readPreview(channel, metadata))
+                val leftEye = metadata.getStereoImage(0)
+                val rightEye = metadata.getStereoImage(1)
+                if (leftEye != null && rightEye != null) {
+                    val options = getDecodeOptions(metadata.imageWidth, metadata.imageHeight)
+                    val left = BitmapFactory.decodeStream(PhotoSphereTools.openImage(channel, leftEye), null, options)
+                    val right = if (eyeCount > 1) BitmapFactory.decodeStream(PhotoSphereTools.openImage(channel, rightEye), null, options) else null
+                    setImages(left, right)
+                } else if (isLargerThanSurface(metadata)) {
+                    val (eyeWidth, eyeHeight) = getEyeSize(metadata.imageWidth, metadata.imageHeight)
+                    setImages(TiledImageDecoder.decode(pfd.fileDescriptor, eyeWidth, eyeHeight), null)
+                } else {
+                    var options = getDecodeOptions(metadata.imageWidth, metadata.imageHeight)
+                    if (metadata.imageWidth <= 0 || metadata.imageHeight <= 0) {
+                        // Not a JPEG, so the dimensions come from a first pass over the image's own
+                        // header. This leaves the position of the descriptor where it was.
+                        val bounds = BitmapFactory.Options()
+                        bounds.inJustDecodeBounds = true
+                        BitmapFactory.decodeFileDescriptor(pfd.fileDescriptor, null, bounds)
+                        options = getDecodeOptions(bounds.outWidth, bounds.outHeight)
+                    }
+                    setImages(BitmapFactory.decodeFileDescriptor(pfd.fileDescriptor, null, options), null)
+                }
+                return
+            }
+        }
+        context.contentResolver.openInputStream(uri)?.use {
+            decodeImage(PhotoSphereTools.scanStream(it))
+        }
+    }
+
+    /**
+     * Decodes an image from a scanned stream. If the image embeds other images after it (MPF), only
+     * the ones that are actually needed are read from the stream.
+     */
+    private suspend fun decodeImage(scanned: ScannedStream) {
+        val metadata = scanned.metadata
+        onHeaderScanned(metadata, scanned.thumbnail)
+        val leftEye = metadata.getStereoImage(0)
+        val rightEye = metadata.getStereoImage(1)
+        if (leftEye != null && rightEye != null) {
+            // Stereo MPO: the right eye is only decoded if it will actually be shown.
+            val options = getDecodeOptions(metadata.imageWidth, metadata.imageHeight)
+            val left = BitmapFactory.decodeStream(scanned.openImage(leftEye), null, options)
+            val right = if (eyeCount > 1) BitmapFactory.decodeStream(scanned.openImage(rightEye), null, options) else null
+            setImages(left, right)
+        } else if (metadata.primaryImageLength > 0) {
+            // Don't bother reading the other images that come after the primary one.
+            setImages(decodePrimaryImage(metadata, scanned.openImage(metadata.mpfImages!![0])), null)
+        } else {
+            setImages(decodePrimaryImage(metadata, scanned.imageStream), null)
+        }
+    }
+
+    private fun decodePrimaryImage(metadata: JpegMetadata, stream: InputStream): Bitmap? {
+        if (isLargerThanSurface(metadata)) {
+            val (eyeWidth, eyeHeight) = getEyeSize(metadata.imageWidth, metadata.imageHeight)
+            return TiledImageDecoder.decode(stream, eyeWidth, eyeHeight)
+        }
+        if (metadata.imageWidth > 0 && metadata.imageHeight > 0) {
+            return BitmapFactory.decodeStream(stream, null, getDecodeOptions(metadata.imageWidth, metadata.imageHeight))
+        }
+        // Not a JPEG, so the dimensions come from a first pass over the image's own header, which
+        // is then read again by the actual decode.
+        val buffered = BufferedInputStream(stream, BOUNDS_BUFFER_SIZE)
+        buffered.mark(BOUNDS_MARK_LIMIT)
+        val bounds = BitmapFactory.Options()
+        bounds.inJustDecodeBounds = true
+        BitmapFactory.decodeStream(buffered, null, bounds)
+        buffered.reset()
+        return BitmapFactory.decodeStream(buffered, null, getDecodeOptions(bounds.outWidth, bounds.outHeight))
+    }
+
+    /**
+     * Returns options that decode an image of the given size straight at the size that it's drawn
+     * at on the display surface: subsampled by the largest power of two that keeps it at least as
+     * large, and scaled the rest of the way by the decoder, through the densities. Decoding at full
+     * size and letting drawBitmap scale it down would take several times the memory and time.
+     */
+    private fun getDecodeOptions(imageWidth: Int, imageHeight: Int): BitmapFactory.Options {
+        val options = BitmapFactory.Options()
+        if (imageWidth <= 0 || imageHeight <= 0) {
+            return options
+        }
+        val eyeWidth = getEyeSize(imageWidth, imageHeight)[0]
+        if (eyeWidth <= 0 || eyeWidth >= imageWidth) {
+            return options
+        }
+        options.inSampleSize = TilePlanner.getSampleSize(imageWidth, eyeWidth)
+        val sampledWidth = imageWidth / options.inSampleSize
+        if (sampledWidth > eyeWidth) {
+            options.inScaled = true
+            options.inDensity = sampledWidth
+            options.inTargetDensity = eyeWidth
+        }
+        return options
+    }
+
+    /**
+     * Returns the size of the part of the display surface that the image of each eye is drawn into.
+     * Images that would make the surface wider than it can be are scaled down to fit.
+     */
+    private fun getEyeSize(imageWidth: Int, imageHeight: Int): IntArray {
+        val scale = max(1f, imageWidth.toFloat() * eyeCount / MAX_SURFACE_WIDTH_PX)
+        return intArrayOf(max(1, (imageWidth / scale).toInt()), max(1, (imageHeight / scale).toInt()))
+    }
+
+    /**
+     * Whether the header says that the image is too large for the display surface, in which case
+     * it's decoded by tiles, and scaled down as it's decoded. Only the dimensions of JPEGs are known
+     * up front, which is also what region decoding works best with.
+     */
+    private fun isLargerThanSurface(metadata: JpegMetadata): Boolean {
+        return metadata.imageWidth > MAX_SURFACE_WIDTH_PX || metadata.imageHeight > MAX_SURFACE_WIDTH_PX
+    }
+
+    /**
+     * Looks up the metadata of the image from a previous load. If the image hasn't changed since,
+     * the display surface and mesh are set up right away, before any of the image is read.
+     */
+    private suspend fun lookUpMetadata(uri: Uri, validator: String) {
+        val entry = PanoramaLibrary.getMetadataIndex(context)?.get(getIndexKey(uri), validator) ?: return
+        applyMetadata(entry.photoSphereData, entry.imageWidth, entry.imageHeight, entry.isStereo)
+        prepareImageMesh()
+        if (expectedImageWidth > 0 && expectedImageHeight > 0) {
+            withContext(Dispatchers.Main) {
+                displayWhenReady()
+            }
+        }
+    }
+
+    private fun storeMetadata(uri: Uri, validator: String, metadata: JpegMetadata) {
+        try {
+            PanoramaLibrary.getMetadataIndex(context)?.put(MetadataIndex.Entry(getIndexKey(uri), validator, metadata))
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to update metadata index.", e)
+        }
+    }
+
+    /**
+     * Returns the key of an image in the metadata index. Local files are keyed by the canonical form
+     * of their file:// Uri, the same as in PanoramaScanner, however the Uri that was sent to us
+     * happens to be encoded.
+     */
+    private fun getIndexKey(uri: Uri): String {
+        val path = uri.path
+        return if ("file" == uri.scheme && path != null) Uri.fromFile(File(path)).toString() else uri.toString()
+    }
+
+    private fun applyMetadata(photoSphereData: PhotoSphereData?, imageWidth: Int, imageHeight: Int, isStereo: Boolean) {
+        // The images of the two eyes in the metadata are equirectangular panoramas. Their mesh is
+        // created before taking the lock, which displayWhenReady waits for on the main thread.
+        val stereoMesh = if (rendersStereo && isStereo && eyeCount != 2) createSphereMesh(Mesh.MEDIA_STEREO_LEFT_RIGHT) else null
+        synchronized(this) {
+            this.photoSphereData = photoSphereData
+            expectedImageWidth = imageWidth
+            expectedImageHeight = imageHeight
+            if (stereoMesh != null && eyeCount != 2) {
+                eyeCount = 2
+                mediaFormat = Mesh.MEDIA_STEREO_LEFT_RIGHT
+                cubemapLayout = NO_CUBEMAP
+                mesh = stereoMesh
+                isImageMeshReady = false
+            }
+        }
+    }
+
+    /**
+     * Sets up the mesh for the image once its dimensions are known, from the header or else from the
+     * decoded image. A cropped panorama is displayed on only the part of the sphere that it covers,
+     * whose mesh may be read from or written to a file by MeshCache, so this is called on a
+     * background thread, and displayWhenReady waits for it.
+     */
+    private fun prepareImageMesh() {
+        val (data, format) = synchronized(this) {
+            if (isImageMeshReady || displaySurface != null) {
+                return
+            }
+            // Large images are decoded at a reduced size, so the header has the true dimensions.
+            val hasHeaderSize = expectedImageWidth > 0 && expectedImageHeight > 0
+            val imageWidth = if (hasHeaderSize) expectedImageWidth else mediaImage?.getWidth() ?: 0
+            val imageHeight = if (hasHeaderSize) expectedImageHeight else mediaImage?.getHeight() ?: 0
+            if (imageWidth <= 0 || imageHeight <= 0) {
+                return
+            }
+
+            // Dual fisheye and cubemap frames are never a cropped equirectangular panorama.
+            val isEquirectangular = mediaFormat != Mesh.MEDIA_DUAL_FISHEYE && cubemapLayout == NO_CUBEMAP
+            if (isEquirectangular && photoSphereData == null && (imageHeight * 2 != imageWidth)) {
+                // If the image does not have an exact 2:1 aspect ratio, it likely means that it's a cropped
+                // panorama, but unfortunately it's lacking the precise photosphere data. In this case,
+                // let's build a fake photosphere object to make up for it, and place the image in the
+                // center of it.
+                photoSphereData = PhotoSphereData()
+                photoSphereData!!.croppedAreaImageWidthPixels = imageWidth
+                photoSphereData!!.croppedAreaImageHeightPixels = imageHeight
+                if (imageWidth > imageHeight * 2) {
+                    photoSphereData!!.fullPanoWidthPixels = imageWidth
+                    photoSphereData!!.fullPanoHeightPixels =
+                        photoSphereData!!.fullPanoWidthPixels / 2
+                    photoSphereData!!.croppedAreaLeftPixels = 0
+                    photoSphereData!!.croppedAreaTopPixels =
+                        photoSphereData!!.fullPanoHeightPixels / 2 - imageHeight / 2
+                } else {
+                    photoSphereData!!.fullPanoHeightPixels = imageHeight
+                    photoSphereData!!.fullPanoWidthPixels =
+                        photoSphereData!!.fullPanoHeightPixels * 2
+                    photoSphereData!!.croppedAreaTopPixels = 0
+                    photoSphereData!!.croppedAreaLeftPixels =
+                        photoSphereData!!.fullPanoWidthPixels / 2 - imageWidth / 2
+                }
+            }
+            val data = photoSphereData
+            if (!isEquirectangular || data == null) {
+                // The whole sphere or cubemap that was created up front.
+                isImageMeshReady = true
+                return
+            }
+            Pair(data, mediaFormat)
+        }
+        val sectionMesh = createSectionMesh(data, format)
+        synchronized(this) {
+            // The other scan of the header of a remote image may have switched to stereo meanwhile.
+            if (!isImageMeshReady && displaySurface == null && photoSphereData === data && mediaFormat == format) {
+                mesh = sectionMesh
+                isImageMeshReady = true
+            }
+        }
+    }
+
+    /**
+     * Whether the HTTP cache has a response to the request, fresh or not, which is checked without
+     * going to the network.
+     */
+    private fun isCached(client: OkHttpClient, request: Request): Boolean {
+        return try {
+            client.newCall(request.newBuilder().cacheControl(CacheControl.FORCE_CACHE).build()).execute().use {
+                // Without a cached response, the call fails with 504 Unsatisfiable Request.
+                it.isSuccessful
+            }
+        } catch (e: IOException) {
+            false
+        }
+    }
+
+    /**
+     * Sets up the display from the header of a remote image in the response to a range request, in
+     * parallel with the request for the whole image. Whichever of the two gets through the header
+     * first sets up the display. Any failure here is ignored, since the body has the same header,
+     * e.g. if the call is cancelled because the body was quicker.
+     */
+    private suspend fun scanHeader(response: Response) {
+        try {
+            response.use {
+                val scanned = PhotoSphereTools.scanStream(it.body.byteStream())
+                // Without the frame header, the range was too short for the metadata segments.
+                if (scanned.metadata.imageWidth > 0 && scanned.metadata.imageHeight > 0) {
+                    onHeaderScanned(scanned.metadata, scanned.thumbnail)
+                }
+            }
+        } catch (e: IOException) {
+            Log.d(TAG, "Header request failed.", e)
+        }
+    }
+
+    /** Returns what tells the versions of a remote image apart, or null if the server doesn't say. */
+    private fun getValidator(headers: Headers): String? {
+        return headers["ETag"] ?: headers["Last-Modified"]
+    }
+
+    /**
+     * Returns the length of the whole image from the Content-Range of a partial response, or null if
+     * the server doesn't say.
+     */
+    private fun getTotalLength(response: Response): Long? {
+        return response.header("Content-Range")?.substringAfterLast('/', "")?.toLongOrNull()
+    }
+
+    /**
+     * Whether an image that the server serves in ranges is worth downloading over several
+     * connections, i.e. it's large, and its validator is one that If-Range works with.
+     */
+    private fun canDownloadInParallel(validator: String, length: Long): Boolean {
+        // If-Range only works with strong validators, so parts of different versions could be mixed.
+        return !validator.startsWith("W/") && length >= PARALLEL_DOWNLOAD_MIN_BYTES
+    }
+
+    /**
+     * Downloads a large remote image over several connections at once, into a file in the download
+     * cache, and returns the file. These images never go through the HTTP cache, so the download
+     * cache keeps the completed ones instead, and opening the same version of the image again just
+     * returns the file. A download that was interrupted, e.g. by leaving the activity, is resumed if
+     * the image is opened again and hasn't changed.
+     */
+    private suspend fun downloadInParallel(client: OkHttpClient, uri: Uri, validator: String, length: Long): File {
+        downloadCache.get(uri.toString(), validator, length)?.let { return it }
+        // Each range request needs a connection of its own, rather than a stream of a shared HTTP/2
+        // connection, since the point is to get around the limit on each connection.
+        val rangeClient = client.newBuilder().protocols(listOf(Protocol.HTTP_1_1)).build()
+        val download = downloadCache.open(uri.toString(), validator, length, ChunkedDownload.DEFAULT_CHUNK_SIZE)
+        runInterruptible {
+            download.download({ start, end -> openRange(rangeClient, uri, validator, start, end) },
+                PARALLEL_DOWNLOAD_CONNECTIONS, Dispatchers.IO.asExecutor())
+        }
+        return download.file
+    }
+
+    private fun openRange(client: OkHttpClient, uri: Uri, validator: String, start: Long, end: Long): InputStream {
+        val request = Request.Builder().url(uri.toString())
+            .header("Range", "bytes=$start-${end - 1}")
+            // If the image has changed since, the server sends all of it instead, which is rejected.
+            .header("If-Range", validator)
+            .build()
+        val response = client.newCall(request).execute()
+        val contentRange = response.header("Content-Range")
+        if (response.code != HTTP_PARTIAL || contentRange == null || !contentRange.startsWith("bytes $start-")) {
+            response.close()
+            throw IOException("Range $start-$end of $uri not served: ${response.code}")
+        }
+        return response.body.byteStream()
+    }
+
+    /**
+     * Called once the image header is parsed, before the image itself is decoded. The display is set
+     * up right away from the dimensions in the header, and if the header contains a preview image,
+     * it's displayed in the same layout as the full image will be, so that there's something to look
+     * at while the rest of the image loads.
+     */
+    private suspend fun onHeaderScanned(metadata: JpegMetadata, preview: ByteArray?) {
+        applyMetadata(metadata.photoSphereData, metadata.imageWidth, metadata.imageHeight, metadata.isStereo)
+        prepareImageMesh()
+        if (expectedImageWidth <= 0 || expectedImageHeight <= 0) {
+            return
+        }
+        // The header of a remote image is scanned twice, and the other scan may already have a preview.
+        val bitmap = if (preview != null && needsPreview()) BitmapFactory.decodeByteArray(preview, 0, preview.size) else null
+        withContext(Dispatchers.Main) {
+            if (bitmap != null) {
+                // Both scans can get past the check above, so only the first one to get here keeps its
+                // preview, under the same lock as displayWhenReady, which also clears the preview.
+                val isKept = synchronized(this@MediaLoader) {
+                    needsPreview().also { if (it) previewImage = bitmap }
+                }
+                if (!isKept) {
+                    bitmap.recycle()
+                }
+            }
+            // Without a preview, this still creates the display surface on the mesh of the image,
+            // so that only the drawing of the image is left once it's decoded.
+            displayWhenReady()
+        }
+    }
+
+    @Synchronized
+    private fun needsPreview(): Boolean {
+        return previewImage == null && mediaImage == null && displayStage < DISPLAY_PREVIEW
+    }
+
+    /**
+     * Sets the decoded images for both eyes at once, so that they're never displayed separately.
+     */
+    private fun setImages(left: Bitmap?, right: Bitmap?) {
+        synchronized(this) {
+            rightEyeImage = right
+            mediaImage = left
+        }
+        // Without dimensions in the header, the mesh is only known from the decoded image.
+        prepareImageMesh()
+    }
+
     /**
      * Notifies MediaLoader that GL components have initialized.
      */
@@ -152,6 +714,7 @@ class MediaLoader(private val context: Context) {
         displayWhenReady()
     }
 
+    @Synchronized
     private fun displayWhenReady() {
         if (isDestroyed) {
             // This only happens when the Activity is destroyed immediately after creation.
@@ -162,13 +725,24 @@ class MediaLoader(private val context: Context) {
             return
         }
 
-        if (displaySurface != null) {
+        // Images are displayed in stages, as more of them becomes available: first an empty surface
+        // once the dimensions are known, then the preview, then the full image.
+        val stage = when {
+            mediaImage != null -> DISPLAY_FULL
+            previewImage != null -> DISPLAY_PREVIEW
+            expectedImageWidth > 0 && expectedImageHeight > 0 -> DISPLAY_EMPTY
+            else -> DISPLAY_NONE
+        }
+
+        if (displaySurface != null && (mediaPlayer != null || stage <= displayStage)) {
             // Avoid double initialization caused by sceneRenderer & mediaPlayer being initialized before
-            // displayWhenReady is executed.
+            // displayWhenReady is executed. The only thing that can replace what's displayed is a
+            // later stage of the same image.
             return
         }
 
-        if ((mediaImage == null && mediaPlayer == null) || sceneRenderer == null) {
+        if ((stage == DISPLAY_NONE && mediaPlayer == null) || sceneRenderer == null
+            || (mediaPlayer == null && !isImageMeshReady)) {
             // Wait for everything to be initialized.
             return
         }
@@ -182,78 +756,54 @@ class MediaLoader(private val context: Context) {
             // Start playback.
             mediaPlayer!!.isLooping = true
             mediaPlayer!!.start()
-        } else if (mediaImage != null) {
+        } else if (stage != DISPLAY_NONE) {
             // For images, acquire the displaySurface and draw the bitmap to it. Since our Mesh class uses
             // an GL_TEXTURE_EXTERNAL_OES texture, it's possible to perform this decoding and rendering of
             // a bitmap in the background without stalling the GL thread. If the Mesh used a standard
             // GL_TEXTURE_2D, then it's possible to stall the GL thread for 100+ ms during the
             // glTexImage2D call when loading 4k x 4k panoramas and copying the bitmap's data.
 
-            if (photoSphereData == null && (mediaImage!!.getHeight() * 2 != mediaImage!!.getWidth())) {
-                // If the image does not have an exact 2:1 aspect ratio, it likely means that it's a cropped
-                // panorama, but unfortunately it's lacking the precise photosphere data. In this case,
-                // let's build a fake photosphere object to make up for it, and place the image in the
-                // center of it.
-                photoSphereData = PhotoSphereData()
-                photoSphereData!!.croppedAreaImageWidthPixels = mediaImage!!.getWidth()
-                photoSphereData!!.croppedAreaImageHeightPixels = mediaImage!!.getHeight()
-                if (mediaImage!!.getWidth() > mediaImage!!.getHeight() * 2) {
-                    photoSphereData!!.fullPanoWidthPixels = mediaImage!!.getWidth()
-                    photoSphereData!!.fullPanoHeightPixels =
-                        photoSphereData!!.fullPanoWidthPixels / 2
-                    photoSphereData!!.croppedAreaLeftPixels = 0
-                    photoSphereData!!.croppedAreaTopPixels =
-                        photoSphereData!!.fullPanoHeightPixels / 2 - mediaImage!!.getHeight() / 2
-                } else {
-                    photoSphereData!!.fullPanoHeightPixels = mediaImage!!.getHeight()
-                    photoSphereData!!.fullPanoWidthPixels =
-                        photoSphereData!!.fullPanoHeightPixels * 2
-                    photoSphereData!!.croppedAreaTopPixels = 0
-                    photoSphereData!!.croppedAreaLeftPixels =
-                        photoSphereData!!.fullPanoWidthPixels / 2 - mediaImage!!.getWidth() / 2
-                }
-            }
+            // The preview is drawn into the same layout that the full image will have, which is
+            // determined by the dimensions in the header.
+            // Large images are decoded at a reduced size, so the header has the true dimensions.
+            val hasHeaderSize = expectedImageWidth > 0 && expectedImageHeight > 0
+            val imageWidth = if (hasHeaderSize) expectedImageWidth else mediaImage?.getWidth() ?: 0
+            val imageHeight = if (hasHeaderSize) expectedImageHeight else mediaImage?.getHeight() ?: 0
 
-            if (photoSphereData != null) {
-                val maxWidth = 4096
-                val scale = photoSphereData!!.fullPanoWidthPixels.toFloat() / maxWidth
+            // Separate images for each eye are laid out side by side, to match MEDIA_STEREO_LEFT_RIGHT.
+            // Images larger than the surface are decoded at the reduced size already, and cropped
+            // panoramas fill the whole surface, on the mesh of the part of the sphere that they cover.
+            val eyeSize = getEyeSize(imageWidth, imageHeight)
+            val eyeWidth = eyeSize[0]
+            val eyeRect = Rect(0, 0, eyeWidth, eyeSize[1])
+            if (displaySurface == null) {
+                displaySurface = sceneRenderer!!.createDisplay(eyeWidth * eyeCount, eyeRect.height(), mesh)
+            }
 
-                displaySurface = sceneRenderer!!.createDisplay(
-                    (photoSphereData!!.fullPanoWidthPixels.toFloat() / scale).toInt(),
-                    (photoSphereData!!.fullPanoHeightPixels.toFloat() / scale).toInt(), mesh
-                )
-                val c = displaySurface!!.lockCanvas(null)
-
-                val src = Rect(0, 0, mediaImage!!.getWidth(), mediaImage!!.getHeight())
-                val dst = Rect(
-                    (photoSphereData!!.croppedAreaLeftPixels.toFloat() / scale).toInt(),
-                    (photoSphereData!!.croppedAreaTopPixels.toFloat() / scale).toInt(),
-                    ((photoSphereData!!.croppedAreaLeftPixels + photoSphereData!!.croppedAreaImageWidthPixels).toFloat() / scale).toInt(),
-                    ((photoSphereData!!.croppedAreaTopPixels + photoSphereData!!.croppedAreaImageHeightPixels).toFloat() / scale).toInt()
-                )
-                c.drawBitmap(mediaImage!!, src, dst, null)
+            val images = when (stage) {
+                DISPLAY_FULL -> listOfNotNull(mediaImage, rightEyeImage)
+                DISPLAY_PREVIEW -> List(eyeCount) { previewImage!! }
+                else -> emptyList()
+            }
+            val c = displaySurface!!.lockCanvas(null)
+            // Clear out the preview, if there was one.
+            c.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR)
+            images.forEachIndexed { i, image ->
+                val src = Rect(0, 0, image.getWidth(), image.getHeight())
+                val dst = Rect(eyeRect)
+                dst.offset(eyeWidth * i, 0)
+                c.drawBitmap(image, src, dst, null)
+            }
+            displaySurface!!.unlockCanvasAndPost(c)
 
-                displaySurface!!.unlockCanvasAndPost(c)
-            } else {
-                displaySurface = sceneRenderer!!.createDisplay(
-                    mediaImage!!.getWidth(),
-                    mediaImage!!.getHeight(),
-                    mesh
-                )
-                val c = displaySurface!!.lockCanvas(null)
-                c.drawBitmap(mediaImage!!, 0f, 0f, null)
-                displaySurface!!.unlockCanvasAndPost(c)
+            displayStage = stage
+            if (stage == DISPLAY_FULL) {
+                previewImage?.recycle()
+                previewImage = null
             }
         } else {
             // Handle the error case by creating a placeholder panorama.
-            mesh = Mesh.createUvSphere(
-                SPHERE_RADIUS_METERS.toFloat(),
-                DEFAULT_SPHERE_ROWS,
-                DEFAULT_SPHERE_COLUMNS,
-                DEFAULT_SPHERE_VERTICAL_DEGREES.toFloat(),
-                DEFAULT_SPHERE_HORIZONTAL_DEGREES.toFloat(),
-                Mesh.MEDIA_MONOSCOPIC
-            )
+            mesh = createSphereMesh(Mesh.MEDIA_MONOSCOPIC)
 
             // 4k x 2k is a good default resolution for monoscopic panoramas.
             displaySurface = sceneRenderer!!.createDisplay(
@@ -291,7 +841,48 @@ class MediaLoader(private val context: Context) {
         private const val TAG = "MediaLoader"
 
         const val MEDIA_FORMAT_KEY: String = "stereoFormat"
+        const val CUBEMAP_LAYOUT_KEY: String = "cubemapLayout"
+        private const val NO_CUBEMAP = -1
         private const val DEFAULT_SURFACE_HEIGHT_PX = 2048
+        private const val MAX_SURFACE_WIDTH_PX = 4096
+        private const val MESH_DIRECTORY = "meshes"
+        /**
+         * Budget of the mesh files, beyond which the least recently used ones are deleted. Every
+         * cropped panorama has a mesh of its own, and the densest whole sphere takes about 5 MB.
+         */
+        private const val MESH_CACHE_BYTES = 64L * 1024 * 1024
+
+        /**
+         * Bounds of the first pass over images other than JPEGs, whose dimensions are always within
+         * the first few hundred bytes of the supported formats.
+         */
+        private const val BOUNDS_BUFFER_SIZE = 16 * 1024
+        private const val BOUNDS_MARK_LIMIT = 1024 * 1024
+
+        /**
+         * Length of the range request for the header of a remote image. The metadata segments of a
+         * JPEG are at most 64 KB each, and a typical panorama has an Exif and an XMP segment.
+         */
+        private const val HEADER_RANGE_BYTES = 128 * 1024
+
+        /**
+         * Remote images at least this large are downloaded over several connections at once, in
+         * chunks of ChunkedDownload.DEFAULT_CHUNK_SIZE, to get around servers that limit the
+         * throughput of each connection.
+         */
+        private const val PARALLEL_DOWNLOAD_MIN_BYTES = 32L * 1024 * 1024
+        private const val PARALLEL_DOWNLOAD_CONNECTIONS = 4
+        private const val DOWNLOAD_DIRECTORY = "downloads"
+        /**
+         * Budget of the completed downloads, beyond which the least recently used ones are deleted.
+         * This is on top of the HTTP cache, and keeps at least a few of the largest panoramas.
+         */
+        private const val DOWNLOAD_CACHE_BYTES = 256L * 1024 * 1024
+
+        private const val DISPLAY_NONE = 0
+        private const val DISPLAY_EMPTY = 1
+        private const val DISPLAY_PREVIEW = 2
+        private const val DISPLAY_FULL = 3
 
         /**
          * A spherical mesh for video should be large enough that there are no stereo artifacts.
@@ -310,6 +901,82 @@ class MediaLoader(private val context: Context) {
         private const val DEFAULT_SPHERE_ROWS = 32
         private const val DEFAULT_SPHERE_COLUMNS = 32
 
+        /**
+         * Lenses of a typical dual fisheye camera, whose frames have the front and back circles in
+         * their left and right halves.
+         */
+        private const val DUAL_FISHEYE_FOV_DEGREES = 190f
+        private const val DUAL_FISHEYE_SEAM_BLEND_DEGREES = 6f
+
+        /**
+         * Each face of a cubemap is split into this many rows and columns. The faces are flat, so
+         * this only needs to be high enough for the perspective of each quad to be close to the
+         * true projection, and for the warp of equi-angular cubemaps.
+         */
+        private const val CUBEMAP_FACE_SUBDIVISIONS = 16
+
+        private fun createCubemapMesh(layout: Int, stereoFormat: Int): Mesh {
+            return Mesh.createCubemapSphere(
+                SPHERE_RADIUS_METERS.toFloat(),
+                CUBEMAP_FACE_SUBDIVISIONS,
+                layout,
+                stereoFormat,
+                true
+            )
+        }
+
+        private fun createSphereMesh(stereoFormat: Int): Mesh {
+            if (stereoFormat == Mesh.MEDIA_DUAL_FISHEYE) {
+                return Mesh.createDualFisheyeSphere(
+                    SPHERE_RADIUS_METERS.toFloat(),
+                    DEFAULT_SPHERE_ROWS,
+                    DEFAULT_SPHERE_COLUMNS,
+                    FisheyeLens.halfFrame(false, DUAL_FISHEYE_FOV_DEGREES),
+                    FisheyeLens.halfFrame(true, DUAL_FISHEYE_FOV_DEGREES),
+                    DUAL_FISHEYE_SEAM_BLEND_DEGREES,
+                    true
+                )
+            }
+            return Mesh.createUvSphere(
+                SPHERE_RADIUS_METERS.toFloat(),
+                DEFAULT_SPHERE_ROWS,
+                DEFAULT_SPHERE_COLUMNS,
+                DEFAULT_SPHERE_VERTICAL_DEGREES.toFloat(),
+                DEFAULT_SPHERE_HORIZONTAL_DEGREES.toFloat(),
+                stereoFormat,
+                Mesh.TESSELLATION_UNIFORM,
+                true
+            )
+        }
+
+        /**
+         * Creates a mesh that only covers the part of the sphere that the cropped area of the
+         * panorama takes up, with the same density of rows and columns as the whole sphere.
+         */
+        private fun createSectionMesh(data: PhotoSphereData, stereoFormat: Int): Mesh {
+            val fullWidth = data.fullPanoWidthPixels.toFloat()
+            val fullHeight = data.fullPanoHeightPixels.toFloat()
+            // The full panorama spans 360 x 180 degrees, with its left edge directly behind the viewer.
+            val cropRight = data.croppedAreaLeftPixels + data.croppedAreaImageWidthPixels
+            val cropBottom = data.croppedAreaTopPixels + data.croppedAreaImageHeightPixels
+            val left = 360f * data.croppedAreaLeftPixels / fullWidth - 180f
+            val right = min(360f * cropRight / fullWidth - 180f, left + 360f)
+            val top = min(90f - 180f * data.croppedAreaTopPixels / fullHeight, 90f)
+            val bottom = max(90f - 180f * cropBottom / fullHeight, -90f)
+            if (fullWidth <= 0 || fullHeight <= 0 || !(left < right) || !(bottom < top)) {
+                return createSphereMesh(stereoFormat)
+            }
+            return Mesh.createSphereSection(
+                SPHERE_RADIUS_METERS.toFloat(),
+                max(1, ceil(DEFAULT_SPHERE_ROWS * (top - bottom) / DEFAULT_SPHERE_VERTICAL_DEGREES).toInt()),
+                max(1, ceil(DEFAULT_SPHERE_COLUMNS * (right - left) / DEFAULT_SPHERE_HORIZONTAL_DEGREES).toInt()),
+                bottom, top, left, right,
+                stereoFormat,
+                Mesh.TESSELLATION_UNIFORM,
+                true
+            )
+        }
+
         /**
          * Renders a placeholder grid with optional error text.
          */
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019+ Dmitry Brant.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dmitrybrant.photo360
+
+import android.content.ContentUris
+import android.content.Context
+import android.os.ParcelFileDescriptor
+import android.provider.MediaStore
+import android.util.Log
+import com.dmitrybrant.photo360.rendering.MetadataIndex
+import com.dmitrybrant.photo360.rendering.PanoramaScanner
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.nio.channels.FileChannel
+import kotlin.coroutines.resume
+
+/**
+ * Access to the metadata of all the panoramas on the device, backed by the shared [MetadataIndex].
+ */
+object PanoramaLibrary {
+    private const val TAG = "PanoramaLibrary"
+    private const val METADATA_INDEX_FILE = "metadata_index"
+
+    private var metadataIndex: MetadataIndex? = null
+    private var metadataIndexFailed = false
+
+    /**
+     * Returns the metadata index shared by all loaders, opening it on first use. This reads the
+     * index from disk, so it must not be called on the main thread.
+     */
+    @Synchronized
+    fun getMetadataIndex(context: Context): MetadataIndex? {
+        if (metadataIndex == null && !metadataIndexFailed) {
+            try {
+                metadataIndex = MetadataIndex.open(File(context.cacheDir, METADATA_INDEX_FILE))
+            } catch (e: IOException) {
+                Log.w(TAG, "Failed to open metadata index.", e)
+                metadataIndexFailed = true
+            }
+        }
+        return metadataIndex
+    }
+
+    /**
+     * Lists the JPEG images in the MediaStore, keyed by their content:// Uri, with the same kind of
+     * validator that MediaLoader uses when opening them.
+     */
+    fun queryMediaStore(context: Context): List<PanoramaScanner.Source> {
+        val sources = mutableListOf<PanoramaScanner.Source>()
+        val projection = arrayOf(MediaStore.Images.Media._ID, MediaStore.Images.Media.DATE_MODIFIED, MediaStore.Images.Media.SIZE)
+        context.contentResolver.query(
+            MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection,
+            MediaStore.Images.Media.MIME_TYPE + " = ?", arrayOf("image/jpeg"), null
+        )?.use { cursor ->
+            val idColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID)
+            val dateColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_MODIFIED)
+            val sizeColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.SIZE)
+            while (cursor.moveToNext()) {
+                val uri = ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, cursor.getLong(idColumn))
+                val validator = "${cursor.getLong(dateColumn)}:${cursor.getLong(sizeColumn)}"
+                sources.add(object : PanoramaScanner.Source {
+                    override fun getKey() = uri.toString()
+                    override fun getValidator() = validator
+                    override fun open(): FileChannel {
+                        val pfd = context.contentResolver.openFileDescriptor(uri, "r")
+                            ?: throw FileNotFoundException(uri.toString())
+                        // Closing the channel closes the descriptor along with it.
+                        return ParcelFileDescriptor.AutoCloseInputStream(pfd).channel
+                    }
+                })
+            }
+        }
+        return sources
+    }
+
+    /**
+     * Reads the metadata of every JPEG in the MediaStore that isn't in the index yet. Cancelling the
+     * calling coroutine stops the scan.
+     *
+     * Nothing in the app calls this yet, since there's no library screen to show the results in. It
+     * is meant for one, and for warming up the index ahead of time.
+     */
+    suspend fun scanMediaStore(context: Context, parallelism: Int = Runtime.getRuntime().availableProcessors(),
+                               listener: PanoramaScanner.ProgressListener? = null): List<MetadataIndex.Entry> {
+        return withContext(Dispatchers.IO) {
+            val scanner = PanoramaScanner(parallelism, getMetadataIndex(context))
+            val sources = queryMediaStore(context)
+            suspendCancellableCoroutine { continuation ->
+                continuation.invokeOnCancellation { scanner.cancel() }
+                continuation.resume(scanner.scan(sources, listener))
+            }
+        }
+    }
+}
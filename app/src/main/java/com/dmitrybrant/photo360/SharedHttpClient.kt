@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019+ Dmitry Brant.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dmitrybrant.photo360
+
+import android.content.Context
+import okhttp3.Cache
+import okhttp3.ConnectionPool
+import okhttp3.OkHttpClient
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+/**
+ * The HTTP client shared by all loaders in the process, so that connections are reused across
+ * loads, and downloaded panoramas are kept in an HTTP disk cache. Opening the same panorama again,
+ * e.g. when switching between the regular and the VR view, then costs at most a conditional
+ * request, which the server answers with 304 if the image hasn't changed.
+ */
+object SharedHttpClient {
+    private const val CACHE_DIRECTORY = "http"
+
+    /**
+     * Default budget of the disk cache. Panoramas are typically 5 to 50 MB, so this keeps the last
+     * few dozen of them, evicting the least recently used ones beyond that.
+     */
+    const val DEFAULT_CACHE_BYTES = 256L * 1024 * 1024
+
+    /**
+     * Idle connections are kept open for a while after a load, so that the next load from the same
+     * host, or the next request of the same load, skips the DNS lookup and the TCP and TLS handshakes.
+     */
+    private const val MAX_IDLE_CONNECTIONS = 8
+    private const val KEEP_ALIVE_MINUTES = 5L
+
+    private const val CONNECT_TIMEOUT_SECONDS = 15L
+    private const val READ_TIMEOUT_SECONDS = 30L
+
+    /**
+     * Budget of the disk cache, in bytes. This only takes effect if it's set before the client is
+     * first used.
+     */
+    @Volatile
+    var cacheBytes = DEFAULT_CACHE_BYTES
+
+    private var client: OkHttpClient? = null
+
+    /**
+     * Returns the shared client, creating it on first use. Creating the cache doesn't touch the disk,
+     * so this is safe to call on any thread.
+     */
+    @Synchronized
+    fun get(context: Context): OkHttpClient {
+        return client ?: OkHttpClient.Builder()
+            .connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .cache(Cache(File(context.applicationContext.cacheDir, CACHE_DIRECTORY), cacheBytes))
+            .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .build()
+            .also { client = it }
+    }
+}
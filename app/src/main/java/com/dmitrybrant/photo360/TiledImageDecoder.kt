@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019+ Dmitry Brant.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dmitrybrant.photo360
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Canvas
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.Rect
+import android.util.Log
+import com.dmitrybrant.photo360.rendering.TilePlanner
+import java.io.FileDescriptor
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Decodes images that are too large for the display surface one tile at a time, straight into a
+ * bitmap of the surface size. A 20K x 10K panorama would take 800 MB as a single bitmap, but this
+ * way the peak memory is the surface bitmap plus a single tile.
+ */
+object TiledImageDecoder {
+    private const val TAG = "TiledImageDecoder"
+
+    /**
+     * Size of the tiles in target pixels. The decoded tiles are up to twice as large on each side,
+     * i.e. at most about 4 MB each.
+     */
+    private const val TILE_SIZE = 512
+
+    @Suppress("DEPRECATION")
+    fun decode(fd: FileDescriptor, targetWidth: Int, targetHeight: Int): Bitmap? {
+        return decode(targetWidth, targetHeight) { BitmapRegionDecoder.newInstance(fd, false) }
+    }
+
+    @Suppress("DEPRECATION")
+    fun decode(stream: InputStream, targetWidth: Int, targetHeight: Int): Bitmap? {
+        return decode(targetWidth, targetHeight) { BitmapRegionDecoder.newInstance(stream, false) }
+    }
+
+    /**
+     * Decodes the whole image, scaled to the given size, which should be no larger than the image.
+     */
+    private fun decode(targetWidth: Int, targetHeight: Int, open: () -> BitmapRegionDecoder?): Bitmap? {
+        val decoder = try {
+            open()
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to open image for region decoding.", e)
+            null
+        } ?: return null
+        try {
+            if (targetWidth >= decoder.width && targetHeight >= decoder.height) {
+                return decoder.decodeRegion(Rect(0, 0, decoder.width, decoder.height), null)
+            }
+            val plan = TilePlanner(decoder.width, decoder.height, targetWidth, targetHeight, TILE_SIZE)
+            val target = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888)
+            val canvas = Canvas(target)
+            val paint = Paint(Paint.FILTER_BITMAP_FLAG)
+            val options = BitmapFactory.Options()
+            options.inSampleSize = plan.sampleSize
+            val region = Rect()
+            val matrix = Matrix()
+            for (tile in plan.tiles) {
+                region.set(tile.sourceLeft, tile.sourceTop, tile.sourceRight, tile.sourceBottom)
+                // A tile that fails to decode is left empty, like the rest of a truncated image.
+                val bitmap = decoder.decodeRegion(region, options) ?: continue
+                // The decoded size is rounded differently by different decoders, so the tile is
+                // mapped onto its source region by its actual size.
+                matrix.setScale(
+                    (region.width() * plan.scaleX / bitmap.width).toFloat(),
+                    (region.height() * plan.scaleY / bitmap.height).toFloat()
+                )
+                matrix.postTranslate((region.left * plan.scaleX).toFloat(), (region.top * plan.scaleY).toFloat())
+                canvas.save()
+                canvas.clipRect(tile.left, tile.top, tile.right, tile.bottom)
+                canvas.drawBitmap(bitmap, matrix, paint)
+                canvas.restore()
+                bitmap.recycle()
+            }
+            return target
+        } finally {
+            decoder.recycle()
+        }
+    }
+}
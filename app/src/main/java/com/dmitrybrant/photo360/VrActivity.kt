@@ -63,7 +63,7 @@ class VrActivity : GvrActivity() {
      */
     public override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
-        mediaLoader = MediaLoader(this)
+        mediaLoader = MediaLoader(this, rendersStereo = true)
         gvrView = GvrView(this)
         // Since the videos have fewer pixels per degree than the phones, reducing the render target
         // scaling factor reduces the work required to render the scene. This factor can be adjusted at
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download of a large file in fixed-size chunks over several connections at once, for servers that
+ * limit the throughput of each connection. Each chunk is fetched with its own range request, and
+ * written straight to its place in a file that is preallocated to the full length, so the chunks
+ * can arrive in any order.
+ *
+ * <p>The progress of each chunk is kept in a small state file next to the download, which is
+ * updated after each write to the download itself. A chunk whose connection drops is resumed from
+ * where it stopped, up to a few times in a row. If the download fails or is cancelled altogether,
+ * opening it again with the same length and validator resumes it from the state file, and anything
+ * else starts it over. The state file is deleted once the download is complete.
+ */
+public final class ChunkedDownload {
+    private static final int MAGIC = 0x50333644; // "P36D"
+    private static final int VERSION = 1;
+    /* package */ static final String STATE_SUFFIX = ".state";
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    // Attempts at a chunk in a row without any progress, before the download is given up.
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_DELAY_MILLIS = 250;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Source of the bytes of the downloaded file, e.g. an HTTP server.
+     */
+    public interface RangeSource {
+        /**
+         * Opens a stream of the bytes of the file from start (inclusive) to end (exclusive). The
+         * stream may end early, e.g. if the connection drops, but must not start anywhere else, so
+         * implementations should check that the server actually honored the range.
+         */
+        @NonNull
+        InputStream open(long start, long end) throws IOException;
+    }
+
+    private final File file;
+    private final File stateFile;
+    private final long length;
+    private final int chunkSize;
+    private final String validator;
+    // Bytes of each chunk that are already written to the file.
+    private final long[] progress;
+    private final int stateHeaderLength;
+    private final AtomicLong bytesFetched = new AtomicLong();
+
+    private final Set<InputStream> openStreams = Collections.newSetFromMap(new IdentityHashMap<>());
+    private volatile boolean cancelled;
+
+    /**
+     * Opens a download into the given file, resuming a previous download of the same length and
+     * validator, or preallocating the file if there isn't one.
+     *
+     * @param validator The version of the downloaded file, e.g. its HTTP ETag, so that parts of
+     *    different versions are never mixed.
+     */
+    @NonNull
+    public static ChunkedDownload open(@NonNull File file, long length, @NonNull String validator,
+            int chunkSize) throws IOException {
+        if (length <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid download length.");
+        }
+        ChunkedDownload download = new ChunkedDownload(file, length, validator, chunkSize);
+        if (!download.readState()) {
+            download.create();
+        }
+        return download;
+    }
+
+    private ChunkedDownload(@NonNull File file, long length, @NonNull String validator, int chunkSize) {
+        this.file = file;
+        this.stateFile = new File(file.getPath() + STATE_SUFFIX);
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.validator = validator;
+        progress = new long[(int) ((length + chunkSize - 1) / chunkSize)];
+        stateHeaderLength = encodeStateHeader().length;
+    }
+
+    @NonNull
+    public File getFile() {
+        return file;
+    }
+
+    /** Bytes that are already in the file, including ones from a previous download. */
+    public synchronized long getBytesDone() {
+        long done = 0;
+        for (long p : progress) {
+            done += p;
+        }
+        return done;
+    }
+
+    /** Bytes actually fetched from the source by this instance. */
+    public long getBytesFetched() {
+        return bytesFetched.get();
+    }
+
+    public synchronized boolean isComplete() {
+        for (int i = 0; i < progress.length; i++) {
+            if (progress[i] < getChunkLength(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Downloads the missing parts of the file over the given number of connections, each of which
+     * runs on the given executor. This blocks until the download is complete, and throws if any
+     * chunk fails, or if the download is cancelled or the calling thread is interrupted. The parts
+     * that were written until then are kept for resuming.
+     */
+    public void download(@NonNull RangeSource source, int connections, @NonNull Executor executor) throws IOException {
+        if (isComplete()) {
+            deleteState();
+            return;
+        }
+        AtomicInteger nextChunk = new AtomicInteger();
+        IOException[] failure = new IOException[1];
+        CountDownLatch done = new CountDownLatch(connections);
+        try (RandomAccessFile data = new RandomAccessFile(file, "rw");
+             RandomAccessFile state = new RandomAccessFile(stateFile, "rw")) {
+            FileChannel dataChannel = data.getChannel();
+            FileChannel stateChannel = state.getChannel();
+            for (int i = 0; i < connections; i++) {
+                executor.execute(() -> {
+                    try {
+                        int chunk;
+                        while (!cancelled && (chunk = nextChunk.getAndIncrement()) < progress.length) {
+                            fetchChunk(source, chunk, dataChannel, stateChannel);
+                        }
+                    } catch (IOException e) {
+                        synchronized (failure) {
+                            if (failure[0] == null) {
+                                failure[0] = e;
+                            }
+                        }
+                        // The other connections would only be wasted on a download that failed.
+                        cancel();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                cancel();
+                // The connections still have to stop writing before the files are closed.
+                awaitUninterruptibly(done);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download interrupted.");
+            }
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        if (cancelled) {
+            throw new InterruptedIOException("Download cancelled.");
+        }
+        deleteState();
+    }
+
+    /**
+     * Stops the download, closing the streams of all connections. This may be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        InputStream[] streams;
+        synchronized (openStreams) {
+            streams = openStreams.toArray(new InputStream[0]);
+        }
+        for (InputStream stream : streams) {
+            closeSilently(stream);
+        }
+    }
+
+    private void fetchChunk(@NonNull RangeSource source, int chunk, @NonNull FileChannel dataChannel,
+            @NonNull FileChannel stateChannel) throws IOException {
+        long start = (long) chunk * chunkSize;
+        long chunkLength = getChunkLength(chunk);
+        long written;
+        synchronized (this) {
+            written = progress[chunk];
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer record = ByteBuffer.allocate(8);
+        int attempts = 0;
+        while (written < chunkLength) {
+            InputStream stream = null;
+            try {
+                stream = source.open(start + written, start + chunkLength);
+                if (!track(stream)) {
+                    throw new InterruptedIOException("Download cancelled.");
+                }
+                while (written < chunkLength) {
+                    int count = stream.read(buffer.array(), 0, (int) Math.min(BUFFER_SIZE, chunkLength - written));
+                    if (count < 0) {
+                        throw new EOFException("Connection closed at " + (start + written));
+                    }
+                    buffer.limit(count);
+                    buffer.position(0);
+                    long position = start + written;
+                    while (buffer.hasRemaining()) {
+                        position += dataChannel.write(buffer, position);
+                    }
+                    written += count;
+                    bytesFetched.addAndGet(count);
+                    // The progress is only recorded after the bytes it covers are written.
+                    record.clear();
+                    record.putLong(0, written);
+                    stateChannel.write(record, stateHeaderLength + 8L * chunk);
+                    synchronized (this) {
+                        progress[chunk] = written;
+                    }
+                    attempts = 0;
+                }
+            } catch (IOException e) {
+                if (cancelled) {
+                    throw new InterruptedIOException("Download cancelled.");
+                }
+                if (++attempts >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS << (attempts - 1));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download interrupted.");
+                }
+            } finally {
+                if (stream != null) {
+                    untrack(stream);
+                    closeSilently(stream);
+                }
+            }
+        }
+    }
+
+    private long getChunkLength(int chunk) {
+        return Math.min(chunkSize, length - (long) chunk * chunkSize);
+    }
+
+    private boolean track(@NonNull InputStream stream) {
+        synchronized (openStreams) {
+            // Checked under the same lock as in cancel(), so that no stream is left open.
+            if (cancelled) {
+                return false;
+            }
+            openStreams.add(stream);
+            return true;
+        }
+    }
+
+    private void untrack(@NonNull InputStream stream) {
+        synchronized (openStreams) {
+            openStreams.remove(stream);
+        }
+    }
+
+    /**
+     * Reads the progress of a previous download of the same file, if there is one and it matches.
+     */
+    private boolean readState() {
+        if (!file.exists() || file.length() != length) {
+            return false;
+        }
+        byte[] header = encodeStateHeader();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(stateFile))) {
+            byte[] stored = new byte[header.length];
+            in.readFully(stored);
+            if (!Arrays.equals(stored, header)) {
+                return false;
+            }
+            for (int i = 0; i < progress.length; i++) {
+                long p = in.readLong();
+                if (p < 0 || p > getChunkLength(i)) {
+                    return false;
+                }
+                progress[i] = p;
+            }
+            return true;
+        } catch (IOException e) {
+            // Missing or truncated, e.g. from the process being killed while creating it.
+            return false;
+        }
+    }
+
+    /**
+     * Preallocates the file to its full length, and writes a state file with no progress.
+     */
+    private void create() throws IOException {
+        Arrays.fill(progress, 0);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        // The state goes first, so that a stale state never describes a new file.
+        deleteState();
+        try (RandomAccessFile data = new RandomAccessFile(file, "rw")) {
+            data.setLength(0);
+            data.setLength(length);
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(stateFile))) {
+            out.write(encodeStateHeader());
+            for (int i = 0; i < progress.length; i++) {
+                out.writeLong(0);
+            }
+        }
+    }
+
+    private void deleteState() throws IOException {
+        if (stateFile.exists() && !stateFile.delete()) {
+            throw new IOException("Failed to delete " + stateFile);
+        }
+    }
+
+    @NonNull
+    private byte[] encodeStateHeader() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeInt(chunkSize);
+            out.writeUTF(validator);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitUninterruptibly(@NonNull CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // Keep waiting; the interrupt is restored by the caller.
+            }
+        }
+    }
+
+    // Not Utils.closeSilently, which would pull the Android framework into the benchmarks.
+    private static void closeSilently(@NonNull InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts monoscopic equirectangular images into one of the {@link CubemapLayout} layouts, for
+ * displaying on {@link MeshData#createCubemapSphere} meshes. An equirectangular image spends most of
+ * its pixels near the poles, so a cubemap needs less memory for the same sharpness where the viewer
+ * actually looks. This is meant to run once, when importing a large image, so it works on plain
+ * ARGB int arrays, like those of {@code Bitmap.getPixels}, and splits the work into bands of rows of
+ * each face for a {@link ForkJoinPool}.
+ */
+public final class CubemapConverter {
+    // Rows of a face that are converted as a single task.
+    private static final int BAND_ROWS = 16;
+
+    // Remap tables of the most recently used face sizes and layouts.
+    private static final int MAX_CACHED_REMAPS = 4;
+    private static final List<Remap> remaps = new ArrayList<>();
+
+    // Coefficients of atan(t) / t as a polynomial of t^2 on [0, 1], fitted at Chebyshev nodes. The
+    // error of atan is below 1e-6 radians, which is less than 1/256 of a pixel of a 16K image, the
+    // precision of the bilinear weights.
+    private static final double[] ATAN_COEFFICIENTS = {
+            0.999999999999706, -0.33333332815709205, 0.19999859923340302, -0.14279485910563133,
+            0.11020883601973673, -0.08507080099637643, 0.056934800208887866, -0.02633810694986802,
+            0.005793630041100355 };
+
+    private CubemapConverter() {
+    }
+
+    /**
+     * Returns the face size at which a cubemap in the given layout is as sharp in the middle of each
+     * face as an equirectangular image of the given width is at the equator.
+     */
+    public static int getFaceSize(int layout, int sourceWidth) {
+        // A face spans 90 degrees. In the middle, an EAC face has the same number of pixels per
+        // degree everywhere, and a standard face a factor of pi / 4 fewer than at its edges.
+        return CubemapLayout.get(layout).equiAngular
+                ? Math.max(1, sourceWidth / 4) : Math.max(1, (int) Math.round(sourceWidth / Math.PI));
+    }
+
+    /**
+     * Converts an equirectangular image into a new image in the given layout, using the common
+     * fork-join pool.
+     *
+     * @return The pixels of the converted image, {@code columns * faceSize} wide and
+     *    {@code rows * faceSize} high, in the terms of the layout.
+     */
+    @NonNull
+    public static int[] convert(@NonNull int[] source, int sourceWidth, int sourceHeight, int layout, int faceSize) {
+        CubemapLayout cubemap = CubemapLayout.get(layout);
+        int[] destination = new int[cubemap.columns * cubemap.rows * faceSize * faceSize];
+        convert(source, sourceWidth, sourceHeight, layout, faceSize, destination, ForkJoinPool.commonPool());
+        return destination;
+    }
+
+    /**
+     * Converts an equirectangular image into the given layout, sampling it bilinearly. The image is
+     * assumed to span 360 x 180 degrees, with its center straight ahead.
+     *
+     * @param destination Pixels of the converted image, {@code columns * faceSize} wide and
+     *    {@code rows * faceSize} high, in the terms of the layout. Only the cells of the faces are
+     *    written.
+     */
+    public static void convert(
+            @NonNull int[] source,
+            int sourceWidth,
+            int sourceHeight,
+            int layout,
+            int faceSize,
+            @NonNull int[] destination,
+            @NonNull ForkJoinPool pool) {
+        CubemapLayout cubemap = CubemapLayout.get(layout);
+        if (sourceWidth <= 0 || sourceHeight <= 0 || source.length < sourceWidth * sourceHeight) {
+            throw new IllegalArgumentException("Invalid source image.");
+        }
+        if (faceSize <= 0 || destination.length / cubemap.columns / cubemap.rows / faceSize < faceSize) {
+            throw new IllegalArgumentException("Invalid face size, or destination too small.");
+        }
+        pool.invoke(new Band(new Image(source, sourceWidth, sourceHeight), getRemap(layout, faceSize),
+                destination, 0, CubemapLayout.FACE_COUNT * faceSize));
+    }
+
+    /**
+     * Returns the remap table for the given layout and face size, computing it if it isn't cached.
+     */
+    @NonNull
+    private static Remap getRemap(int layout, int faceSize) {
+        synchronized (remaps) {
+            for (int i = 0; i < remaps.size(); i++) {
+                Remap remap = remaps.get(i);
+                if (remap.layout == layout && remap.faceSize == faceSize) {
+                    // Keep the most recently used table at the end.
+                    remaps.add(remaps.remove(i));
+                    return remap;
+                }
+            }
+        }
+        Remap remap = new Remap(layout, faceSize);
+        synchronized (remaps) {
+            remaps.add(remap);
+            if (remaps.size() > MAX_CACHED_REMAPS) {
+                remaps.remove(0);
+            }
+        }
+        return remap;
+    }
+
+    /**
+     * Approximation of {@link Math#atan2}, which is several times faster, and takes up most of the
+     * time of a conversion otherwise.
+     */
+    private static double atan2(double y, double x) {
+        double ax = Math.abs(x);
+        double ay = Math.abs(y);
+        double max = Math.max(ax, ay);
+        if (max == 0) {
+            return 0;
+        }
+        double t = Math.min(ax, ay) / max;
+        double u = t * t;
+        double[] c = ATAN_COEFFICIENTS;
+        double angle = t * (c[0] + u * (c[1] + u * (c[2] + u * (c[3] + u * (c[4] + u * (c[5]
+                + u * (c[6] + u * (c[7] + u * c[8]))))))));
+        if (ay > ax) {
+            angle = Math.PI / 2 - angle;
+        }
+        if (x < 0) {
+            angle = Math.PI - angle;
+        }
+        return y < 0 ? -angle : angle;
+    }
+
+    /** The source image, with the constants for converting directions into its pixels. */
+    private static final class Image {
+        final int[] pixels;
+        final int width;
+        final int height;
+        final double xPerRadian;
+        final double yPerRadian;
+
+        Image(@NonNull int[] pixels, int width, int height) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            xPerRadian = width / (2 * Math.PI);
+            yPerRadian = height / Math.PI;
+        }
+
+        /**
+         * Samples the image bilinearly in the given direction, wrapping around horizontally and
+         * clamping at the poles.
+         */
+        int sample(double x, double y, double z) {
+            // Pixel centers are at half coordinates, hence the offsets of 0.5.
+            double sx = (atan2(x, -z) + Math.PI) * xPerRadian - 0.5;
+            double sy = (Math.PI / 2 - atan2(y, Math.sqrt(x * x + z * z))) * yPerRadian - 0.5;
+            int x0 = (int) Math.floor(sx);
+            int y0 = (int) Math.floor(sy);
+            int wx = (int) ((sx - x0) * 256);
+            int wy = (int) ((sy - y0) * 256);
+            int x1 = x0 + 1;
+            if (x0 < 0) {
+                x0 += width;
+            }
+            if (x1 >= width) {
+                x1 -= width;
+            }
+            int row0 = Math.max(y0, 0) * width;
+            int row1 = Math.min(y0 + 1, height - 1) * width;
+            return lerp(lerp(pixels[row0 + x0], pixels[row0 + x1], wx),
+                    lerp(pixels[row1 + x0], pixels[row1 + x1], wx), wy);
+        }
+
+        /** Interpolates all four channels at once, two at a time, with a weight out of 256. */
+        private static int lerp(int a, int b, int weight) {
+            int inverse = 256 - weight;
+            int rb = ((a & 0xFF00FF) * inverse + (b & 0xFF00FF) * weight) >>> 8;
+            int ag = ((a >>> 8) & 0xFF00FF) * inverse + ((b >>> 8) & 0xFF00FF) * weight;
+            return (rb & 0xFF00FF) | (ag & 0xFF00FF00);
+        }
+    }
+
+    /**
+     * Directions of the pixels of all faces of a layout at a face size. Storing a direction for each
+     * pixel would take hundreds of megabytes for large faces, but within the cell of a face, the
+     * direction of a pixel is a fixed combination of the warped coordinates of its column and its row:
+     * normal + warp(column) * columnAxis + warp(row) * rowAxis. So one warp table per size, and three
+     * axes per face, are enough.
+     */
+    private static final class Remap {
+        final int layout;
+        final int faceSize;
+        final CubemapLayout cubemap;
+        // Warped coordinate of the center of each column or row of a cell.
+        final double[] warp;
+        // For each face: the normal, the axis of the columns of its cell and the axis of its rows.
+        final double[] axes = new double[CubemapLayout.FACE_COUNT * 9];
+
+        Remap(int layout, int faceSize) {
+            this.layout = layout;
+            this.faceSize = faceSize;
+            cubemap = CubemapLayout.get(layout);
+            warp = new double[faceSize];
+            for (int i = 0; i < faceSize; i++) {
+                warp[i] = cubemap.fromImage((2 * i + 1) / (double) faceSize - 1);
+            }
+            // Both warps keep -1, 0 and 1 in place, so the axes follow from the unwarped directions of
+            // the center and the edges of each cell.
+            double[] st = new double[2];
+            double[] direction = new double[3];
+            for (int face = 0; face < CubemapLayout.FACE_COUNT; face++) {
+                int offset = face * 9;
+                cubemap.getDirection(face, 0, 0, direction);
+                System.arraycopy(direction, 0, axes, offset, 3);
+                cubemap.getImageCoordinates(face, 1, 0, st);
+                cubemap.getDirection(face, st[0], st[1], direction);
+                for (int i = 0; i < 3; i++) {
+                    axes[offset + 3 + i] = direction[i] - axes[offset + i];
+                }
+                cubemap.getImageCoordinates(face, 0, 1, st);
+                cubemap.getDirection(face, st[0], st[1], direction);
+                for (int i = 0; i < 3; i++) {
+                    axes[offset + 6 + i] = direction[i] - axes[offset + i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a range of rows, numbered through all faces in FACE_* order, splitting it in half until
+     * it is a single band within one face.
+     */
+    @SuppressWarnings("serial") // Never serialized.
+    private static final class Band extends RecursiveAction {
+        private final Image image;
+        private final Remap remap;
+        private final int[] destination;
+        private final int start;
+        private final int end;
+
+        Band(@NonNull Image image, @NonNull Remap remap, @NonNull int[] destination, int start, int end) {
+            this.image = image;
+            this.remap = remap;
+            this.destination = destination;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            int faceSize = remap.faceSize;
+            if (end - start > BAND_ROWS || start / faceSize != (end - 1) / faceSize) {
+                // Split at a face boundary if there is one, otherwise in the middle.
+                int middle = (start / faceSize + 1) * faceSize;
+                if (middle >= end) {
+                    middle = (start + end) >>> 1;
+                }
+                invokeAll(new Band(image, remap, destination, start, middle),
+                        new Band(image, remap, destination, middle, end));
+                return;
+            }
+            int face = start / faceSize;
+            int stride = remap.cubemap.columns * faceSize;
+            int[] cell = new int[2];
+            getCell(face, cell);
+            double[] axes = remap.axes;
+            int offset = face * 9;
+            double[] warp = remap.warp;
+            for (int row = start - face * faceSize; row < end - face * faceSize; row++) {
+                double b = warp[row];
+                double x = axes[offset] + b * axes[offset + 6];
+                double y = axes[offset + 1] + b * axes[offset + 7];
+                double z = axes[offset + 2] + b * axes[offset + 8];
+                int pixel = (cell[1] * faceSize + row) * stride + cell[0] * faceSize;
+                for (int column = 0; column < faceSize; column++) {
+                    double a = warp[column];
+                    destination[pixel + column] = image.sample(
+                            x + a * axes[offset + 3], y + a * axes[offset + 4], z + a * axes[offset + 5]);
+                }
+            }
+        }
+
+        /** Finds the column and row of the cell of a face from the center of its texture. */
+        private void getCell(int face, @NonNull int[] cell) {
+            double[] uv = new double[2];
+            remap.cubemap.getTextureCoordinates(face, 0, 0, uv);
+            cell[0] = (int) (uv[0] * remap.cubemap.columns);
+            cell[1] = (int) (uv[1] * remap.cubemap.rows);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Arrangement of the six faces of a cube within a frame, and the projection of each face. Cubemaps
+ * spread their pixels far more evenly over the sphere than equirectangular images, which spend a
+ * large share of their pixels on the poles.
+ *
+ * <p>Directions are in the coordinates of the sphere meshes: -Z is straight ahead, +X to the right
+ * and +Y up. Each face is described as seen from the center of the cube, with image coordinates s
+ * to the right and t down, both in [-1, 1]. The four side faces are upright, and the up and down
+ * faces have the edge that they share with the front face at the bottom and top of their images,
+ * respectively, as in a cross-shaped unfolding of the cube.
+ */
+public final class CubemapLayout {
+    public static final int FACE_RIGHT = 0;
+    public static final int FACE_LEFT = 1;
+    public static final int FACE_UP = 2;
+    public static final int FACE_DOWN = 3;
+    public static final int FACE_FRONT = 4;
+    public static final int FACE_BACK = 5;
+    public static final int FACE_COUNT = 6;
+
+    /** Standard cubemap in a 3x2 grid: right, left and up faces on top, down, front and back below. */
+    public static final int LAYOUT_CUBEMAP_3X2 = 0;
+    /** Standard cubemap in a single row, in the same order: right, left, up, down, front, back. */
+    public static final int LAYOUT_CUBEMAP_6X1 = 1;
+    /**
+     * Equi-angular cubemap in the 3x2 layout of YouTube (and of ffmpeg's v360 filter): left, front
+     * and right faces on top, and down, back and up faces below, turned by a quarter so that each
+     * row is a continuous strip of the sphere. The image of each face is spaced evenly by angle
+     * rather than by distance on the face, which evens out the pixel density even further.
+     */
+    public static final int LAYOUT_EAC_3X2 = 2;
+
+    // For each face, in FACE_* order: the column and row of its cell, and the number of clockwise
+    // quarter turns of its image within the cell.
+    private static final CubemapLayout[] LAYOUTS = {
+            new CubemapLayout(3, 2, false, new int[] {
+                    0, 0, 0,  1, 0, 0,  2, 0, 0,  0, 1, 0,  1, 1, 0,  2, 1, 0 }),
+            new CubemapLayout(6, 1, false, new int[] {
+                    0, 0, 0,  1, 0, 0,  2, 0, 0,  3, 0, 0,  4, 0, 0,  5, 0, 0 }),
+            new CubemapLayout(3, 2, true, new int[] {
+                    2, 0, 0,  0, 0, 0,  2, 1, 3,  0, 1, 3,  1, 0, 0,  1, 1, 1 }),
+    };
+
+    public final int columns;
+    public final int rows;
+    public final boolean equiAngular;
+    private final int[] cells;
+
+    private CubemapLayout(int columns, int rows, boolean equiAngular, @NonNull int[] cells) {
+        this.columns = columns;
+        this.rows = rows;
+        this.equiAngular = equiAngular;
+        this.cells = cells;
+    }
+
+    /**
+     * Returns the layout with the given LAYOUT_* value.
+     */
+    @NonNull
+    public static CubemapLayout get(int layout) {
+        if (layout < 0 || layout >= LAYOUTS.length) {
+            throw new IllegalArgumentException("Invalid cubemap layout: " + layout);
+        }
+        return LAYOUTS[layout];
+    }
+
+    /**
+     * Computes the direction, not normalized, of the point of a face at the given image coordinates.
+     */
+    public void getDirection(int face, double s, double t, @NonNull double[] direction) {
+        double a = fromImage(s);
+        double b = fromImage(t);
+        switch (face) {
+            case FACE_RIGHT: set(direction, 1, -b, a); break;
+            case FACE_LEFT: set(direction, -1, -b, -a); break;
+            case FACE_UP: set(direction, a, 1, -b); break;
+            case FACE_DOWN: set(direction, a, -1, b); break;
+            case FACE_FRONT: set(direction, a, -b, -1); break;
+            default: set(direction, -a, -b, 1); break;
+        }
+    }
+
+    /**
+     * Returns the face that the given direction points at, and stores the image coordinates of the
+     * direction within that face in st.
+     */
+    public int getFace(double x, double y, double z, @NonNull double[] st) {
+        double ax = Math.abs(x);
+        double ay = Math.abs(y);
+        double az = Math.abs(z);
+        int face;
+        double a;
+        double b;
+        if (ax >= ay && ax >= az) {
+            face = x > 0 ? FACE_RIGHT : FACE_LEFT;
+            a = z / x;
+            b = -y / ax;
+        } else if (ay >= az) {
+            face = y > 0 ? FACE_UP : FACE_DOWN;
+            a = x / ay;
+            b = -z / y;
+        } else {
+            face = z < 0 ? FACE_FRONT : FACE_BACK;
+            a = -x / z;
+            b = -y / az;
+        }
+        st[0] = toImage(a);
+        st[1] = toImage(b);
+        return face;
+    }
+
+    /**
+     * Computes the texture coordinates within the whole frame, with v pointing down, of the given
+     * image coordinates of a face.
+     */
+    public void getTextureCoordinates(int face, double s, double t, @NonNull double[] uv) {
+        int cell = face * 3;
+        for (int turn = 0; turn < cells[cell + 2]; turn++) {
+            double turned = -t;
+            t = s;
+            s = turned;
+        }
+        uv[0] = (cells[cell] + (s + 1) / 2) / columns;
+        uv[1] = (cells[cell + 1] + (t + 1) / 2) / rows;
+    }
+
+    /**
+     * Inverse of the turn in {@link #getTextureCoordinates}: computes the image coordinates of a face
+     * from coordinates within its cell, both in [-1, 1] with t pointing down.
+     */
+    /* package */ void getImageCoordinates(int face, double cellS, double cellT, @NonNull double[] st) {
+        for (int turn = 0; turn < cells[face * 3 + 2]; turn++) {
+            double turned = -cellS;
+            cellS = cellT;
+            cellT = turned;
+        }
+        st[0] = cellS;
+        st[1] = cellT;
+    }
+
+    /** Converts a coordinate on the face of the unit cube to an image coordinate of the face. */
+    private double toImage(double c) {
+        return equiAngular ? Math.atan(c) * (4 / Math.PI) : c;
+    }
+
+    /** Converts an image coordinate of a face to a coordinate on the face of the unit cube. */
+    /* package */ double fromImage(double e) {
+        return equiAngular ? Math.tan(e * (Math.PI / 4)) : e;
+    }
+
+    private static void set(@NonNull double[] v, double x, double y, double z) {
+        v[0] = x;
+        v[1] = y;
+        v[2] = z;
+    }
+}
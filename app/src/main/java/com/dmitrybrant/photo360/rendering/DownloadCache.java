@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Directory of {@link ChunkedDownload}s of large remote files, which are too large for the HTTP
+ * cache to keep, since they never go through it. Each download is named by a digest of its URI and
+ * validator, so that a file is only ever reused for the same version of the same URI.
+ *
+ * <p>Completed downloads are kept, and the least recently used ones are deleted once their total
+ * size exceeds the limit. Only one incomplete download is kept for resuming, the most recent one.
+ */
+public final class DownloadCache {
+    private final File directory;
+    private final long maxBytes;
+
+    public DownloadCache(@NonNull File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the completed download of the given version of a URI, or null if there isn't one.
+     * The download becomes the most recently used one.
+     */
+    @Nullable
+    public synchronized File get(@NonNull String uri, @NonNull String validator, long length) {
+        File file = new File(directory, getFileName(uri, validator));
+        if (!file.isFile() || file.length() != length || getStateFile(file).exists()) {
+            return null;
+        }
+        // The modification time is the time of last use. If it can't be set, the download is simply
+        // evicted a little earlier.
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Opens a download of the given version of a URI, resuming it if it was interrupted. Any other
+     * incomplete download is deleted, and so are as many of the least recently used completed
+     * downloads as needed to make room for this one.
+     */
+    @NonNull
+    public synchronized ChunkedDownload open(@NonNull String uri, @NonNull String validator, long length,
+            int chunkSize) throws IOException {
+        File file = new File(directory, getFileName(uri, validator));
+        trimToSize(file, length);
+        return ChunkedDownload.open(file, length, validator, chunkSize);
+    }
+
+    /**
+     * Deletes the files in the directory, other than the given download and its state, until the
+     * completed downloads take up no more than the limit along with the given length.
+     */
+    private void trimToSize(@NonNull File keep, long length) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        File keepState = getStateFile(keep);
+        List<File> completed = new ArrayList<>();
+        long totalBytes = length;
+        for (File file : files) {
+            if (file.equals(keep) || file.equals(keepState)) {
+                continue;
+            }
+            if (file.getName().endsWith(ChunkedDownload.STATE_SUFFIX) || getStateFile(file).exists()) {
+                // An incomplete download of something else, or its state.
+                file.delete();
+            } else {
+                completed.add(file);
+                totalBytes += file.length();
+            }
+        }
+        Collections.sort(completed, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i = 0; i < completed.size() && totalBytes > maxBytes; i++) {
+            File file = completed.get(i);
+            long fileBytes = file.length();
+            if (file.delete()) {
+                totalBytes -= fileBytes;
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the download of the given version of a URI: the SHA-256 digest of both, in
+     * hex, so that different URIs or versions never share a file.
+     */
+    @NonNull
+    /* package */ static String getFileName(@NonNull String uri, @NonNull String validator) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+        digest.update(uri.getBytes(StandardCharsets.UTF_8));
+        // A separator that can't be part of a URI, so that the boundary between the two is unambiguous.
+        digest.update((byte) ' ');
+        digest.update(validator.getBytes(StandardCharsets.UTF_8));
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest()) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return name.toString();
+    }
+
+    @NonNull
+    private static File getStateFile(@NonNull File file) {
+        return new File(file.getPath() + ChunkedDownload.STATE_SUFFIX);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The image circle of one lens of a dual-fisheye camera, within the video frame. The lens is
+ * assumed to be equidistant, i.e. the distance of a point from the center of the circle is
+ * proportional to the angle between its direction and the optical axis, which is close enough for
+ * the lenses of consumer 360 cameras.
+ *
+ * <p>All positions are in texture coordinates, with v pointing down. The radius is given separately
+ * in u and v, since a circle in a frame that isn't square has different radii in texture
+ * coordinates.
+ */
+public final class FisheyeLens {
+    public final float centerU;
+    public final float centerV;
+    public final float radiusU;
+    public final float radiusV;
+    // Angle of view that the whole circle covers, which is more than 180 degrees for 360 cameras.
+    public final float fovDegrees;
+
+    private final double radiansToRadius;
+
+    public FisheyeLens(float centerU, float centerV, float radiusU, float radiusV, float fovDegrees) {
+        if (!(radiusU > 0) || !(radiusV > 0) || !(fovDegrees > 0) || !(fovDegrees < 360)) {
+            throw new IllegalArgumentException("Invalid fisheye lens parameters.");
+        }
+        this.centerU = centerU;
+        this.centerV = centerV;
+        this.radiusU = radiusU;
+        this.radiusV = radiusV;
+        this.fovDegrees = fovDegrees;
+        radiansToRadius = 1 / Math.toRadians(fovDegrees / 2);
+    }
+
+    /**
+     * Returns the lens of a frame whose left or right half is taken up by a single circle, which is
+     * how most dual-fisheye cameras lay out their output.
+     */
+    @NonNull
+    public static FisheyeLens halfFrame(boolean rightHalf, float fovDegrees) {
+        return new FisheyeLens(rightHalf ? .75f : .25f, .5f, .25f, .5f, fovDegrees);
+    }
+
+    /**
+     * Computes the texture coordinates of a direction, given relative to the lens: z along the
+     * optical axis, x to the right and y up in the image. Directions outside of the circle map to
+     * points outside of it, up to the opposite direction, which maps to the circle at 360 / fovDegrees
+     * times its radius.
+     */
+    /* package */ void project(double x, double y, double z, @NonNull float[] data, int offset) {
+        double sinTheta = Math.sqrt(x * x + y * y);
+        double r = Math.atan2(sinTheta, z) * radiansToRadius;
+        double scale = sinTheta > 0 ? r / sinTheta : 0;
+        if (sinTheta == 0 && z < 0) {
+            // Straight behind the lens, any point on the outer circle is as good as another.
+            x = 1;
+            scale = r;
+        }
+        data[offset] = (float) (centerU + radiusU * x * scale);
+        data[offset + 1] = (float) (centerV - radiusV * y * scale);
+    }
+}
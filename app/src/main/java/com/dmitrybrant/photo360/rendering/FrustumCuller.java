@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Picks out the sectors of a {@link MeshData} that are in view, so that only those need to be drawn.
+ * This is plain math on the CPU, with no GL calls, and doesn't allocate anything per frame.
+ *
+ * <p>The six planes of the view frustum are extracted from the view-projection matrix, and each
+ * sector is tested against them with its bounding cone. A sector is only culled when it's entirely
+ * outside of one of the planes, so a sector that is culled is never actually visible, while a few
+ * sectors near the corners of the view may be drawn without being visible.
+ */
+public final class FrustumCuller {
+    private static final int PLANE_COUNT = 6;
+
+    // Each plane is [a, b, c, d], normalized so that a * x + b * y + c * z + d is the signed distance
+    // of a point from the plane, which is positive on the inside.
+    private final float[] planes = new float[PLANE_COUNT * 4];
+
+    /**
+     * Sets the view-projection matrix, in the column-major order of android.opengl.Matrix, that the
+     * frustum is extracted from.
+     */
+    public void setViewProjection(@NonNull float[] matrix, int offset) {
+        // Each plane is the sum or difference of the last row of the matrix and one of the others,
+        // which is where the clip-space coordinate equals +w or -w.
+        for (int i = 0; i < PLANE_COUNT; i++) {
+            int row = i / 2;
+            float sign = (i % 2 == 0) ? 1 : -1;
+            float a = matrix[offset + 3] + sign * matrix[offset + row];
+            float b = matrix[offset + 7] + sign * matrix[offset + 4 + row];
+            float c = matrix[offset + 11] + sign * matrix[offset + 8 + row];
+            float d = matrix[offset + 15] + sign * matrix[offset + 12 + row];
+            float length = (float) Math.sqrt(a * a + b * b + c * c);
+            if (length == 0) {
+                // A degenerate plane doesn't cull anything.
+                a = 0;
+                b = 0;
+                c = 0;
+                d = 1;
+                length = 1;
+            }
+            planes[i * 4] = a / length;
+            planes[i * 4 + 1] = b / length;
+            planes[i * 4 + 2] = c / length;
+            planes[i * 4 + 3] = d / length;
+        }
+    }
+
+    /**
+     * Returns whether the sector with the given bounds, in the layout of
+     * {@link MeshData#sectorBounds}, may be in view.
+     */
+    public boolean isVisible(@NonNull float[] bounds, int offset) {
+        float axisX = bounds[offset];
+        float axisY = bounds[offset + 1];
+        float axisZ = bounds[offset + 2];
+        float cosAngle = bounds[offset + 3];
+        float sinAngle = bounds[offset + 4];
+        float minDistance = bounds[offset + 5];
+        float maxDistance = bounds[offset + 6];
+        for (int i = 0; i < PLANE_COUNT; i++) {
+            float nx = planes[i * 4];
+            float ny = planes[i * 4 + 1];
+            float nz = planes[i * 4 + 2];
+            float d = planes[i * 4 + 3];
+            // The direction within the cone that is closest to the plane's normal is either the normal
+            // itself, if it's inside the cone, or the edge of the cone that is closest to it.
+            float cosToNormal = nx * axisX + ny * axisY + nz * axisZ;
+            float maxDot;
+            if (cosToNormal >= cosAngle) {
+                maxDot = 1;
+            } else {
+                float sinToNormal = (float) Math.sqrt(Math.max(0, 1 - cosToNormal * cosToNormal));
+                maxDot = cosToNormal * cosAngle + sinToNormal * sinAngle;
+            }
+            // Furthest that any point of the sector reaches towards the inside of the plane.
+            float reach = maxDot >= 0 ? maxDot * maxDistance : maxDot * minDistance;
+            if (reach + d < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the ranges of indices of the sectors of the given mesh that may be in view, merging the
+     * sectors that are next to each other in the index buffer into a single range.
+     *
+     * @param ranges Receives [chunk, first index, end index] for each range. Must have room for three
+     *    ints per sector of the mesh.
+     * @return Number of ranges.
+     */
+    public int getVisibleRanges(@NonNull MeshData mesh, @NonNull int[] ranges) {
+        int count = 0;
+        int sectorCount = mesh.getSectorCount();
+        for (int s = 0; s < sectorCount; s++) {
+            if (!isVisible(mesh.sectorBounds, s * MeshData.SECTOR_BOUNDS_STRIDE)) {
+                continue;
+            }
+            int chunk = mesh.sectorChunks[s];
+            int start = mesh.sectorIndexOffsets[s];
+            int end = mesh.sectorIndexOffsets[s + 1];
+            if (count > 0 && ranges[(count - 1) * 3] == chunk && ranges[(count - 1) * 3 + 2] == start) {
+                ranges[(count - 1) * 3 + 2] = end;
+            } else {
+                ranges[count * 3] = chunk;
+                ranges[count * 3 + 1] = start;
+                ranges[count * 3 + 2] = end;
+                count++;
+            }
+        }
+        return count;
+    }
+}
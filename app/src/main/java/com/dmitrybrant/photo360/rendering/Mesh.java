@@ -20,6 +20,7 @@ import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import com.google.vr.sdk.base.Eye;
 import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 
 import static com.dmitrybrant.photo360.rendering.Utils.checkGlError;
 
@@ -30,30 +31,41 @@ import static com.dmitrybrant.photo360.rendering.Utils.checkGlError;
  */
 public final class Mesh {
   /** Standard media where a single camera frame takes up the entire media frame. */
-  public static final int MEDIA_MONOSCOPIC = 0;
-  /**
-   * Stereo media where the left & right halves of the frame are rendered for the left & right eyes,
-   * respectively. If the stereo media is rendered in a non-VR display, only the left half is used.
-   */
-  public static final int MEDIA_STEREO_LEFT_RIGHT = 1;
-  /**
-   * Stereo media where the top & bottom halves of the frame are rendered for the left & right eyes,
-   * respectively. If the stereo media is rendered in a non-VR display, only the top half is used.
-   */
-  public static final int MEDIA_STEREO_TOP_BOTTOM = 2;
+  public static final int MEDIA_MONOSCOPIC = MeshData.MEDIA_MONOSCOPIC;
+  /** See {@link MeshData#MEDIA_STEREO_LEFT_RIGHT}. */
+  public static final int MEDIA_STEREO_LEFT_RIGHT = MeshData.MEDIA_STEREO_LEFT_RIGHT;
+  /** See {@link MeshData#MEDIA_STEREO_TOP_BOTTOM}. */
+  public static final int MEDIA_STEREO_TOP_BOTTOM = MeshData.MEDIA_STEREO_TOP_BOTTOM;
+  /** See {@link MeshData#MEDIA_DUAL_FISHEYE}. */
+  public static final int MEDIA_DUAL_FISHEYE = MeshData.MEDIA_DUAL_FISHEYE;
+  /** See {@link MeshData#TESSELLATION_UNIFORM}. */
+  public static final int TESSELLATION_UNIFORM = MeshData.TESSELLATION_UNIFORM;
+  /** See {@link MeshData#TESSELLATION_ADAPTIVE}. */
+  public static final int TESSELLATION_ADAPTIVE = MeshData.TESSELLATION_ADAPTIVE;
+  /** See {@link CubemapLayout#LAYOUT_CUBEMAP_3X2}. */
+  public static final int LAYOUT_CUBEMAP_3X2 = CubemapLayout.LAYOUT_CUBEMAP_3X2;
+  /** See {@link CubemapLayout#LAYOUT_CUBEMAP_6X1}. */
+  public static final int LAYOUT_CUBEMAP_6X1 = CubemapLayout.LAYOUT_CUBEMAP_6X1;
+  /** See {@link CubemapLayout#LAYOUT_EAC_3X2}. */
+  public static final int LAYOUT_EAC_3X2 = CubemapLayout.LAYOUT_EAC_3X2;
 
   // Basic vertex & fragment shaders to render a mesh with 3D position & 2D texture data.
   private static final String[] VERTEX_SHADER_CODE =
       new String[] {
         "uniform mat4 uMvpMatrix;",
+        // Packed positions are normalized to the radius of the sphere, and unpacked ones use 1.
+        "uniform float uRadius;",
+        // Packed texture coordinates are normalized to their range, and unpacked ones use [0, 1].
+        "uniform float uTextureOffset;",
+        "uniform float uTextureScale;",
         "attribute vec4 aPosition;",
         "attribute vec2 aTexCoords;",
         "varying vec2 vTexCoords;",
 
         // Standard transformation.
         "void main() {",
-        "  gl_Position = uMvpMatrix * aPosition;",
-        "  vTexCoords = aTexCoords;",
+        "  gl_Position = uMvpMatrix * vec4(aPosition.xyz * uRadius, 1.0);",
+        "  vTexCoords = aTexCoords * uTextureScale + uTextureOffset;",
         "}"
       };
   private static final String[] FRAGMENT_SHADER_CODE =
@@ -70,26 +82,83 @@ public final class Mesh {
         "}"
       };
 
-  // Constants related to vertex data.
-  private static final int POSITION_COORDS_PER_VERTEX = 3; // X, Y, Z.
-  // The vertex contains texture coordinates for both the left & right eyes. If the scene is
-  // rendered in VR, the appropriate part of the vertex will be selected at runtime. For a mono
-  // scene, only the left eye's UV coordinates are used.
-  // For mono media, the UV coordinates are duplicated in each. For stereo media, the UV coords
-  // point to the appropriate part of the source media.
-  private static final int TEXTURE_COORDS_PER_VERTEX = 2 * 2;
-  // COORDS_PER_VERTEX
-  private static final int CPV = POSITION_COORDS_PER_VERTEX + TEXTURE_COORDS_PER_VERTEX;
-  // Data is tightly packed. Each vertex is [x, y, z, u_left, v_left, u_right, v_right].
+  // Shaders for MEDIA_DUAL_FISHEYE, which take the texture coordinates in both lenses, and blend
+  // from the front lens to the back one as the vertices go from -Z to +Z across the seam.
+  private static final String[] DUAL_FISHEYE_VERTEX_SHADER_CODE =
+      new String[] {
+        "uniform mat4 uMvpMatrix;",
+        "uniform float uRadius;",
+        // The texture coordinates of both lenses reach outside of [0, 1], so packed ones always
+        // need their range.
+        "uniform float uTextureOffset;",
+        "uniform float uTextureScale;",
+        // Rate at which the weight of the back lens rises with the z of the unit direction.
+        "uniform float uSeamScale;",
+        "attribute vec4 aPosition;",
+        "attribute vec4 aTexCoords;",
+        "varying vec4 vTexCoords;",
+        "varying float vBackWeight;",
+
+        "void main() {",
+        "  gl_Position = uMvpMatrix * vec4(aPosition.xyz * uRadius, 1.0);",
+        "  vTexCoords = aTexCoords * uTextureScale + uTextureOffset;",
+        "  vBackWeight = clamp(0.5 + normalize(aPosition.xyz).z * uSeamScale, 0.0, 1.0);",
+        "}"
+      };
+  private static final String[] DUAL_FISHEYE_FRAGMENT_SHADER_CODE =
+      new String[] {
+        "#extension GL_OES_EGL_image_external : require",
+        "precision mediump float;",
+
+        "uniform samplerExternalOES uTexture;",
+        "varying vec4 vTexCoords;",
+        "varying float vBackWeight;",
+        "void main() {",
+        // Everywhere but the seam, only one lens needs to be sampled.
+        "  if (vBackWeight <= 0.0) {",
+        "    gl_FragColor = texture2D(uTexture, vTexCoords.xy);",
+        "  } else if (vBackWeight >= 1.0) {",
+        "    gl_FragColor = texture2D(uTexture, vTexCoords.zw);",
+        "  } else {",
+        "    gl_FragColor = mix(",
+        "        texture2D(uTexture, vTexCoords.xy), texture2D(uTexture, vTexCoords.zw), vBackWeight);",
+        "  }",
+        "}"
+      };
+  // Seam scale of a hard seam, which still blends across the triangles that straddle it.
+  private static final float HARD_SEAM_SCALE = 1e6f;
+
+  // Constants related to vertex data. See MeshData for the layout of each vertex.
+  private static final int POSITION_COORDS_PER_VERTEX = MeshData.POSITION_COORDS_PER_VERTEX;
+  private static final int TEXTURE_COORDS_PER_VERTEX = MeshData.TEXTURE_COORDS_PER_VERTEX;
+  private static final int CPV = MeshData.CPV;
   private static final int VERTEX_STRIDE_BYTES = CPV * Utils.BYTES_PER_FLOAT;
+  // Only the texture coordinates of the eye that is being drawn are passed in the packed format.
+  private static final int PACKED_TEXTURE_COORDS_PER_VERTEX = 2;
 
-  // Vertices for the mesh with 3D position + left 2D texture UV + right 2D texture UV.
-  public final float[] vertices;
+  private final MeshData data;
+  // Exactly one of these is present, depending on whether the vertices are packed.
   private final FloatBuffer vertexBuffer;
+  private final ShortBuffer packedVertexBuffer;
+  private final float packedRadius;
+  private final float packedTextureOffset;
+  private final float packedTextureScale;
+  // Only present for indexed meshes.
+  private final ShortBuffer indexBuffer;
+  // Visibility of the sectors of indexed meshes, and the [chunk, start, end] index ranges to draw.
+  private final FrustumCuller culler = new FrustumCuller();
+  private final int[] drawRanges;
+  // Whether the mesh is for MEDIA_DUAL_FISHEYE, and the uSeamScale of its shader if so.
+  private final boolean dualFisheye;
+  private final float seamScale;
 
   // Program related GL items. These are only valid if program != 0.
   private int program;
   private int mvpMatrixHandle;
+  private int radiusHandle;
+  private int textureOffsetHandle;
+  private int textureScaleHandle;
+  private int seamScaleHandle;
   private int positionHandle;
   private int texCoordsHandle;
   private int textureHandle;
@@ -99,16 +168,13 @@ public final class Mesh {
    * Generates a 3D UV sphere for rendering monoscopic or stereoscopic video.
    *
    * <p>This can be called on any thread. The returned {@link Mesh} isn't valid until
-   * {@link #glInit(int)} is called.
+   * {@link #glInit(int)} is called. The vertex data comes from the {@link MeshCache}, so repeated
+   * calls with the same parameters only generate it once.
    *
-   * @param radius Size of the sphere. Must be > 0.
-   * @param latitudes Number of rows that make up the sphere. Must be >= 1.
-   * @param longitudes Number of columns that make up the sphere. Must be >= 1.
-   * @param verticalFovDegrees Total latitudinal degrees that are covered by the sphere. Must be in
-   *    (0, 180].
-   * @param horizontalFovDegrees Total longitudinal degrees that are covered by the sphere.Must be
-   *    in (0, 360].
-   * @param mediaFormat A MEDIA_* value.
+   * @see MeshData#createUvSphere(float, int, int, float, float, int)
+   * @param tessellation A TESSELLATION_* value.
+   * @param packed Whether to store the vertices in the compact {@link PackedVertices} format, which
+   *    takes less than half of the vertex bandwidth of floats, at a negligible loss of precision.
    * @return Unintialized Mesh.
    */
   public static Mesh createUvSphere(
@@ -117,89 +183,109 @@ public final class Mesh {
       int longitudes,
       float verticalFovDegrees,
       float horizontalFovDegrees,
-      int mediaFormat) {
-    if (radius <= 0
-        || latitudes < 1 || longitudes < 1
-        || verticalFovDegrees <= 0 || verticalFovDegrees > 180
-        || horizontalFovDegrees <= 0 || horizontalFovDegrees > 360) {
-      throw new IllegalArgumentException("Invalid parameters for sphere.");
-    }
+      int mediaFormat,
+      int tessellation,
+      boolean packed) {
+    return new Mesh(MeshCache.getInstance().getSphereSection(radius, latitudes, longitudes,
+        -verticalFovDegrees / 2, verticalFovDegrees / 2,
+        -horizontalFovDegrees / 2, horizontalFovDegrees / 2, mediaFormat, tessellation, packed));
+  }
 
-    // Compute angular size in radians of each UV quad.
-    float verticalFovRads = (float) Math.toRadians(verticalFovDegrees);
-    float horizontalFovRads = (float) Math.toRadians(horizontalFovDegrees);
-    float quadHeightRads = verticalFovRads / latitudes;
-    float quadWidthRads = horizontalFovRads / longitudes;
-
-    // Each latitude strip has 2 * (longitudes quads + extra edge) vertices + 2 degenerate vertices.
-    int vertexCount = (2 * (longitudes + 1) + 2) * latitudes;
-    // Buffer to return.
-    float[] vertexData = new float[vertexCount * CPV];
-
-    // Generate the data for the sphere which is a set of triangle strips representing each
-    // latitude band.
-    int v = 0; // Index into the vertex array.
-    // (i, j) represents a quad in the equirectangular sphere.
-    for (int j = 0; j < latitudes; ++j) { // For each horizontal triangle strip.
-      // Each latitude band lies between the two phi values. Each vertical edge on a band lies on
-      // a theta value.
-      float phiLow = (quadHeightRads * j - verticalFovRads / 2);
-      float phiHigh = (quadHeightRads * (j + 1) - verticalFovRads / 2);
-
-      for (int i = 0; i < longitudes + 1; ++i) { // For each vertical edge in the band.
-        for (int k = 0; k < 2; ++k) { // For low and high points on an edge.
-          // For each point, determine it's position in polar coordinates.
-          float phi = (k == 0) ? phiLow : phiHigh;
-          float theta = quadWidthRads * i + (float) Math.PI - horizontalFovRads / 2;
-
-          // Set vertex position data as Cartesian coordinates.
-          vertexData[CPV * v + 0] = -(float) (radius * Math.sin(theta) * Math.cos(phi));
-          vertexData[CPV * v + 1] =  (float) (radius * Math.sin(phi));
-          vertexData[CPV * v + 2] =  (float) (radius * Math.cos(theta) * Math.cos(phi));
-
-          // Set vertex texture.x data.
-          if (mediaFormat == MEDIA_STEREO_LEFT_RIGHT) {
-            // For left-right media, each eye's x coordinate points to the left or right half of the
-            // texture.
-            vertexData[CPV * v + 3] = (i * quadWidthRads / horizontalFovRads) / 2;
-            vertexData[CPV * v + 5] = (i * quadWidthRads / horizontalFovRads) / 2 + .5f;
-          } else {
-            // For top-bottom or monoscopic media, the eye's x spans the full width of the texture.
-            vertexData[CPV * v + 3] = i * quadWidthRads / horizontalFovRads;
-            vertexData[CPV * v + 5] = i * quadWidthRads / horizontalFovRads;
-          }
-
-          // Set vertex texture.y data. The "1 - ..." is due to Canvas vs GL coords.
-          if (mediaFormat == MEDIA_STEREO_TOP_BOTTOM) {
-            // For top-bottom media, each eye's y coordinate points to the top or bottom half of the
-            // texture.
-            vertexData[CPV * v + 4] = 1 - (((j + k) * quadHeightRads / verticalFovRads) / 2 + .5f);
-            vertexData[CPV * v + 6] = 1 - ((j + k) * quadHeightRads / verticalFovRads) / 2;
-          } else {
-            // For left-right or monoscopic media, the eye's y spans the full height of the texture.
-            vertexData[CPV * v + 4] = 1 - (j + k) * quadHeightRads / verticalFovRads;
-            vertexData[CPV * v + 6] = 1 - (j + k) * quadHeightRads / verticalFovRads;
-          }
-          v++;
-
-          // Break up the triangle strip with degenerate vertices by copying first and last points.
-          if ((i == 0 && k == 0) || (i == longitudes && k == 1)) {
-            System.arraycopy(vertexData, CPV * (v - 1), vertexData, CPV * v, CPV);
-            v++;
-          }
-        }
-        // Move on to the next vertical edge in the triangle strip.
-      }
-      // Move on to the next triangle strip.
+  /**
+   * Generates a section of a sphere, bounded by the given latitudes and longitudes, that is covered
+   * by the whole texture.
+   *
+   * <p>This can be called on any thread. The returned {@link Mesh} isn't valid until
+   * {@link #glInit(int)} is called.
+   *
+   * @see MeshData#createIndexedSphereSection(float, int, int, float, float, float, float, int)
+   * @see #createUvSphere(float, int, int, float, float, int, int, boolean)
+   * @return Unintialized Mesh.
+   */
+  public static Mesh createSphereSection(
+      float radius,
+      int latitudes,
+      int longitudes,
+      float bottomDegrees,
+      float topDegrees,
+      float leftDegrees,
+      float rightDegrees,
+      int mediaFormat,
+      int tessellation,
+      boolean packed) {
+    return new Mesh(MeshCache.getInstance().getSphereSection(radius, latitudes, longitudes,
+        bottomDegrees, topDegrees, leftDegrees, rightDegrees, mediaFormat, tessellation, packed));
+  }
+
+  /**
+   * Generates a sphere for {@link #MEDIA_DUAL_FISHEYE} media, which displays the output of a dual
+   * fisheye camera as it is, without stitching it into an equirectangular image first. The lens
+   * parameters vary from camera to camera, so these meshes aren't cached.
+   *
+   * <p>This can be called on any thread. The returned {@link Mesh} isn't valid until
+   * {@link #glInit(int)} is called.
+   *
+   * @see MeshData#createDualFisheyeSphere(float, int, int, FisheyeLens, FisheyeLens)
+   * @param seamBlendDegrees Width of the band around the seam across which the two lenses are
+   *    blended. Both lenses must cover the whole band, i.e. it can be at most as wide as the overlap
+   *    of their fields of view beyond 180 degrees. 0 for a hard seam.
+   * @return Unintialized Mesh.
+   */
+  public static Mesh createDualFisheyeSphere(
+      float radius,
+      int latitudes,
+      int longitudes,
+      FisheyeLens frontLens,
+      FisheyeLens backLens,
+      float seamBlendDegrees,
+      boolean packed) {
+    float overlapDegrees = Math.min(frontLens.fovDegrees, backLens.fovDegrees) - 180;
+    if (!(seamBlendDegrees >= 0) || seamBlendDegrees > Math.max(overlapDegrees, 0)) {
+      throw new IllegalArgumentException("Seam blend is wider than the overlap of the lenses.");
     }
+    MeshData data = MeshData.createDualFisheyeSphere(radius, latitudes, longitudes, frontLens, backLens);
+    float seamScale = seamBlendDegrees > 0
+        ? (float) (0.5 / Math.sin(Math.toRadians(seamBlendDegrees / 2))) : HARD_SEAM_SCALE;
+    return new Mesh(
+        new MeshCache.Entry(data, packed ? PackedVertices.encode(data) : null), true, seamScale);
+  }
 
-    return new Mesh(vertexData);
+  /**
+   * Generates a sphere for media in one of the cubemap layouts, including equi-angular cubemaps.
+   * Stereo cubemaps have the frames of the two eyes side by side or on top of each other, like
+   * stereo equirectangular media.
+   *
+   * <p>This can be called on any thread. The returned {@link Mesh} isn't valid until
+   * {@link #glInit(int)} is called.
+   *
+   * @see MeshData#createCubemapSphere(float, int, int, int)
+   * @param layout A LAYOUT_* value.
+   * @param mediaFormat A MEDIA_* value other than {@link #MEDIA_DUAL_FISHEYE}.
+   * @return Unintialized Mesh.
+   */
+  public static Mesh createCubemapSphere(
+      float radius, int subdivisions, int layout, int mediaFormat, boolean packed) {
+    return new Mesh(MeshCache.getInstance().getCubemapSphere(radius, subdivisions, layout,
+        mediaFormat, packed));
   }
 
   /** Used by static constructors. */
-  private Mesh(float[] vertexData) {
-    vertices = vertexData;
-    vertexBuffer = Utils.createBuffer(vertices);
+  private Mesh(MeshCache.Entry entry) {
+    this(entry, false, 0);
+  }
+
+  private Mesh(MeshCache.Entry entry, boolean dualFisheye, float seamScale) {
+    this.dualFisheye = dualFisheye;
+    this.seamScale = seamScale;
+    data = entry.data;
+    // The buffers are shared with other meshes, so each mesh needs its own position in them.
+    vertexBuffer = entry.vertexBuffer != null ? entry.vertexBuffer.duplicate() : null;
+    packedVertexBuffer = entry.packedVertexBuffer != null ? entry.packedVertexBuffer.duplicate() : null;
+    packedRadius = entry.packedRadius;
+    packedTextureOffset = entry.packedTextureOffset;
+    packedTextureScale = entry.packedTextureScale;
+    indexBuffer = entry.indexBuffer != null ? entry.indexBuffer.duplicate() : null;
+    drawRanges = new int[3 * data.getSectorCount()];
   }
 
   /**
@@ -210,9 +296,15 @@ public final class Mesh {
   /* package */ void glInit(int textureId) {
     this.textureId = textureId;
 
-    program = Utils.compileProgram(VERTEX_SHADER_CODE, FRAGMENT_SHADER_CODE);
+    program = dualFisheye
+        ? Utils.compileProgram(DUAL_FISHEYE_VERTEX_SHADER_CODE, DUAL_FISHEYE_FRAGMENT_SHADER_CODE)
+        : Utils.compileProgram(VERTEX_SHADER_CODE, FRAGMENT_SHADER_CODE);
 
     mvpMatrixHandle = GLES20.glGetUniformLocation(program, "uMvpMatrix");
+    radiusHandle = GLES20.glGetUniformLocation(program, "uRadius");
+    textureOffsetHandle = GLES20.glGetUniformLocation(program, "uTextureOffset");
+    textureScaleHandle = GLES20.glGetUniformLocation(program, "uTextureScale");
+    seamScaleHandle = GLES20.glGetUniformLocation(program, "uSeamScale");
     positionHandle = GLES20.glGetAttribLocation(program, "aPosition");
     texCoordsHandle = GLES20.glGetAttribLocation(program, "aTexCoords");
     textureHandle = GLES20.glGetUniformLocation(program, "uTexture");
@@ -234,13 +326,89 @@ public final class Mesh {
     checkGlError();
 
     GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
+    GLES20.glUniform1f(radiusHandle, packedVertexBuffer != null ? packedRadius : 1);
+    GLES20.glUniform1f(textureOffsetHandle, packedVertexBuffer != null ? packedTextureOffset : 0);
+    GLES20.glUniform1f(textureScaleHandle, packedVertexBuffer != null ? packedTextureScale : 1);
+    if (dualFisheye) {
+      GLES20.glUniform1f(seamScaleHandle, seamScale);
+    }
     GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
     GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
     GLES20.glUniform1i(textureHandle, 0);
     checkGlError();
 
+    // Load texture data. Eye.Type.RIGHT uses the left eye's data. Dual fisheye meshes use both
+    // pairs of texture coordinates for every eye.
+    int eyeOffset = (eyeType == Eye.Type.RIGHT && !dualFisheye) ? 2 : 0;
+
+    // Render.
+    if (!data.isIndexed()) {
+      setVertexPointers(0, eyeOffset);
+      GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, data.getVertexCount());
+      checkGlError();
+    } else if (data.getSectorCount() == 0) {
+      // Each chunk has its own range of vertices, so that its indices fit into shorts.
+      for (int c = 0; c < data.getChunkCount(); c++) {
+        setVertexPointers(data.chunkVertexOffsets[c], eyeOffset);
+        drawIndices(data.chunkIndexOffsets[c], data.chunkIndexOffsets[c + 1]);
+      }
+    } else {
+      // Only draw the sectors that can be in view. The ranges are in chunk order, so the vertex
+      // pointers only change once per chunk.
+      culler.setViewProjection(mvpMatrix, 0);
+      int rangeCount = culler.getVisibleRanges(data, drawRanges);
+      int chunk = -1;
+      for (int r = 0; r < rangeCount; r++) {
+        if (drawRanges[3 * r] != chunk) {
+          chunk = drawRanges[3 * r];
+          setVertexPointers(data.chunkVertexOffsets[chunk], eyeOffset);
+        }
+        drawIndices(drawRanges[3 * r + 1], drawRanges[3 * r + 2]);
+      }
+    }
+
+    GLES20.glDisableVertexAttribArray(positionHandle);
+    GLES20.glDisableVertexAttribArray(texCoordsHandle);
+  }
+
+  private void drawIndices(int start, int end) {
+    indexBuffer.position(start);
+    GLES20.glDrawElements(GLES20.GL_TRIANGLES, end - start, GLES20.GL_UNSIGNED_SHORT, indexBuffer);
+    checkGlError();
+  }
+
+  /**
+   * Points the position & texture attributes at the vertex data, starting from the given vertex.
+   *
+   * @param eyeOffset Offset of the eye's texture coordinates from the first texture coordinate.
+   */
+  private void setVertexPointers(int firstVertex, int eyeOffset) {
+    if (packedVertexBuffer != null) {
+      int vertexStart = firstVertex * PackedVertices.SHORTS_PER_VERTEX;
+      packedVertexBuffer.position(vertexStart + PackedVertices.POSITION_OFFSET);
+      GLES20.glVertexAttribPointer(
+          positionHandle,
+          POSITION_COORDS_PER_VERTEX,
+          GLES20.GL_SHORT,
+          true,
+          PackedVertices.BYTES_PER_VERTEX,
+          packedVertexBuffer);
+      checkGlError();
+
+      packedVertexBuffer.position(vertexStart + PackedVertices.TEXTURE_OFFSET + eyeOffset);
+      GLES20.glVertexAttribPointer(
+          texCoordsHandle,
+          dualFisheye ? TEXTURE_COORDS_PER_VERTEX : PACKED_TEXTURE_COORDS_PER_VERTEX,
+          GLES20.GL_UNSIGNED_SHORT,
+          true,
+          PackedVertices.BYTES_PER_VERTEX,
+          packedVertexBuffer);
+      checkGlError();
+      return;
+    }
+
     // Load position data.
-    vertexBuffer.position(0);
+    vertexBuffer.position(firstVertex * CPV);
     GLES20.glVertexAttribPointer(
         positionHandle,
         POSITION_COORDS_PER_VERTEX,
@@ -250,10 +418,8 @@ public final class Mesh {
         vertexBuffer);
     checkGlError();
 
-    // Load texture data. Eye.Type.RIGHT uses the left eye's data.
-    int textureOffset =
-        (eyeType == Eye.Type.RIGHT) ? POSITION_COORDS_PER_VERTEX + 2 : POSITION_COORDS_PER_VERTEX;
-    vertexBuffer.position(textureOffset);
+    // Load texture data.
+    vertexBuffer.position(firstVertex * CPV + POSITION_COORDS_PER_VERTEX + eyeOffset);
     GLES20.glVertexAttribPointer(
         texCoordsHandle,
         TEXTURE_COORDS_PER_VERTEX,
@@ -262,13 +428,6 @@ public final class Mesh {
         VERTEX_STRIDE_BYTES,
         vertexBuffer);
     checkGlError();
-
-    // Render.
-    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, vertices.length / CPV);
-    checkGlError();
-
-    GLES20.glDisableVertexAttribArray(positionHandle);
-    GLES20.glDisableVertexAttribArray(texCoordsHandle);
   }
 
   /** Cleans up the GL resources. */
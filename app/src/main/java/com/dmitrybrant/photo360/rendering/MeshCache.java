@@ -0,0 +1,393 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process-wide cache of generated sphere meshes, so that loading another image, or switching
+ * between the 2D and VR activities, doesn't generate the same sphere all over again. The vertex
+ * data and its direct buffers are immutable once created, and are shared by all the {@link Mesh}
+ * instances that use them. The least recently used meshes are evicted once the total size of the
+ * cached data exceeds the limit.
+ *
+ * <p>If a directory is set, meshes are also stored there as {@link MeshFile}s, so that a mesh that
+ * was generated once, even in an earlier run of the app, is just mapped from its file. The least
+ * recently used files are deleted once their total size exceeds the limit of the directory, and so
+ * are files that can't be read, e.g. those of an older version.
+ */
+public final class MeshCache {
+    private static final String TAG = "MeshCache";
+    // Cubemap layout of the keys of sphere sections.
+    private static final int NO_CUBEMAP = -1;
+    private static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private static final MeshCache INSTANCE = new MeshCache(DEFAULT_MAX_BYTES);
+
+    // Access-ordered, so that iteration starts from the least recently used entry.
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long totalBytes;
+    @Nullable private File directory;
+    private long maxFileBytes;
+
+    @NonNull
+    public static MeshCache getInstance() {
+        return INSTANCE;
+    }
+
+    /* package */ MeshCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the data of an indexed section of a sphere with the given parameters, generating it if
+     * it isn't cached in memory or on disk. A whole sphere is just a section from -90 to 90 and from -180 to 180 degrees.
+     *
+     * @param tessellation A TESSELLATION_* value of {@link MeshData}.
+     * @param packed Whether the vertex buffer should be in the compact {@link PackedVertices} format
+     *    rather than floats.
+     * @see MeshData#createIndexedSphereSection(float, int, int, float, float, float, float, int)
+     * @see MeshData#createAdaptiveSphereSection(float, int, int, float, float, float, float, int)
+     */
+    @NonNull
+    public Entry getSphereSection(
+            float radius,
+            int latitudes,
+            int longitudes,
+            float bottomDegrees,
+            float topDegrees,
+            float leftDegrees,
+            float rightDegrees,
+            int mediaFormat,
+            int tessellation,
+            boolean packed) {
+        Key key = new Key(radius, latitudes, longitudes, bottomDegrees, topDegrees, leftDegrees, rightDegrees,
+                mediaFormat, tessellation, NO_CUBEMAP, packed);
+        return get(key);
+    }
+
+    /**
+     * Returns the data of a cubemap sphere with the given parameters, generating it if it isn't
+     * cached in memory or on disk.
+     *
+     * @param layout A LAYOUT_* value of {@link CubemapLayout}.
+     * @param packed Whether the vertex buffer should be in the compact {@link PackedVertices} format
+     *    rather than floats.
+     * @see MeshData#createCubemapSphere(float, int, int, int)
+     */
+    @NonNull
+    public Entry getCubemapSphere(float radius, int subdivisions, int layout, int mediaFormat, boolean packed) {
+        return get(new Key(radius, subdivisions, subdivisions, 0, 0, 0, 0,
+                mediaFormat, MeshData.TESSELLATION_UNIFORM, layout, packed));
+    }
+
+    @NonNull
+    private Entry get(@NonNull Key key) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        // Load or generate outside of the lock, so that a large mesh doesn't hold up other lookups.
+        // If two threads happen to load the same mesh, the first one to finish wins.
+        File file = getFile(key);
+        Entry entry = file != null ? readFile(file) : null;
+        if (entry == null) {
+            MeshData data = generate(key);
+            PackedVertices packedVertices = key.packed ? PackedVertices.encode(data) : null;
+            entry = new Entry(data, packedVertices);
+            if (file != null) {
+                writeFile(file, data, packedVertices);
+                trimDirectory(file);
+            }
+        }
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            entries.put(key, entry);
+            totalBytes += entry.byteCount;
+            trimToSize();
+        }
+        return entry;
+    }
+
+    @NonNull
+    private static MeshData generate(@NonNull Key key) {
+        if (key.cubemapLayout != NO_CUBEMAP) {
+            return MeshData.createCubemapSphere(key.radius, key.latitudes, key.cubemapLayout, key.mediaFormat);
+        } else if (key.tessellation == MeshData.TESSELLATION_ADAPTIVE) {
+            return MeshData.createAdaptiveSphereSection(key.radius, key.latitudes, key.longitudes,
+                    key.bottomDegrees, key.topDegrees, key.leftDegrees, key.rightDegrees, key.mediaFormat);
+        }
+        return MeshData.createIndexedSphereSection(key.radius, key.latitudes, key.longitudes,
+                key.bottomDegrees, key.topDegrees, key.leftDegrees, key.rightDegrees, key.mediaFormat);
+    }
+
+    /**
+     * Sets the directory in which meshes are stored across runs, or null to only keep them in
+     * memory. The directory is created if it doesn't exist.
+     *
+     * @param maxBytes Maximum total size of the files in the directory.
+     */
+    public synchronized void setDirectory(@Nullable File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxFileBytes = maxBytes;
+    }
+
+    /**
+     * Sets the maximum total size of the cached meshes, evicting meshes if needed.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize();
+    }
+
+    /**
+     * Returns the total size of the cached meshes, counting both their arrays and direct buffers.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Evicts all meshes. Meshes that are still in use keep their data.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    @Nullable
+    private synchronized File getFile(@NonNull Key key) {
+        if (directory == null || (!directory.isDirectory() && !directory.mkdirs())) {
+            return null;
+        }
+        return new File(directory, key.getFileName());
+    }
+
+    @Nullable
+    private static Entry readFile(@NonNull File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Entry entry = new Entry(MeshFile.read(file));
+            // The modification time is the time of last use. If it can't be set, the file is simply
+            // evicted a little earlier.
+            file.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (IOException e) {
+            // A corrupt or outdated file is deleted, and regenerated.
+            Log.w(TAG, "Failed to read " + file, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    private static void writeFile(@NonNull File file, @NonNull MeshData data,
+                                  @Nullable PackedVertices packedVertices) {
+        try {
+            MeshFile.write(file, data, packedVertices);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file, e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used files in the directory, other than the given one, until they
+     * take up no more than the limit. Meshes that are mapped from deleted files keep their data.
+     */
+    private void trimDirectory(@NonNull File keep) {
+        long maxBytes;
+        synchronized (this) {
+            maxBytes = maxFileBytes;
+        }
+        File[] files = keep.getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i = 0; i < files.length && totalBytes > maxBytes; i++) {
+            File file = files[i];
+            long fileBytes = file.length();
+            if (!file.equals(keep) && file.delete()) {
+                totalBytes -= fileBytes;
+            }
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        // A single mesh that is larger than the limit is still kept, since it's about to be used.
+        while (totalBytes > maxBytes && entries.size() > 1 && iterator.hasNext()) {
+            totalBytes -= iterator.next().getValue().byteCount;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Immutable mesh data along with read-only direct buffers of it, ready to be handed to GL. The
+     * buffers are shared by every mesh of the entry, so users of them should
+     * {@link FloatBuffer#duplicate() duplicate} them rather than change their position. Exactly one
+     * of vertexBuffer and packedVertexBuffer is present.
+     */
+    public static final class Entry {
+        @NonNull public final MeshData data;
+        @Nullable public final FloatBuffer vertexBuffer;
+        @Nullable public final ShortBuffer packedVertexBuffer;
+        // Radius by which the packed positions are scaled.
+        public final float packedRadius;
+        // Scale and offset of the packed texture coordinates.
+        public final float packedTextureOffset;
+        public final float packedTextureScale;
+        @Nullable public final ShortBuffer indexBuffer;
+        private final long byteCount;
+
+        Entry(@NonNull MeshData data, @Nullable PackedVertices packedVertices) {
+            this.data = data;
+            long indexBytes = data.isIndexed() ? (long) data.indices.length * Utils.BYTES_PER_SHORT : 0;
+            long vertexBytes;
+            if (packedVertices != null) {
+                vertexBuffer = null;
+                packedVertexBuffer = Utils.createBuffer(packedVertices.data).asReadOnlyBuffer();
+                packedRadius = packedVertices.radius;
+                packedTextureOffset = packedVertices.textureOffset;
+                packedTextureScale = packedVertices.textureScale;
+                vertexBytes = (long) data.getVertexCount() * PackedVertices.BYTES_PER_VERTEX;
+            } else {
+                vertexBuffer = Utils.createBuffer(data.vertices).asReadOnlyBuffer();
+                packedVertexBuffer = null;
+                packedRadius = 1;
+                packedTextureOffset = 0;
+                packedTextureScale = 1;
+                vertexBytes = (long) data.vertices.length * Utils.BYTES_PER_FLOAT;
+            }
+            indexBuffer = data.isIndexed() ? Utils.createBuffer(data.indices).asReadOnlyBuffer() : null;
+            // The arrays in the MeshData take up memory as well as the buffers.
+            byteCount = (long) data.vertices.length * Utils.BYTES_PER_FLOAT + vertexBytes + 2 * indexBytes;
+        }
+
+        Entry(@NonNull MeshFile file) {
+            // The buffers are views of the read-only mapped file, which is only paged in as GL reads it.
+            data = file.data;
+            vertexBuffer = file.packed ? null : file.vertexData.asFloatBuffer();
+            packedVertexBuffer = file.packed ? file.vertexData.asShortBuffer() : null;
+            packedRadius = file.packedRadius;
+            packedTextureOffset = file.packedTextureOffset;
+            packedTextureScale = file.packedTextureScale;
+            indexBuffer = file.indexData != null ? file.indexData.asShortBuffer() : null;
+            byteCount = file.vertexData.capacity() + (file.indexData != null ? file.indexData.capacity() : 0);
+        }
+    }
+
+    private static final class Key {
+        private final float radius;
+        private final int latitudes;
+        private final int longitudes;
+        private final float bottomDegrees;
+        private final float topDegrees;
+        private final float leftDegrees;
+        private final float rightDegrees;
+        private final int mediaFormat;
+        private final int tessellation;
+        private final int cubemapLayout;
+        private final boolean packed;
+
+        Key(float radius, int latitudes, int longitudes, float bottomDegrees, float topDegrees, float leftDegrees,
+            float rightDegrees, int mediaFormat, int tessellation, int cubemapLayout, boolean packed) {
+            this.radius = radius;
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+            this.bottomDegrees = bottomDegrees;
+            this.topDegrees = topDegrees;
+            this.leftDegrees = leftDegrees;
+            this.rightDegrees = rightDegrees;
+            this.mediaFormat = mediaFormat;
+            this.tessellation = tessellation;
+            this.cubemapLayout = cubemapLayout;
+            this.packed = packed;
+        }
+
+        @NonNull
+        String getFileName() {
+            if (cubemapLayout != NO_CUBEMAP) {
+                return String.format(Locale.US, "cubemap_%08x_%d_%d_%d_%s.mesh",
+                        Float.floatToIntBits(radius), latitudes, cubemapLayout, mediaFormat, packed ? "p" : "f");
+            }
+            return String.format(Locale.US, "sphere_%08x_%d_%d_%08x_%08x_%08x_%08x_%d_%d_%s.mesh",
+                    Float.floatToIntBits(radius), latitudes, longitudes, Float.floatToIntBits(bottomDegrees),
+                    Float.floatToIntBits(topDegrees), Float.floatToIntBits(leftDegrees),
+                    Float.floatToIntBits(rightDegrees), mediaFormat, tessellation, packed ? "p" : "f");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Float.compare(radius, other.radius) == 0
+                    && latitudes == other.latitudes
+                    && longitudes == other.longitudes
+                    && Float.compare(bottomDegrees, other.bottomDegrees) == 0
+                    && Float.compare(topDegrees, other.topDegrees) == 0
+                    && Float.compare(leftDegrees, other.leftDegrees) == 0
+                    && Float.compare(rightDegrees, other.rightDegrees) == 0
+                    && mediaFormat == other.mediaFormat
+                    && tessellation == other.tessellation
+                    && cubemapLayout == other.cubemapLayout
+                    && packed == other.packed;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Float.floatToIntBits(radius);
+            result = 31 * result + latitudes;
+            result = 31 * result + longitudes;
+            result = 31 * result + Float.floatToIntBits(bottomDegrees);
+            result = 31 * result + Float.floatToIntBits(topDegrees);
+            result = 31 * result + Float.floatToIntBits(leftDegrees);
+            result = 31 * result + Float.floatToIntBits(rightDegrees);
+            result = 31 * result + mediaFormat;
+            result = 31 * result + tessellation;
+            result = 31 * result + cubemapLayout;
+            result = 31 * result + (packed ? 1 : 0);
+            return result;
+        }
+    }
+}
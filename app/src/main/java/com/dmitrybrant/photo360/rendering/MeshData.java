@@ -0,0 +1,1032 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import java.util.Arrays;
+
+/**
+ * Vertex data of a spherical mesh, without any GL state. This can be generated and inspected on any
+ * thread, and doesn't depend on Android, so that it can also be used outside of the app. Use
+ * {@link Mesh} to render it.
+ */
+public final class MeshData {
+  /** Standard media where a single camera frame takes up the entire media frame. */
+  public static final int MEDIA_MONOSCOPIC = 0;
+  /**
+   * Stereo media where the left & right halves of the frame are rendered for the left & right eyes,
+   * respectively. If the stereo media is rendered in a non-VR display, only the left half is used.
+   */
+  public static final int MEDIA_STEREO_LEFT_RIGHT = 1;
+  /**
+   * Stereo media where the top & bottom halves of the frame are rendered for the left & right eyes,
+   * respectively. If the stereo media is rendered in a non-VR display, only the top half is used.
+   */
+  public static final int MEDIA_STEREO_TOP_BOTTOM = 2;
+  /**
+   * Unstitched media from a 360 camera with two back-to-back fisheye lenses, whose image circles
+   * are both in the frame. The texture coordinates of each vertex are in the circle of the front
+   * lens, which faces straight ahead, followed by those in the circle of the back lens, in place of
+   * the left & right eyes, and the two are blended across the seam where the circles overlap.
+   */
+  public static final int MEDIA_DUAL_FISHEYE = 3;
+
+  /** Every ring of the sphere has the same number of quads. */
+  public static final int TESSELLATION_UNIFORM = 0;
+  /**
+   * Each ring has as few quads as keep both the texture and the shape of the sphere as accurate as
+   * those of the uniform sphere. See {@link #createAdaptiveUvSphere}.
+   */
+  public static final int TESSELLATION_ADAPTIVE = 1;
+
+  // Constants related to vertex data.
+  /* package */ static final int POSITION_COORDS_PER_VERTEX = 3; // X, Y, Z.
+  // The vertex contains texture coordinates for both the left & right eyes. If the scene is
+  // rendered in VR, the appropriate part of the vertex will be selected at runtime. For a mono
+  // scene, only the left eye's UV coordinates are used.
+  // For mono media, the UV coordinates are duplicated in each. For stereo media, the UV coords
+  // point to the appropriate part of the source media.
+  /* package */ static final int TEXTURE_COORDS_PER_VERTEX = 2 * 2;
+  // COORDS_PER_VERTEX
+  /* package */ static final int CPV = POSITION_COORDS_PER_VERTEX + TEXTURE_COORDS_PER_VERTEX;
+
+  // Indexed meshes are split into chunks that each use at most this many vertices, so that they can
+  // be addressed by unsigned short indices, which is all that GLES 2.0 guarantees.
+  /* package */ static final int MAX_CHUNK_VERTICES = 65536;
+
+  // Indexed meshes are also divided into sectors of about this many degrees on each side, which can
+  // each be skipped when they are outside of the view. Smaller sectors are culled more precisely,
+  // but take more draw calls.
+  private static final float SECTOR_DEGREES = 22.5f;
+
+  /**
+   * Number of floats that bound each sector in {@link #sectorBounds}: the unit axis of a cone from
+   * the center of the sphere that contains the whole sector (x, y, z), the cosine and sine of its
+   * half-angle, and the smallest and largest distance of any point of the sector from the center.
+   */
+  public static final int SECTOR_BOUNDS_STRIDE = 7;
+
+  // The arrays are never changed after construction, and are only visible within the package so
+  // that nothing else can change them; GL reads them through the read-only buffers of MeshCache.
+
+  // Vertices for the mesh with 3D position + left 2D texture UV + right 2D texture UV.
+  // Data is tightly packed. Each vertex is [x, y, z, u_left, v_left, u_right, v_right].
+  // Null if the mesh was read from a MeshFile, which only has its vertices in a buffer.
+  /* package */ final float[] vertices;
+  private final int vertexCount;
+
+  // For meshes that are drawn as GL_TRIANGLES, the indices of the vertices of each triangle, as
+  // unsigned shorts. Null for meshes that are drawn as a single GL_TRIANGLE_STRIP, and for meshes
+  // that were read from a MeshFile.
+  /* package */ final short[] indices;
+  // Chunk i of an indexed mesh uses indices [chunkIndexOffsets[i], chunkIndexOffsets[i + 1]), which
+  // are relative to vertex chunkVertexOffsets[i].
+  /* package */ final int[] chunkVertexOffsets;
+  /* package */ final int[] chunkIndexOffsets;
+
+  // Sector i of an indexed mesh uses indices [sectorIndexOffsets[i], sectorIndexOffsets[i + 1]),
+  // which lie within chunk sectorChunks[i]. The sectors are in the same order as the indices, so
+  // that neighboring sectors that are both visible can be drawn together. Null if the mesh isn't
+  // divided into sectors.
+  /* package */ final int[] sectorIndexOffsets;
+  /* package */ final int[] sectorChunks;
+  // SECTOR_BOUNDS_STRIDE floats for each sector.
+  /* package */ final float[] sectorBounds;
+
+  /** Creates a mesh that is drawn as a single triangle strip. */
+  /* package */ MeshData(float[] vertices) {
+    this(vertices, null, null, null);
+  }
+
+  /** Creates a mesh that is drawn as indexed triangles. */
+  /* package */ MeshData(float[] vertices, short[] indices, int[] chunkVertexOffsets, int[] chunkIndexOffsets) {
+    this(vertices, indices, chunkVertexOffsets, chunkIndexOffsets, null, null, null);
+  }
+
+  /** Creates a mesh that is drawn as indexed triangles, in sectors that can be culled. */
+  /* package */ MeshData(
+      float[] vertices,
+      short[] indices,
+      int[] chunkVertexOffsets,
+      int[] chunkIndexOffsets,
+      int[] sectorIndexOffsets,
+      int[] sectorChunks,
+      float[] sectorBounds) {
+    this(vertices, vertices.length / CPV, indices, chunkVertexOffsets, chunkIndexOffsets,
+        sectorIndexOffsets, sectorChunks, sectorBounds);
+  }
+
+  /**
+   * Creates a mesh whose vertices and indices are kept elsewhere, i.e. in the buffers of a
+   * {@link MeshFile}.
+   */
+  /* package */ MeshData(
+      int vertexCount,
+      int[] chunkVertexOffsets,
+      int[] chunkIndexOffsets,
+      int[] sectorIndexOffsets,
+      int[] sectorChunks,
+      float[] sectorBounds) {
+    this(null, vertexCount, null, chunkVertexOffsets, chunkIndexOffsets,
+        sectorIndexOffsets, sectorChunks, sectorBounds);
+  }
+
+  private MeshData(
+      float[] vertices,
+      int vertexCount,
+      short[] indices,
+      int[] chunkVertexOffsets,
+      int[] chunkIndexOffsets,
+      int[] sectorIndexOffsets,
+      int[] sectorChunks,
+      float[] sectorBounds) {
+    this.vertices = vertices;
+    this.vertexCount = vertexCount;
+    this.indices = indices;
+    this.chunkVertexOffsets = chunkVertexOffsets;
+    this.chunkIndexOffsets = chunkIndexOffsets;
+    this.sectorIndexOffsets = sectorIndexOffsets;
+    this.sectorChunks = sectorChunks;
+    this.sectorBounds = sectorBounds;
+  }
+
+  /** Returns whether the mesh is drawn as indexed triangles rather than a triangle strip. */
+  public boolean isIndexed() {
+    return chunkIndexOffsets != null;
+  }
+
+  /** Returns the number of index chunks, or 0 if the mesh isn't indexed. */
+  public int getChunkCount() {
+    return chunkVertexOffsets != null ? chunkVertexOffsets.length : 0;
+  }
+
+  /** Returns the number of sectors, or 0 if the mesh isn't divided into sectors. */
+  public int getSectorCount() {
+    return sectorChunks != null ? sectorChunks.length : 0;
+  }
+
+  /** Returns the number of vertices in the mesh. */
+  public int getVertexCount() {
+    return vertexCount;
+  }
+
+  /** Returns the number of indices in the mesh, or 0 if the mesh isn't indexed. */
+  public int getIndexCount() {
+    return chunkIndexOffsets != null ? chunkIndexOffsets[chunkIndexOffsets.length - 1] : 0;
+  }
+
+  /**
+   * Generates a 3D UV sphere for rendering monoscopic or stereoscopic video.
+   *
+   * <p>This can be called on any thread.
+   *
+   * @param radius Size of the sphere. Must be > 0.
+   * @param latitudes Number of rows that make up the sphere. Must be >= 1.
+   * @param longitudes Number of columns that make up the sphere. Must be >= 1.
+   * @param verticalFovDegrees Total latitudinal degrees that are covered by the sphere. Must be in
+   *    (0, 180].
+   * @param horizontalFovDegrees Total longitudinal degrees that are covered by the sphere.Must be
+   *    in (0, 360].
+   * @param mediaFormat A MEDIA_* value.
+   * @return Vertex data of the sphere.
+   */
+  public static MeshData createUvSphere(
+      float radius,
+      int latitudes,
+      int longitudes,
+      float verticalFovDegrees,
+      float horizontalFovDegrees,
+      int mediaFormat) {
+    checkSphereParameters(radius, latitudes, longitudes, verticalFovDegrees, horizontalFovDegrees);
+    SphereTables tables = new SphereTables(radius, latitudes, longitudes,
+        -verticalFovDegrees / 2, verticalFovDegrees / 2,
+        -horizontalFovDegrees / 2, horizontalFovDegrees / 2, mediaFormat);
+
+    // Each latitude strip has 2 * (longitudes quads + extra edge) vertices + 2 degenerate vertices.
+    int vertexCount = (2 * (longitudes + 1) + 2) * latitudes;
+    // Buffer to return.
+    float[] vertexData = new float[vertexCount * CPV];
+
+    // Generate the data for the sphere which is a set of triangle strips representing each
+    // latitude band. Each strip alternates between the low and high edge of the band.
+    int offset = 0; // Index into the vertex array.
+    for (int j = 0; j < latitudes; ++j) { // For each horizontal triangle strip.
+      // Break up the triangle strips with degenerate vertices by repeating first and last points.
+      offset = tables.putVertex(vertexData, offset, 0, j);
+      for (int i = 0; i <= longitudes; ++i) { // For each vertical edge in the band.
+        offset = tables.putVertex(vertexData, offset, i, j);
+        offset = tables.putVertex(vertexData, offset, i, j + 1);
+      }
+      offset = tables.putVertex(vertexData, offset, longitudes, j + 1);
+    }
+
+    return new MeshData(vertexData);
+  }
+
+  /**
+   * Generates the same sphere as {@link #createUvSphere}, but with each vertex stored only once and
+   * referenced by an index list, instead of the duplicated rows and degenerate vertices of a triangle
+   * strip. Triangles that collapse into a pole are left out entirely.
+   *
+   * <p>This can be called on any thread.
+   *
+   * @see #createUvSphere(float, int, int, float, float, int)
+   * @return Vertex and index data of the sphere.
+   */
+  public static MeshData createIndexedUvSphere(
+      float radius,
+      int latitudes,
+      int longitudes,
+      float verticalFovDegrees,
+      float horizontalFovDegrees,
+      int mediaFormat) {
+    checkSphereParameters(radius, latitudes, longitudes, verticalFovDegrees, horizontalFovDegrees);
+    return createIndexedSphereSection(radius, latitudes, longitudes,
+        -verticalFovDegrees / 2, verticalFovDegrees / 2,
+        -horizontalFovDegrees / 2, horizontalFovDegrees / 2, mediaFormat);
+  }
+
+  /**
+   * Generates an indexed section of a sphere, bounded by the given latitudes and longitudes, with the
+   * whole texture stretched over it. This is how a cropped panorama is displayed, with only the part
+   * of the sphere that the image actually covers, rather than a whole sphere textured with the image
+   * in a corner of an otherwise empty texture.
+   *
+   * <p>This can be called on any thread.
+   *
+   * @param radius Size of the sphere. Must be > 0.
+   * @param latitudes Number of rows that make up the section. Must be >= 1.
+   * @param longitudes Number of columns that make up the section. Must be >= 1.
+   * @param bottomDegrees Latitude of the bottom edge of the section, from -90 at the bottom pole.
+   * @param topDegrees Latitude of the top edge of the section, up to 90 at the top pole. Must be
+   *    greater than bottomDegrees.
+   * @param leftDegrees Longitude of the left edge of the section, where 0 is straight ahead and the
+   *    left edge of a full panorama is at -180.
+   * @param rightDegrees Longitude of the right edge of the section. Must be greater than leftDegrees,
+   *    and at most 360 degrees to the right of it.
+   * @param mediaFormat A MEDIA_* value.
+   * @see #createIndexedUvSphere(float, int, int, float, float, int)
+   * @return Vertex and index data of the section.
+   */
+  public static MeshData createIndexedSphereSection(
+      float radius,
+      int latitudes,
+      int longitudes,
+      float bottomDegrees,
+      float topDegrees,
+      float leftDegrees,
+      float rightDegrees,
+      int mediaFormat) {
+    checkSectionParameters(
+        radius, latitudes, longitudes, bottomDegrees, topDegrees, leftDegrees, rightDegrees);
+    if (2 * (longitudes + 1) > MAX_CHUNK_VERTICES) {
+      throw new IllegalArgumentException("Too many longitudes for an indexed sphere.");
+    }
+
+    SphereTables tables = new SphereTables(radius, latitudes, longitudes,
+        bottomDegrees, topDegrees, leftDegrees, rightDegrees, mediaFormat);
+
+    // One row of vertices for each edge between latitude bands, including the top and bottom ones.
+    int columns = longitudes + 1;
+    float[] vertexData = new float[(latitudes + 1) * columns * CPV];
+    int offset = 0;
+    for (int j = 0; j <= latitudes; ++j) {
+      for (int i = 0; i <= longitudes; ++i) {
+        offset = tables.putVertex(vertexData, offset, i, j);
+      }
+    }
+
+    // When the sphere is closed at a pole, the whole row of vertices at the pole is at the same
+    // point, so half of the triangles in the band next to it have no area.
+    boolean closedAtBottom = bottomDegrees == -90;
+    boolean closedAtTop = topDegrees == 90;
+
+    // Split the bands into chunks that each fit into the range of short indices.
+    int bandsPerChunk = MAX_CHUNK_VERTICES / columns - 1;
+    int chunkCount = (latitudes + bandsPerChunk - 1) / bandsPerChunk;
+    int[] chunkVertexOffsets = new int[chunkCount];
+    int[] chunkIndexOffsets = new int[chunkCount + 1];
+    IndexBuilder builder = new IndexBuilder(6 * longitudes * latitudes, latitudes, longitudes,
+        topDegrees - bottomDegrees, rightDegrees - leftDegrees);
+    for (int c = 0; c < chunkCount; ++c) {
+      int firstBand = c * bandsPerChunk;
+      int lastBand = Math.min(firstBand + bandsPerChunk, latitudes);
+      chunkVertexOffsets[c] = firstBand * columns;
+      chunkIndexOffsets[c] = builder.size();
+      for (int j = firstBand; j < lastBand; ++j) {
+        builder.startBand(c, j);
+        int low = (j - firstBand) * columns;
+        int high = low + columns;
+        for (int i = 0; i < longitudes; ++i) {
+          int sectorColumn = builder.getSectorColumn(i, longitudes);
+          // Same winding as the triangle strip: (high_i, low_i, low_i+1), (high_i, low_i+1, high_i+1).
+          if (!(closedAtBottom && j == 0)) {
+            builder.add(sectorColumn, high + i, low + i, low + i + 1);
+          }
+          if (!(closedAtTop && j == latitudes - 1)) {
+            builder.add(sectorColumn, high + i, low + i + 1, high + i + 1);
+          }
+        }
+      }
+    }
+    chunkIndexOffsets[chunkCount] = builder.size();
+
+    return builder.build(vertexData, chunkVertexOffsets, chunkIndexOffsets);
+  }
+
+  /**
+   * Generates an indexed sphere like {@link #createIndexedUvSphere}, but with fewer columns in the
+   * rings where the uniform sphere is more accurate than it needs to be. The texture of the uniform
+   * sphere strays the furthest from the true equirectangular mapping near the poles, where the
+   * straight edges across each band cut the corners of the rhumb lines that the texture follows,
+   * and its chords sag the furthest inside the true sphere at the equator, where they are the
+   * longest. Each ring here gets the fewest columns that keep the bands next to it within both of
+   * those largest errors, since a sphere that sags further looks faceted, and wobbles as the head
+   * moves in VR. Only the rings in between can be thinned out, which saves from 0.2% of the
+   * triangles at 32 x 32 up to 3% at 256 x 512, and sections that don't reach the poles may not
+   * save any. Rings with different numbers of columns are stitched together by walking along both
+   * of them in order of their texture coordinate, and since each ring of vertices is shared by the
+   * bands on either side of it, there are no cracks between bands.
+   *
+   * <p>This can be called on any thread.
+   *
+   * @param longitudes Number of columns of the uniform sphere, which the rings closest to the poles
+   *    and to the equator keep.
+   * @see #createIndexedUvSphere(float, int, int, float, float, int)
+   * @return Vertex and index data of the sphere.
+   */
+  public static MeshData createAdaptiveUvSphere(
+      float radius,
+      int latitudes,
+      int longitudes,
+      float verticalFovDegrees,
+      float horizontalFovDegrees,
+      int mediaFormat) {
+    checkSphereParameters(radius, latitudes, longitudes, verticalFovDegrees, horizontalFovDegrees);
+    return createAdaptiveSphereSection(radius, latitudes, longitudes,
+        -verticalFovDegrees / 2, verticalFovDegrees / 2,
+        -horizontalFovDegrees / 2, horizontalFovDegrees / 2, mediaFormat);
+  }
+
+  /**
+   * Generates a section of an adaptive sphere, bounded by the given latitudes and longitudes.
+   *
+   * <p>This can be called on any thread.
+   *
+   * @see #createAdaptiveUvSphere(float, int, int, float, float, int)
+   * @see #createIndexedSphereSection(float, int, int, float, float, float, float, int)
+   * @return Vertex and index data of the section.
+   */
+  public static MeshData createAdaptiveSphereSection(
+      float radius,
+      int latitudes,
+      int longitudes,
+      float bottomDegrees,
+      float topDegrees,
+      float leftDegrees,
+      float rightDegrees,
+      int mediaFormat) {
+    checkSectionParameters(
+        radius, latitudes, longitudes, bottomDegrees, topDegrees, leftDegrees, rightDegrees);
+    if (2 * (longitudes + 1) > MAX_CHUNK_VERTICES) {
+      throw new IllegalArgumentException("Too many longitudes for an indexed sphere.");
+    }
+
+    SphereTables tables = new SphereTables(radius, latitudes, longitudes,
+        bottomDegrees, topDegrees, leftDegrees, rightDegrees, mediaFormat);
+    boolean closedAtBottom = bottomDegrees == -90;
+    boolean closedAtTop = topDegrees == 90;
+
+    // Number of columns in each ring, and the index of its first vertex.
+    int[] ringColumns = getAdaptiveRingColumns(tables, latitudes, longitudes,
+        Math.toRadians(topDegrees - bottomDegrees), Math.toRadians(rightDegrees - leftDegrees));
+    int[] ringOffsets = new int[latitudes + 2];
+    // All vertices of a pole ring are at the pole, and only differ in their texture coordinate. The
+    // pole has one vertex for each column of the neighboring ring, in the middle of the column, so
+    // that each triangle that fans out from the pole is textured from its own column.
+    if (closedAtBottom) {
+      ringColumns[0] = ringColumns[1];
+    }
+    if (closedAtTop) {
+      ringColumns[latitudes] = ringColumns[latitudes - 1];
+    }
+    for (int j = 0; j <= latitudes; ++j) {
+      boolean isPole = (closedAtBottom && j == 0) || (closedAtTop && j == latitudes);
+      ringOffsets[j + 1] = ringOffsets[j] + ringColumns[j] + (isPole ? 0 : 1);
+    }
+
+    float[] vertexData = new float[ringOffsets[latitudes + 1] * CPV];
+    int offset = 0;
+    ColumnTable[] columnTables = new ColumnTable[longitudes + 1];
+    for (int j = 0; j <= latitudes; ++j) {
+      int columns = ringColumns[j];
+      if ((closedAtBottom && j == 0) || (closedAtTop && j == latitudes)) {
+        ColumnTable poleColumns =
+            new ColumnTable(columns, leftDegrees, rightDegrees, mediaFormat, .5f);
+        for (int i = 0; i < columns; ++i) {
+          offset = tables.putVertex(vertexData, offset, poleColumns, i, j);
+        }
+        continue;
+      }
+      if (columnTables[columns] == null) {
+        // Rings at the same latitude north and south of the equator have the same columns.
+        columnTables[columns] = columns == longitudes
+            ? tables.columns : new ColumnTable(columns, leftDegrees, rightDegrees, mediaFormat, 0);
+      }
+      for (int i = 0; i <= columns; ++i) {
+        offset = tables.putVertex(vertexData, offset, columnTables[columns], i, j);
+      }
+    }
+
+    // Split the bands into chunks that each fit into the range of short indices. A band between two
+    // rings has one triangle for each column of either ring.
+    int[] chunkVertexOffsets = new int[latitudes];
+    int[] chunkIndexOffsets = new int[latitudes + 1];
+    IndexBuilder builder = new IndexBuilder(3 * 2 * ringOffsets[latitudes + 1], latitudes,
+        longitudes, topDegrees - bottomDegrees, rightDegrees - leftDegrees);
+    int chunkCount = 0;
+    int firstBand = 0;
+    while (firstBand < latitudes) {
+      int lastBand = firstBand + 1;
+      while (lastBand < latitudes
+          && ringOffsets[lastBand + 2] - ringOffsets[firstBand] <= MAX_CHUNK_VERTICES) {
+        lastBand++;
+      }
+      int base = ringOffsets[firstBand];
+      chunkVertexOffsets[chunkCount] = base;
+      chunkIndexOffsets[chunkCount] = builder.size();
+      for (int j = firstBand; j < lastBand; ++j) {
+        builder.startBand(chunkCount, j);
+        int low = ringOffsets[j] - base;
+        int high = ringOffsets[j + 1] - base;
+        int lowColumns = ringColumns[j];
+        int highColumns = ringColumns[j + 1];
+        boolean lowIsPole = closedAtBottom && j == 0;
+        boolean highIsPole = closedAtTop && j + 1 == latitudes;
+        if (lowIsPole && highIsPole) {
+          continue;
+        } else if (lowIsPole) {
+          // Same winding as the triangle strip: (high_i, pole_i, high_i+1).
+          for (int i = 0; i < highColumns; ++i) {
+            builder.add(builder.getSectorColumn(i, highColumns), high + i, low + i, high + i + 1);
+          }
+          continue;
+        } else if (highIsPole) {
+          // (pole_i, low_i, low_i+1).
+          for (int i = 0; i < lowColumns; ++i) {
+            builder.add(builder.getSectorColumn(i, lowColumns), high + i, low + i, low + i + 1);
+          }
+          continue;
+        }
+        int l = 0;
+        int h = 0;
+        while (l < lowColumns || h < highColumns) {
+          // Advance along whichever ring has the next vertex with the smaller texture coordinate,
+          // comparing (l + 1) / lowColumns with (h + 1) / highColumns.
+          if (h == highColumns
+              || (l < lowColumns && (long) (l + 1) * highColumns <= (long) (h + 1) * lowColumns)) {
+            // Same winding as the triangle strip: (high_h, low_l, low_l+1).
+            builder.add(builder.getSectorColumn(l, lowColumns), high + h, low + l, low + l + 1);
+            l++;
+          } else {
+            // (high_h, low_l, high_h+1).
+            builder.add(builder.getSectorColumn(h, highColumns), high + h, low + l, high + h + 1);
+            h++;
+          }
+        }
+      }
+      chunkCount++;
+      firstBand = lastBand;
+    }
+    chunkIndexOffsets[chunkCount] = builder.size();
+
+    return builder.build(vertexData,
+        Arrays.copyOf(chunkVertexOffsets, chunkCount),
+        Arrays.copyOf(chunkIndexOffsets, chunkCount + 1));
+  }
+
+  /**
+   * Returns the number of columns in each ring of an adaptive sphere section: the fewest that keep
+   * both the estimated texture error and the straight-line error of both bands next to the ring
+   * within the largest errors of the uniform section with the given number of longitudes.
+   */
+  private static int[] getAdaptiveRingColumns(SphereTables tables, int latitudes, int longitudes,
+      double verticalFovRads, double horizontalFovRads) {
+    double quadHeightRads = verticalFovRads / latitudes;
+    // The uniform section is the worst at the edge that is furthest from the equator, where its
+    // columns are the narrowest, so only the first term of the estimate matters there.
+    double maxError = 0;
+    // Its chords are the longest, and sag the furthest inside the sphere, at the ring that is
+    // closest to the equator. A chord of angle a sags by r * (1 - cos(a / 2)), so the chords of a
+    // band sag no further as long as their angle is no larger.
+    double maxCosPhi = 0;
+    for (int j = 0; j <= latitudes; ++j) {
+      maxError = Math.max(maxError,
+          Math.abs(tables.sinPhi[j]) * horizontalFovRads / longitudes * quadHeightRads / 4);
+      maxCosPhi = Math.max(maxCosPhi, tables.cosPhi[j]);
+    }
+    double maxChordRads = horizontalFovRads / longitudes * maxCosPhi;
+
+    int[] ringColumns = new int[latitudes + 1];
+    for (int j = 0; j < latitudes; ++j) {
+      double sinPhi = Math.max(Math.abs(tables.sinPhi[j]), Math.abs(tables.sinPhi[j + 1]));
+      double cosPhi = Math.max(tables.cosPhi[j], tables.cosPhi[j + 1]);
+      int columns = 1;
+      while (columns < longitudes
+          && (horizontalFovRads / columns * cosPhi > maxChordRads
+              || estimateTextureError(
+                  sinPhi, cosPhi, horizontalFovRads / columns, quadHeightRads) > maxError)) {
+        columns++;
+      }
+      ringColumns[j] = Math.max(ringColumns[j], columns);
+      ringColumns[j + 1] = Math.max(ringColumns[j + 1], columns);
+    }
+    return ringColumns;
+  }
+
+  /**
+   * Estimates the largest angle between where a point of a band of triangles is drawn, and where
+   * its interpolated texture coordinates come from in the equirectangular image, which follows
+   * rhumb lines rather than the great circles of the edges. Edges across the band cut the corners of
+   * the columns by a quarter of their width times their height, edges along a ring bow towards the
+   * pole by an eighth of their width squared, and points along long edges are bunched up towards
+   * their ends compared to their interpolated texture coordinates.
+   *
+   * @param sinPhi Largest sine of the latitudes of the edges of the band, in absolute value.
+   * @param cosPhi Largest cosine of the latitudes of the edges of the band.
+   */
+  private static double estimateTextureError(
+      double sinPhi, double cosPhi, double quadWidthRads, double quadHeightRads) {
+    double ringWidth = quadWidthRads * cosPhi;
+    return sinPhi * quadWidthRads * quadHeightRads / 4
+        + sinPhi * cosPhi * quadWidthRads * quadWidthRads / 8
+        + ringWidth * ringWidth * ringWidth / (36 * Math.sqrt(3));
+  }
+
+  /**
+   * Generates an indexed sphere for {@link #MEDIA_DUAL_FISHEYE} media, with texture coordinates that
+   * point straight into the image circles of the two lenses, so that unstitched camera output can be
+   * displayed without first reprojecting it to an equirectangular image.
+   *
+   * <p>The front lens faces straight ahead (-Z) with its image upright, and the back lens faces the
+   * opposite way (+Z), so that its image is mirrored left to right relative to the front one. Each
+   * vertex has texture coordinates in both circles, even those that are outside of one of them, so
+   * that the shader can blend between the two anywhere. Texture coordinates are only meaningful
+   * within the overlap of the circles, and vertices far from it may be well outside of [0, 1].
+   *
+   * <p>This can be called on any thread.
+   *
+   * @param radius Size of the sphere. Must be > 0.
+   * @param latitudes Number of rows that make up the sphere. Must be >= 1.
+   * @param longitudes Number of columns that make up the sphere. Must be >= 1.
+   * @return Vertex and index data of the sphere.
+   */
+  public static MeshData createDualFisheyeSphere(
+      float radius,
+      int latitudes,
+      int longitudes,
+      FisheyeLens frontLens,
+      FisheyeLens backLens) {
+    MeshData mesh = createIndexedSphereSection(
+        radius, latitudes, longitudes, -90, 90, -180, 180, MEDIA_MONOSCOPIC);
+    float[] vertices = mesh.vertices;
+    for (int offset = 0; offset < vertices.length; offset += CPV) {
+      double x = vertices[offset];
+      double y = vertices[offset + 1];
+      double z = vertices[offset + 2];
+      frontLens.project(x, y, -z, vertices, offset + POSITION_COORDS_PER_VERTEX);
+      backLens.project(-x, y, z, vertices, offset + POSITION_COORDS_PER_VERTEX + 2);
+    }
+    return mesh;
+  }
+
+  /**
+   * Generates an indexed cube, puffed out into a sphere, for media in one of the cubemap layouts,
+   * including equi-angular cubemaps. Each face is divided into a grid of quads that are evenly spaced
+   * in the image of the face, so the texture coordinates of every vertex are exact, and only the
+   * interpolation between vertices is approximate.
+   *
+   * <p>This can be called on any thread.
+   *
+   * @param radius Size of the sphere. Must be > 0.
+   * @param subdivisions Number of rows and columns of quads on each face. Must be in [1, 255].
+   * @param layout A LAYOUT_* value of {@link CubemapLayout}.
+   * @param mediaFormat A MEDIA_* value, other than MEDIA_DUAL_FISHEYE. Stereo media has a whole
+   *    cubemap in each half of the frame.
+   * @return Vertex and index data of the cube.
+   */
+  public static MeshData createCubemapSphere(
+      float radius,
+      int subdivisions,
+      int layout,
+      int mediaFormat) {
+    int columns = subdivisions + 1;
+    if (radius <= 0 || subdivisions < 1 || columns * columns > MAX_CHUNK_VERTICES
+        || mediaFormat == MEDIA_DUAL_FISHEYE) {
+      throw new IllegalArgumentException("Invalid parameters for cubemap sphere.");
+    }
+    CubemapLayout cubemap = CubemapLayout.get(layout);
+
+    int faceVertices = columns * columns;
+    float[] vertexData = new float[CubemapLayout.FACE_COUNT * faceVertices * CPV];
+    double[] direction = new double[3];
+    double[] uv = new double[2];
+    int offset = 0;
+    for (int face = 0; face < CubemapLayout.FACE_COUNT; ++face) {
+      for (int j = 0; j <= subdivisions; ++j) {
+        double t = 2.0 * j / subdivisions - 1;
+        for (int i = 0; i <= subdivisions; ++i) {
+          double s = 2.0 * i / subdivisions - 1;
+          cubemap.getDirection(face, s, t, direction);
+          double scale = radius / Math.sqrt(
+              direction[0] * direction[0] + direction[1] * direction[1] + direction[2] * direction[2]);
+          cubemap.getTextureCoordinates(face, s, t, uv);
+          float u = (float) uv[0];
+          float v = (float) uv[1];
+          vertexData[offset] = (float) (direction[0] * scale);
+          vertexData[offset + 1] = (float) (direction[1] * scale);
+          vertexData[offset + 2] = (float) (direction[2] * scale);
+          // Each eye of stereo media has its own half of the frame, as with equirectangular media.
+          if (mediaFormat == MEDIA_STEREO_LEFT_RIGHT) {
+            vertexData[offset + 3] = u / 2;
+            vertexData[offset + 4] = v;
+            vertexData[offset + 5] = u / 2 + .5f;
+            vertexData[offset + 6] = v;
+          } else if (mediaFormat == MEDIA_STEREO_TOP_BOTTOM) {
+            vertexData[offset + 3] = u;
+            vertexData[offset + 4] = v / 2;
+            vertexData[offset + 5] = u;
+            vertexData[offset + 6] = v / 2 + .5f;
+          } else {
+            vertexData[offset + 3] = u;
+            vertexData[offset + 4] = v;
+            vertexData[offset + 5] = u;
+            vertexData[offset + 6] = v;
+          }
+          offset += CPV;
+        }
+      }
+    }
+
+    // Each chunk holds whole faces. The rows of quads of all the faces, one face after another, are
+    // the bands of the index builder, so each face gets its own sectors.
+    int facesPerChunk = MAX_CHUNK_VERTICES / faceVertices;
+    int chunkCount = (CubemapLayout.FACE_COUNT + facesPerChunk - 1) / facesPerChunk;
+    int[] chunkVertexOffsets = new int[chunkCount];
+    int[] chunkIndexOffsets = new int[chunkCount + 1];
+    IndexBuilder builder = new IndexBuilder(
+        6 * subdivisions * subdivisions * CubemapLayout.FACE_COUNT,
+        subdivisions * CubemapLayout.FACE_COUNT, subdivisions,
+        90 * CubemapLayout.FACE_COUNT, 90);
+    for (int face = 0; face < CubemapLayout.FACE_COUNT; ++face) {
+      int chunk = face / facesPerChunk;
+      if (face % facesPerChunk == 0) {
+        chunkVertexOffsets[chunk] = face * faceVertices;
+        chunkIndexOffsets[chunk] = builder.size();
+      }
+      int first = (face % facesPerChunk) * faceVertices;
+      for (int j = 0; j < subdivisions; ++j) {
+        builder.startBand(chunk, face * subdivisions + j);
+        for (int i = 0; i < subdivisions; ++i) {
+          int topLeft = first + j * columns + i;
+          int bottomLeft = topLeft + columns;
+          int sectorColumn = builder.getSectorColumn(i, subdivisions);
+          builder.add(sectorColumn, topLeft, bottomLeft, topLeft + 1);
+          builder.add(sectorColumn, topLeft + 1, bottomLeft, bottomLeft + 1);
+        }
+      }
+    }
+    chunkIndexOffsets[chunkCount] = builder.size();
+
+    return builder.build(vertexData, chunkVertexOffsets, chunkIndexOffsets);
+  }
+
+  private static void checkSphereParameters(
+      float radius,
+      int latitudes,
+      int longitudes,
+      float verticalFovDegrees,
+      float horizontalFovDegrees) {
+    if (radius <= 0
+        || latitudes < 1 || longitudes < 1
+        || verticalFovDegrees <= 0 || verticalFovDegrees > 180
+        || horizontalFovDegrees <= 0 || horizontalFovDegrees > 360) {
+      throw new IllegalArgumentException("Invalid parameters for sphere.");
+    }
+  }
+
+  private static void checkSectionParameters(
+      float radius,
+      int latitudes,
+      int longitudes,
+      float bottomDegrees,
+      float topDegrees,
+      float leftDegrees,
+      float rightDegrees) {
+    if (radius <= 0
+        || latitudes < 1 || longitudes < 1
+        || bottomDegrees < -90 || topDegrees > 90 || bottomDegrees >= topDegrees
+        || leftDegrees >= rightDegrees || rightDegrees - leftDegrees > 360) {
+      throw new IllegalArgumentException("Invalid parameters for sphere section.");
+    }
+  }
+
+  /**
+   * Collects the triangles of an indexed sphere band by band, along with the sector that each of
+   * them belongs to, and then orders them by sector and computes the bounds of each sector. Sectors
+   * are groups of bands and columns, and never span more than one chunk.
+   */
+  private static final class IndexBuilder {
+    private final int latitudes;
+    private final int sectorRows;
+    private final int sectorColumns;
+    private short[] indices;
+    // Sector of each triangle.
+    private int[] triangleSectors;
+    private int size;
+    // A segment is a run of bands that are in the same chunk and the same row of sectors.
+    private int[] segmentChunks;
+    private int segment = -1;
+    private int segmentChunk = -1;
+    private int segmentRow = -1;
+
+    IndexBuilder(
+        int capacity,
+        int latitudes,
+        int longitudes,
+        float verticalFovDegrees,
+        float horizontalFovDegrees) {
+      this.latitudes = latitudes;
+      sectorRows =
+          Math.max(1, Math.min(latitudes, (int) Math.ceil(verticalFovDegrees / SECTOR_DEGREES)));
+      sectorColumns =
+          Math.max(1, Math.min(longitudes, (int) Math.ceil(horizontalFovDegrees / SECTOR_DEGREES)));
+      indices = new short[capacity];
+      triangleSectors = new int[capacity / 3];
+      segmentChunks = new int[latitudes];
+    }
+
+    int size() {
+      return size;
+    }
+
+    /** Starts band j, which is in the given chunk. */
+    void startBand(int chunk, int j) {
+      int row = (int) ((long) j * sectorRows / latitudes);
+      if (chunk != segmentChunk || row != segmentRow) {
+        segment++;
+        segmentChunk = chunk;
+        segmentRow = row;
+        segmentChunks[segment] = chunk;
+      }
+    }
+
+    /** Returns the column of sectors that column i out of the given columns of a ring is in. */
+    int getSectorColumn(int i, int columns) {
+      return (int) ((long) i * sectorColumns / columns);
+    }
+
+    /** Adds a triangle of the current band, with indices relative to the chunk. */
+    void add(int sectorColumn, int a, int b, int c) {
+      triangleSectors[size / 3] = segment * sectorColumns + sectorColumn;
+      indices[size++] = (short) a;
+      indices[size++] = (short) b;
+      indices[size++] = (short) c;
+    }
+
+    MeshData build(float[] vertices, int[] chunkVertexOffsets, int[] chunkIndexOffsets) {
+      // Counting sort of the triangles by sector. Sectors of later chunks always come after the
+      // ones of earlier chunks, so each chunk keeps the same range of indices.
+      int sectorCount = (segment + 1) * sectorColumns;
+      int[] sectorStarts = new int[sectorCount + 1];
+      int triangleCount = size / 3;
+      for (int t = 0; t < triangleCount; ++t) {
+        sectorStarts[triangleSectors[t] + 1]++;
+      }
+      for (int s = 0; s < sectorCount; ++s) {
+        sectorStarts[s + 1] += sectorStarts[s];
+      }
+      short[] sortedIndices = new short[size];
+      int[] next = Arrays.copyOf(sectorStarts, sectorCount);
+      for (int t = 0; t < triangleCount; ++t) {
+        int dst = 3 * next[triangleSectors[t]]++;
+        sortedIndices[dst] = indices[3 * t];
+        sortedIndices[dst + 1] = indices[3 * t + 1];
+        sortedIndices[dst + 2] = indices[3 * t + 2];
+      }
+
+      // Leave out the sectors without any triangles, e.g. those that collapsed into a pole.
+      int[] sectorIndexOffsets = new int[sectorCount + 1];
+      int[] sectorChunks = new int[sectorCount];
+      float[] sectorBounds = new float[sectorCount * SECTOR_BOUNDS_STRIDE];
+      int sectors = 0;
+      for (int s = 0; s < sectorCount; ++s) {
+        if (sectorStarts[s] == sectorStarts[s + 1]) {
+          continue;
+        }
+        int chunk = segmentChunks[s / sectorColumns];
+        sectorIndexOffsets[sectors] = 3 * sectorStarts[s];
+        sectorChunks[sectors] = chunk;
+        computeBounds(vertices, chunkVertexOffsets[chunk], sortedIndices, 3 * sectorStarts[s],
+            3 * sectorStarts[s + 1], sectorBounds, sectors * SECTOR_BOUNDS_STRIDE);
+        sectors++;
+      }
+      sectorIndexOffsets[sectors] = size;
+
+      return new MeshData(
+          vertices,
+          sortedIndices,
+          chunkVertexOffsets,
+          chunkIndexOffsets,
+          Arrays.copyOf(sectorIndexOffsets, sectors + 1),
+          Arrays.copyOf(sectorChunks, sectors),
+          Arrays.copyOf(sectorBounds, sectors * SECTOR_BOUNDS_STRIDE));
+    }
+
+    /**
+     * Computes the bounding cone of the vertices that are used by the given range of indices. Since
+     * the cone is convex, it also contains the triangles between the vertices.
+     */
+    private static void computeBounds(float[] vertices, int firstVertex, short[] indices, int start,
+        int end, float[] bounds, int offset) {
+      // The axis is the average direction of the vertices, which is close enough to the optimum for
+      // the small sectors of a sphere.
+      double ax = 0;
+      double ay = 0;
+      double az = 0;
+      double minDistance = Double.MAX_VALUE;
+      double maxDistance = 0;
+      for (int k = start; k < end; ++k) {
+        int v = (firstVertex + (indices[k] & 0xFFFF)) * CPV;
+        double distance = Math.sqrt(vertices[v] * vertices[v]
+            + vertices[v + 1] * vertices[v + 1] + vertices[v + 2] * vertices[v + 2]);
+        ax += vertices[v] / distance;
+        ay += vertices[v + 1] / distance;
+        az += vertices[v + 2] / distance;
+        minDistance = Math.min(minDistance, distance);
+        maxDistance = Math.max(maxDistance, distance);
+      }
+      double length = Math.sqrt(ax * ax + ay * ay + az * az);
+      double minCos = -1;
+      if (length > 1e-6) {
+        ax /= length;
+        ay /= length;
+        az /= length;
+        minCos = 1;
+        for (int k = start; k < end; ++k) {
+          int v = (firstVertex + (indices[k] & 0xFFFF)) * CPV;
+          double distance = Math.sqrt(vertices[v] * vertices[v]
+              + vertices[v + 1] * vertices[v + 1] + vertices[v + 2] * vertices[v + 2]);
+          double cos = (ax * vertices[v] + ay * vertices[v + 1] + az * vertices[v + 2]) / distance;
+          minCos = Math.min(minCos, cos);
+        }
+      }
+      // Widen the cone slightly, so that rounding never makes it too narrow.
+      double angle = Math.min(Math.acos(Math.max(-1, Math.min(1, minCos))) + 1e-4, Math.PI);
+      bounds[offset] = (float) ax;
+      bounds[offset + 1] = (float) ay;
+      bounds[offset + 2] = (float) az;
+      bounds[offset + 3] = (float) Math.cos(angle);
+      bounds[offset + 4] = (float) Math.sin(angle);
+      // A point between the vertices is at least as far along the axis as the closest vertex, so
+      // it's at least this far from the center.
+      bounds[offset + 5] = (float) (minDistance * Math.max(0, Math.cos(angle)) * 0.999);
+      bounds[offset + 6] = (float) (maxDistance * 1.001);
+    }
+  }
+
+  /**
+   * Everything about a vertex of a UV sphere that only depends on its row or only on its column, so
+   * that the trig functions and the texture coordinate math are evaluated once per row and column
+   * rather than once per vertex. Row j is at latitude phi_j, and column i at longitude theta_i.
+   * The rows and columns span the given section of the sphere.
+   */
+  private static final class SphereTables {
+    private final float radius;
+    private final double[] sinPhi;
+    private final double[] cosPhi;
+    // Texture coordinates of each eye. The media format only affects what goes into these.
+    private final float[] vLeft;
+    private final float[] vRight;
+    // Columns of a sphere with the given number of longitudes.
+    private final ColumnTable columns;
+
+    SphereTables(
+        float radius,
+        int latitudes,
+        int longitudes,
+        float bottomDegrees,
+        float topDegrees,
+        float leftDegrees,
+        float rightDegrees,
+        int mediaFormat) {
+      this.radius = radius;
+
+      // Compute angular size in radians of each UV quad.
+      float verticalFovRads = (float) Math.toRadians(topDegrees - bottomDegrees);
+      float bottomRads = (float) Math.toRadians(bottomDegrees);
+      float quadHeightRads = verticalFovRads / latitudes;
+
+      sinPhi = new double[latitudes + 1];
+      cosPhi = new double[latitudes + 1];
+      vLeft = new float[latitudes + 1];
+      vRight = new float[latitudes + 1];
+      for (int j = 0; j <= latitudes; ++j) {
+        float phi = quadHeightRads * j + bottomRads;
+        sinPhi[j] = Math.sin(phi);
+        cosPhi[j] = Math.cos(phi);
+
+        // Set vertex texture.y data. The "1 - ..." is due to Canvas vs GL coords.
+        float t = j * quadHeightRads / verticalFovRads;
+        if (mediaFormat == MEDIA_STEREO_TOP_BOTTOM) {
+          // For top-bottom media, each eye's y coordinate points to the top or bottom half of the
+          // texture.
+          vLeft[j] = 1 - (t / 2 + .5f);
+          vRight[j] = 1 - t / 2;
+        } else {
+          // For left-right or monoscopic media, the eye's y spans the full height of the texture.
+          vLeft[j] = 1 - t;
+          vRight[j] = 1 - t;
+        }
+      }
+
+      columns = new ColumnTable(longitudes, leftDegrees, rightDegrees, mediaFormat, 0);
+    }
+
+    /**
+     * Writes the vertex at column i and row j at the given offset, and returns the offset after it.
+     */
+    int putVertex(float[] data, int offset, int i, int j) {
+      return putVertex(data, offset, columns, i, j);
+    }
+
+    /**
+     * Writes the vertex at column i of the given columns, and row j, at the given offset, and
+     * returns the offset after it.
+     */
+    int putVertex(float[] data, int offset, ColumnTable columns, int i, int j) {
+      // Set vertex position data as Cartesian coordinates.
+      data[offset] = -(float) (radius * columns.sinTheta[i] * cosPhi[j]);
+      data[offset + 1] = (float) (radius * sinPhi[j]);
+      data[offset + 2] = (float) (radius * columns.cosTheta[i] * cosPhi[j]);
+      data[offset + 3] = columns.uLeft[i];
+      data[offset + 4] = vLeft[j];
+      data[offset + 5] = columns.uRight[i];
+      data[offset + 6] = vRight[j];
+      return offset + CPV;
+    }
+  }
+
+  /**
+   * The part of {@link SphereTables} that depends on the column, for a given number of columns.
+   */
+  private static final class ColumnTable {
+    private final double[] sinTheta;
+    private final double[] cosTheta;
+    private final float[] uLeft;
+    private final float[] uRight;
+
+    ColumnTable(
+        int longitudes, float leftDegrees, float rightDegrees, int mediaFormat, float columnOffset) {
+      float horizontalFovRads = (float) Math.toRadians(rightDegrees - leftDegrees);
+      float leftRads = (float) Math.toRadians(leftDegrees);
+      float quadWidthRads = horizontalFovRads / longitudes;
+
+      sinTheta = new double[longitudes + 1];
+      cosTheta = new double[longitudes + 1];
+      uLeft = new float[longitudes + 1];
+      uRight = new float[longitudes + 1];
+      for (int i = 0; i <= longitudes; ++i) {
+        float theta = quadWidthRads * (i + columnOffset) + (float) Math.PI + leftRads;
+        sinTheta[i] = Math.sin(theta);
+        cosTheta[i] = Math.cos(theta);
+
+        // Set vertex texture.x data.
+        float u = (i + columnOffset) * quadWidthRads / horizontalFovRads;
+        if (mediaFormat == MEDIA_STEREO_LEFT_RIGHT) {
+          // For left-right media, each eye's x coordinate points to the left or right half of the
+          // texture.
+          uLeft[i] = u / 2;
+          uRight[i] = u / 2 + .5f;
+        } else {
+          // For top-bottom or monoscopic media, the eye's x spans the full width of the texture.
+          uLeft[i] = u;
+          uRight[i] = u;
+        }
+      }
+    }
+  }
+}
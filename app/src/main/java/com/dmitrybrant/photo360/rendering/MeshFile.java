@@ -0,0 +1,313 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A mesh stored on disk in the form that GL draws it, so that a mesh can be generated once and then
+ * loaded in a fraction of the time it takes to generate.
+ *
+ * <p>The file is memory-mapped when it's read, and the vertex and index buffers are views straight
+ * into the mapping, so the bulk of the mesh is never copied or converted. Only the small chunk and
+ * sector arrays are read into a {@link MeshData}, which has no vertex or index arrays of its own.
+ *
+ * <p>Everything is little-endian, which is the native byte order of all Android ABIs, so the
+ * buffers can be handed to GL as they are. The file starts with a header of 12 ints:
+ * <pre>
+ *   magic, version, flags, vertexCount, indexCount, chunkCount, sectorCount,
+ *   packedRadius (float), packedTextureOffset (float), packedTextureScale (float), payloadLength, crc
+ * </pre>
+ * followed by the payload: the vertices (in the float layout of {@link MeshData#vertices} or the
+ * {@link PackedVertices} layout), the indices padded to a multiple of 4 bytes, chunkVertexOffsets,
+ * chunkIndexOffsets, and, for meshes with sectors, sectorIndexOffsets, sectorChunks and
+ * sectorBounds. The crc is the CRC32 of the rest of the header and the payload, so that a truncated
+ * or corrupt file is rejected rather than drawn.
+ */
+public final class MeshFile {
+    private static final int MAGIC = 0x5033364D; // "P36M"
+    // This should also be increased whenever the generated meshes change, so that stale files are
+    // regenerated rather than loaded.
+    private static final int VERSION = 3;
+    private static final int HEADER_LENGTH = 48;
+    private static final int CRC_OFFSET = HEADER_LENGTH - 4;
+
+    private static final int FLAG_INDEXED = 1;
+    private static final int FLAG_PACKED = 2;
+
+    private static final int FLOAT_VERTEX_BYTES = MeshData.CPV * 4;
+
+    // Chunk and sector arrays, with no vertices or indices.
+    @NonNull public final MeshData data;
+    // Little-endian vertices, in the PackedVertices layout if packed, or as floats otherwise.
+    @NonNull public final ByteBuffer vertexData;
+    public final boolean packed;
+    // Radius by which packed positions are scaled.
+    public final float packedRadius;
+    // Scale and offset of packed texture coordinates.
+    public final float packedTextureOffset;
+    public final float packedTextureScale;
+    // Little-endian unsigned short indices. Only present for indexed meshes.
+    @Nullable public final ByteBuffer indexData;
+
+    private MeshFile(@NonNull MeshData data, @NonNull ByteBuffer vertexData, boolean packed, float packedRadius,
+                     float packedTextureOffset, float packedTextureScale, @Nullable ByteBuffer indexData) {
+        this.data = data;
+        this.vertexData = vertexData;
+        this.packed = packed;
+        this.packedRadius = packedRadius;
+        this.packedTextureOffset = packedTextureOffset;
+        this.packedTextureScale = packedTextureScale;
+        this.indexData = indexData;
+    }
+
+    /**
+     * Writes the given mesh to a file, replacing the file only once it's completely written.
+     *
+     * @param packedVertices The packed vertices of the mesh, if it's to be drawn from those rather
+     *    than from its float vertices.
+     */
+    public static void write(@NonNull File file, @NonNull MeshData mesh, @Nullable PackedVertices packedVertices)
+            throws IOException {
+        int vertexCount = mesh.getVertexCount();
+        int indexCount = mesh.getIndexCount();
+        int chunkCount = mesh.getChunkCount();
+        int sectorCount = mesh.getSectorCount();
+        int payloadLength = getPayloadLength(vertexCount, indexCount, chunkCount, sectorCount, packedVertices != null);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt((mesh.isIndexed() ? FLAG_INDEXED : 0) | (packedVertices != null ? FLAG_PACKED : 0));
+        buffer.putInt(vertexCount);
+        buffer.putInt(indexCount);
+        buffer.putInt(chunkCount);
+        buffer.putInt(sectorCount);
+        buffer.putFloat(packedVertices != null ? packedVertices.radius : 1);
+        buffer.putFloat(packedVertices != null ? packedVertices.textureOffset : 0);
+        buffer.putFloat(packedVertices != null ? packedVertices.textureScale : 1);
+        buffer.putInt(payloadLength);
+        buffer.putInt(0); // CRC, filled in below.
+
+        if (packedVertices != null) {
+            buffer.asShortBuffer().put(packedVertices.data);
+            buffer.position(buffer.position() + packedVertices.data.length * 2);
+        } else {
+            buffer.asFloatBuffer().put(mesh.vertices, 0, vertexCount * MeshData.CPV);
+            buffer.position(buffer.position() + vertexCount * FLOAT_VERTEX_BYTES);
+        }
+        if (mesh.isIndexed()) {
+            buffer.asShortBuffer().put(mesh.indices, 0, indexCount);
+            buffer.position(buffer.position() + align(indexCount * 2));
+            putInts(buffer, mesh.chunkVertexOffsets);
+            putInts(buffer, mesh.chunkIndexOffsets);
+            if (sectorCount > 0) {
+                putInts(buffer, mesh.sectorIndexOffsets);
+                putInts(buffer, mesh.sectorChunks);
+                buffer.asFloatBuffer().put(mesh.sectorBounds, 0, sectorCount * MeshData.SECTOR_BOUNDS_STRIDE);
+            }
+        }
+
+        byte[] bytes = buffer.array();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, CRC_OFFSET);
+        crc.update(bytes, HEADER_LENGTH, payloadLength);
+        buffer.putInt(CRC_OFFSET, (int) crc.getValue());
+
+        // A unique temporary file, in case another thread is writing the same mesh.
+        File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(bytes);
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * Maps the given file and checks its integrity. This reads the whole file once to verify its
+     * checksum, so it should not be called on the main thread.
+     *
+     * @throws IOException If the file can't be read, or isn't a valid mesh file of this version.
+     */
+    @NonNull
+    public static MeshFile read(@NonNull File file) throws IOException {
+        ByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid mesh file size: " + size);
+            }
+            // The mapping stays valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a mesh file of version " + VERSION);
+        }
+        int flags = buffer.getInt(8);
+        int vertexCount = buffer.getInt(12);
+        int indexCount = buffer.getInt(16);
+        int chunkCount = buffer.getInt(20);
+        int sectorCount = buffer.getInt(24);
+        float packedRadius = buffer.getFloat(28);
+        float packedTextureOffset = buffer.getFloat(32);
+        float packedTextureScale = buffer.getFloat(36);
+        int payloadLength = buffer.getInt(40);
+        boolean indexed = (flags & FLAG_INDEXED) != 0;
+        boolean packed = (flags & FLAG_PACKED) != 0;
+        if (vertexCount < 0 || indexCount < 0 || chunkCount < 0 || sectorCount < 0
+                || indexed != (chunkCount > 0) || (!indexed && (indexCount != 0 || sectorCount != 0))
+                || (long) HEADER_LENGTH + payloadLength != buffer.capacity()
+                || getPayloadLength(vertexCount, indexCount, chunkCount, sectorCount, packed) != payloadLength) {
+            throw new IOException("Inconsistent mesh file header.");
+        }
+        if (getCrc(buffer) != buffer.getInt(CRC_OFFSET)) {
+            throw new IOException("Mesh file checksum mismatch.");
+        }
+
+        int vertexBytes = vertexCount * (packed ? PackedVertices.BYTES_PER_VERTEX : FLOAT_VERTEX_BYTES);
+        ByteBuffer vertexData = slice(buffer, HEADER_LENGTH, vertexBytes);
+        ByteBuffer indexData = null;
+        MeshData data;
+        if (indexed) {
+            int position = HEADER_LENGTH + vertexBytes;
+            indexData = slice(buffer, position, indexCount * 2);
+            buffer.position(position + align(indexCount * 2));
+            int[] chunkVertexOffsets = getInts(buffer, chunkCount);
+            int[] chunkIndexOffsets = getInts(buffer, chunkCount + 1);
+            int[] sectorIndexOffsets = null;
+            int[] sectorChunks = null;
+            float[] sectorBounds = null;
+            if (sectorCount > 0) {
+                sectorIndexOffsets = getInts(buffer, sectorCount + 1);
+                sectorChunks = getInts(buffer, sectorCount);
+                sectorBounds = new float[sectorCount * MeshData.SECTOR_BOUNDS_STRIDE];
+                buffer.asFloatBuffer().get(sectorBounds);
+            }
+            checkRanges(chunkVertexOffsets, chunkIndexOffsets, sectorIndexOffsets, sectorChunks, vertexCount, indexCount);
+            data = new MeshData(vertexCount, chunkVertexOffsets, chunkIndexOffsets,
+                    sectorIndexOffsets, sectorChunks, sectorBounds);
+        } else {
+            data = new MeshData(vertexCount, null, null, null, null, null);
+        }
+        return new MeshFile(data, vertexData, packed, packedRadius, packedTextureOffset, packedTextureScale,
+                indexData);
+    }
+
+    private static int getPayloadLength(int vertexCount, int indexCount, int chunkCount, int sectorCount,
+                                        boolean packed) {
+        long length = (long) vertexCount * (packed ? PackedVertices.BYTES_PER_VERTEX : FLOAT_VERTEX_BYTES);
+        if (chunkCount > 0) {
+            length += align(indexCount * 2L) + 4L * (2 * chunkCount + 1);
+        }
+        if (sectorCount > 0) {
+            length += 4L * (2 * sectorCount + 1 + sectorCount * MeshData.SECTOR_BOUNDS_STRIDE);
+        }
+        // An impossible length, which never matches a real file.
+        return length <= Integer.MAX_VALUE - HEADER_LENGTH ? (int) length : -1;
+    }
+
+    /**
+     * Checks that the chunks and sectors only refer to vertices and indices that are in the file, so
+     * that a file that was written by a buggy version can't make GL read out of bounds.
+     */
+    private static void checkRanges(@NonNull int[] chunkVertexOffsets, @NonNull int[] chunkIndexOffsets,
+                                    @Nullable int[] sectorIndexOffsets, @Nullable int[] sectorChunks,
+                                    int vertexCount, int indexCount) throws IOException {
+        int chunkCount = chunkVertexOffsets.length;
+        if (chunkIndexOffsets[0] != 0 || chunkIndexOffsets[chunkCount] != indexCount) {
+            throw new IOException("Invalid mesh chunks.");
+        }
+        for (int c = 0; c < chunkCount; c++) {
+            if (chunkVertexOffsets[c] < 0 || chunkVertexOffsets[c] >= vertexCount
+                    || chunkIndexOffsets[c] > chunkIndexOffsets[c + 1]) {
+                throw new IOException("Invalid mesh chunks.");
+            }
+        }
+        if (sectorIndexOffsets == null || sectorChunks == null) {
+            return;
+        }
+        for (int s = 0; s < sectorChunks.length; s++) {
+            int chunk = sectorChunks[s];
+            if (chunk < 0 || chunk >= chunkCount || sectorIndexOffsets[s] > sectorIndexOffsets[s + 1]
+                    || sectorIndexOffsets[s] < chunkIndexOffsets[chunk]
+                    || sectorIndexOffsets[s + 1] > chunkIndexOffsets[chunk + 1]) {
+                throw new IOException("Invalid mesh sectors.");
+            }
+        }
+    }
+
+    private static int getCrc(@NonNull ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[64 * 1024];
+        ByteBuffer source = buffer.duplicate();
+        source.limit(CRC_OFFSET);
+        while (source.hasRemaining()) {
+            int length = Math.min(source.remaining(), bytes.length);
+            source.get(bytes, 0, length);
+            crc.update(bytes, 0, length);
+        }
+        source.limit(source.capacity());
+        source.position(HEADER_LENGTH);
+        while (source.hasRemaining()) {
+            int length = Math.min(source.remaining(), bytes.length);
+            source.get(bytes, 0, length);
+            crc.update(bytes, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    @NonNull
+    private static ByteBuffer slice(@NonNull ByteBuffer buffer, int position, int length) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(position);
+        source.limit(position + length);
+        return source.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void putInts(@NonNull ByteBuffer buffer, @NonNull int[] values) {
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + values.length * 4);
+    }
+
+    @NonNull
+    private static int[] getInts(@NonNull ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    private static int align(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static long align(long length) {
+        return (length + 3) & ~3L;
+    }
+}
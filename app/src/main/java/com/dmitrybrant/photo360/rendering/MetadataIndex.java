@@ -0,0 +1,343 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.dmitrybrant.photo360.rendering.PhotoSphereTools.JpegMetadata;
+import com.dmitrybrant.photo360.rendering.PhotoSphereTools.PhotoSphereData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index of image metadata, keyed by the Uri of the image, so that the metadata of an
+ * image that was seen before is known before any of it is downloaded or read.
+ *
+ * <p>Each entry carries a validator string, such as an HTTP ETag or a file's modification time,
+ * and is only returned when the validator still matches. The index is stored as an append-only log
+ * of records, with the latest record for a Uri taking precedence. The log is read once when the
+ * index is opened, into an in-memory open-addressing hash table, and is compacted when it has grown
+ * to several times the number of live entries. A partially written or corrupt record at the end of
+ * the log (e.g. from the process being killed) is simply truncated away.
+ */
+public final class MetadataIndex {
+    private static final int MAGIC = 0x50333649; // "P36I"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+    private static final int MIN_CAPACITY = 64;
+
+    private final File file;
+    @Nullable private FileOutputStream out;
+
+    // Open-addressing hash table with linear probing. A hash of zero marks an empty slot.
+    private long[] hashes = new long[MIN_CAPACITY];
+    private Entry[] entries = new Entry[MIN_CAPACITY];
+    private int size;
+    private int recordCount;
+
+    /**
+     * Opens the index stored in the given file, creating it if it doesn't exist yet. This reads the
+     * whole log, so it should not be called on the main thread.
+     */
+    @NonNull
+    public static MetadataIndex open(@NonNull File file) throws IOException {
+        MetadataIndex index = new MetadataIndex(file);
+        index.load();
+        return index;
+    }
+
+    private MetadataIndex(@NonNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the entry for the given Uri, or null if there isn't one, or if its validator doesn't
+     * match the given one.
+     */
+    @Nullable
+    public synchronized Entry get(@NonNull String uri, @NonNull String validator) {
+        long hash = hash(uri);
+        int mask = hashes.length - 1;
+        for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == hash && entries[i].uri.equals(uri)) {
+                return entries[i].validator.equals(validator) ? entries[i] : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds or replaces the entry for its Uri, and appends it to the log.
+     */
+    public synchronized void put(@NonNull Entry entry) throws IOException {
+        byte[] record = encode(entry);
+        if (record.length > MAX_RECORD_LENGTH) {
+            return;
+        }
+        insert(entry);
+        if (recordCount > size * 3 + MIN_CAPACITY) {
+            compact();
+        } else {
+            if (out == null) {
+                out = new FileOutputStream(file, true);
+            }
+            out.write(record);
+            recordCount++;
+        }
+    }
+
+    /**
+     * Returns the number of entries in the index.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void insert(@NonNull Entry entry) {
+        if ((size + 1) * 2 > hashes.length) {
+            rehash(hashes.length * 2);
+        }
+        long hash = hash(entry.uri);
+        int mask = hashes.length - 1;
+        int i = (int) hash & mask;
+        for (; hashes[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == hash && entries[i].uri.equals(entry.uri)) {
+                entries[i] = entry;
+                return;
+            }
+        }
+        hashes[i] = hash;
+        entries[i] = entry;
+        size++;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldHashes = hashes;
+        Entry[] oldEntries = entries;
+        hashes = new long[capacity];
+        entries = new Entry[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldHashes.length; j++) {
+            if (oldHashes[j] == 0) {
+                continue;
+            }
+            int i = (int) oldHashes[j] & mask;
+            while (hashes[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            hashes[i] = oldHashes[j];
+            entries[i] = oldEntries[j];
+        }
+    }
+
+    private void load() throws IOException {
+        if (!file.exists() || !readLog()) {
+            writeLog();
+        }
+    }
+
+    /**
+     * Reads all valid records from the log, and truncates anything after the last valid record.
+     * Returns false if the file isn't an index log at all.
+     */
+    private boolean readLog() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] bytes = new byte[(int) Math.min(raf.length(), Integer.MAX_VALUE)];
+            raf.readFully(bytes);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (bytes.length < HEADER_LENGTH || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            int validLength = HEADER_LENGTH;
+            while (validLength + 4 <= bytes.length) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH || validLength + 8L + length > bytes.length) {
+                    break;
+                }
+                crc.reset();
+                crc.update(bytes, validLength + 4, length);
+                in.skipBytes(length);
+                if ((int) crc.getValue() != in.readInt()) {
+                    break;
+                }
+                insert(decode(bytes, validLength + 4, length));
+                recordCount++;
+                validLength += 8 + length;
+            }
+            if (validLength < raf.length()) {
+                raf.setLength(validLength);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Rewrites the log with only the live entries.
+     */
+    private void compact() throws IOException {
+        close();
+        writeLog();
+    }
+
+    private void writeLog() throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        int count = 0;
+        try (DataOutputStream logOut = new DataOutputStream(new FileOutputStream(tempFile))) {
+            logOut.writeInt(MAGIC);
+            logOut.writeInt(VERSION);
+            for (Entry entry : entries) {
+                if (entry != null) {
+                    logOut.write(encode(entry));
+                    count++;
+                }
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+        recordCount = count;
+    }
+
+    @NonNull
+    private static byte[] encode(@NonNull Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // length, filled in below.
+        out.writeUTF(entry.uri);
+        out.writeUTF(entry.validator);
+        out.writeLong(entry.contentHash);
+        out.writeInt(entry.imageWidth);
+        out.writeInt(entry.imageHeight);
+        out.writeBoolean(entry.isStereo);
+        PhotoSphereData data = entry.photoSphereData;
+        out.writeBoolean(data != null);
+        if (data != null) {
+            out.writeBoolean(data.usePanoramaViewer);
+            out.writeBoolean(data.isPhotoSphere);
+            out.writeUTF(data.projectionType != null ? data.projectionType : "");
+            out.writeInt(data.fullPanoWidthPixels);
+            out.writeInt(data.fullPanoHeightPixels);
+            out.writeInt(data.croppedAreaTopPixels);
+            out.writeInt(data.croppedAreaLeftPixels);
+            out.writeInt(data.croppedAreaImageWidthPixels);
+            out.writeInt(data.croppedAreaImageHeightPixels);
+            out.writeFloat(data.poseHeadingDegrees);
+        }
+        out.writeInt(0); // CRC, filled in below.
+
+        byte[] record = bytes.toByteArray();
+        int length = record.length - 8;
+        CRC32 crc = new CRC32();
+        crc.update(record, 4, length);
+        writeInt(record, 0, length);
+        writeInt(record, record.length - 4, (int) crc.getValue());
+        return record;
+    }
+
+    @NonNull
+    private static Entry decode(@NonNull byte[] bytes, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        String uri = in.readUTF();
+        String validator = in.readUTF();
+        long contentHash = in.readLong();
+        int imageWidth = in.readInt();
+        int imageHeight = in.readInt();
+        boolean isStereo = in.readBoolean();
+        PhotoSphereData data = null;
+        if (in.readBoolean()) {
+            data = new PhotoSphereData();
+            data.usePanoramaViewer = in.readBoolean();
+            data.isPhotoSphere = in.readBoolean();
+            data.projectionType = in.readUTF();
+            data.fullPanoWidthPixels = in.readInt();
+            data.fullPanoHeightPixels = in.readInt();
+            data.croppedAreaTopPixels = in.readInt();
+            data.croppedAreaLeftPixels = in.readInt();
+            data.croppedAreaImageWidthPixels = in.readInt();
+            data.croppedAreaImageHeightPixels = in.readInt();
+            data.poseHeadingDegrees = in.readFloat();
+        }
+        return new Entry(uri, validator, data, imageWidth, imageHeight, isStereo, contentHash);
+    }
+
+    private static void writeInt(@NonNull byte[] bytes, int pos, int value) {
+        bytes[pos] = (byte) (value >>> 24);
+        bytes[pos + 1] = (byte) (value >>> 16);
+        bytes[pos + 2] = (byte) (value >>> 8);
+        bytes[pos + 3] = (byte) value;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the Uri, never zero.
+     */
+    private static long hash(@NonNull String uri) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : uri.getBytes(Charset.forName("UTF-8"))) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Metadata of a single image, as stored in the index.
+     */
+    public static final class Entry {
+        @NonNull public final String uri;
+        @NonNull public final String validator;
+        @Nullable public final PhotoSphereData photoSphereData;
+        public final int imageWidth;
+        public final int imageHeight;
+        public final boolean isStereo;
+        public final long contentHash;
+
+        public Entry(@NonNull String uri, @NonNull String validator, @Nullable PhotoSphereData photoSphereData,
+                     int imageWidth, int imageHeight, boolean isStereo, long contentHash) {
+            this.uri = uri;
+            this.validator = validator;
+            this.photoSphereData = photoSphereData;
+            this.imageWidth = imageWidth;
+            this.imageHeight = imageHeight;
+            this.isStereo = isStereo;
+            this.contentHash = contentHash;
+        }
+
+        public Entry(@NonNull String uri, @NonNull String validator, @NonNull JpegMetadata metadata) {
+            this(uri, validator, metadata.photoSphereData, metadata.imageWidth, metadata.imageHeight,
+                    metadata.isStereo(), metadata.contentHash);
+        }
+    }
+}
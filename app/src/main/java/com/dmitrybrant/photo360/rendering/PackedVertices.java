@@ -0,0 +1,174 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Compact encoding of the vertices of a {@link MeshData}, at 16 bytes per vertex instead of 28.
+ *
+ * <p>Each vertex is 8 shorts: [x, y, z, 0, u_left, v_left, u_right, v_right]. The position is a
+ * signed normalized short, relative to the radius of the mesh, which is passed to the shader as a
+ * uniform. The fourth short only pads the position to 8 bytes, so that the texture coordinates are
+ * 4-byte aligned. The texture coordinates are unsigned normalized shorts, relative to a range that
+ * is also passed as uniforms. The range is [0, 1] for most meshes, but the texture coordinates of
+ * dual fisheye meshes reach outside of their image circles, and those outside of [0, 1] are still
+ * needed to blend the lenses across the seam.
+ *
+ * <p>Since the position is relative to the radius, its angular error doesn't depend on the radius:
+ * each component is within 0.5 / 32767 of the exact value, so the direction of a vertex is off by
+ * at most about 2.7e-5 radians (0.0015 degrees), which is 0.04 pixels of an 8K equirectangular
+ * image. Texture coordinates in [0, 1] are within 0.5 / 65535, or 0.06 pixels of an 8K texture, and
+ * those of a wider range are within that much times its width.
+ */
+public final class PackedVertices {
+    public static final int SHORTS_PER_VERTEX = 8;
+    public static final int BYTES_PER_VERTEX = SHORTS_PER_VERTEX * 2;
+    // Offsets in shorts of each attribute within a vertex.
+    public static final int POSITION_OFFSET = 0;
+    public static final int TEXTURE_OFFSET = 4;
+
+    private static final int SHORT_SCALE = Short.MAX_VALUE;
+    private static final int UNSIGNED_SHORT_SCALE = 0xFFFF;
+
+    // Radius by which the normalized positions are to be multiplied.
+    public final float radius;
+    // The normalized texture coordinates are to be multiplied by the scale, and then offset, which
+    // maps [0, 1] to the range of the texture coordinates of the mesh.
+    public final float textureOffset;
+    public final float textureScale;
+    /* package */ final short[] data;
+
+    private PackedVertices(float radius, float textureOffset, float textureScale, @NonNull short[] data) {
+        this.radius = radius;
+        this.textureOffset = textureOffset;
+        this.textureScale = textureScale;
+        this.data = data;
+    }
+
+    /**
+     * Packs the vertices of the given mesh.
+     */
+    @NonNull
+    public static PackedVertices encode(@NonNull MeshData mesh) {
+        float[] vertices = mesh.vertices;
+        int vertexCount = mesh.getVertexCount();
+
+        // Positions are normalized to the largest coordinate, which for a sphere is its radius.
+        float radius = 0;
+        for (int v = 0; v < vertexCount; v++) {
+            for (int c = 0; c < MeshData.POSITION_COORDS_PER_VERTEX; c++) {
+                radius = Math.max(radius, Math.abs(vertices[v * MeshData.CPV + c]));
+            }
+        }
+        if (radius == 0) {
+            radius = 1;
+        }
+
+        // The range of the texture coordinates always includes [0, 1], so that the texture
+        // coordinates of ordinary meshes keep the full precision of the normalized shorts.
+        float minTexture = 0;
+        float maxTexture = 1;
+        for (int v = 0; v < vertexCount; v++) {
+            for (int c = 0; c < MeshData.TEXTURE_COORDS_PER_VERTEX; c++) {
+                float t = vertices[v * MeshData.CPV + MeshData.POSITION_COORDS_PER_VERTEX + c];
+                minTexture = Math.min(minTexture, t);
+                maxTexture = Math.max(maxTexture, t);
+            }
+        }
+        float textureScale = maxTexture - minTexture;
+
+        short[] data = new short[vertexCount * SHORTS_PER_VERTEX];
+        for (int v = 0; v < vertexCount; v++) {
+            int src = v * MeshData.CPV;
+            int dst = v * SHORTS_PER_VERTEX;
+            for (int c = 0; c < MeshData.POSITION_COORDS_PER_VERTEX; c++) {
+                data[dst + POSITION_OFFSET + c] = (short) Math.round(vertices[src + c] / radius * SHORT_SCALE);
+            }
+            for (int c = 0; c < MeshData.TEXTURE_COORDS_PER_VERTEX; c++) {
+                float t = (vertices[src + MeshData.POSITION_COORDS_PER_VERTEX + c] - minTexture) / textureScale;
+                // Only rounding can take t out of [0, 1].
+                t = Math.min(Math.max(t, 0), 1);
+                data[dst + TEXTURE_OFFSET + c] = (short) Math.round(t * UNSIGNED_SHORT_SCALE);
+            }
+        }
+        return new PackedVertices(radius, minTexture, textureScale, data);
+    }
+
+    /**
+     * Unpacks the vertices into the layout of {@link MeshData#vertices}, the same way that GL and
+     * the vertex shader interpret them.
+     */
+    @NonNull
+    public float[] decode() {
+        int vertexCount = getVertexCount();
+        float[] vertices = new float[vertexCount * MeshData.CPV];
+        for (int v = 0; v < vertexCount; v++) {
+            int src = v * SHORTS_PER_VERTEX;
+            int dst = v * MeshData.CPV;
+            for (int c = 0; c < MeshData.POSITION_COORDS_PER_VERTEX; c++) {
+                // GL maps -32768 to -1 as well.
+                vertices[dst + c] = Math.max(data[src + POSITION_OFFSET + c] / (float) SHORT_SCALE, -1) * radius;
+            }
+            for (int c = 0; c < MeshData.TEXTURE_COORDS_PER_VERTEX; c++) {
+                vertices[dst + MeshData.POSITION_COORDS_PER_VERTEX + c] =
+                        (data[src + TEXTURE_OFFSET + c] & 0xFFFF) / (float) UNSIGNED_SHORT_SCALE * textureScale
+                                + textureOffset;
+            }
+        }
+        return vertices;
+    }
+
+    public int getVertexCount() {
+        return data.length / SHORTS_PER_VERTEX;
+    }
+
+    /**
+     * Returns the largest angle, in radians, between the direction of a vertex of the given mesh and
+     * the direction of the same vertex after being packed.
+     */
+    public static double getMaxAngularError(@NonNull MeshData mesh, @NonNull PackedVertices packed) {
+        float[] decoded = packed.decode();
+        double maxError = 0;
+        for (int v = 0; v < mesh.getVertexCount(); v++) {
+            int i = v * MeshData.CPV;
+            double ax = mesh.vertices[i], ay = mesh.vertices[i + 1], az = mesh.vertices[i + 2];
+            double bx = decoded[i], by = decoded[i + 1], bz = decoded[i + 2];
+            // atan2 of the cross and dot products stays accurate for tiny angles, unlike acos.
+            double cx = ay * bz - az * by, cy = az * bx - ax * bz, cz = ax * by - ay * bx;
+            double angle = Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz), ax * bx + ay * by + az * bz);
+            maxError = Math.max(maxError, angle);
+        }
+        return maxError;
+    }
+
+    /**
+     * Returns the largest difference between a texture coordinate of the given mesh and the same
+     * coordinate after being packed.
+     */
+    public static double getMaxTextureError(@NonNull MeshData mesh, @NonNull PackedVertices packed) {
+        float[] decoded = packed.decode();
+        double maxError = 0;
+        for (int v = 0; v < mesh.getVertexCount(); v++) {
+            for (int c = 0; c < MeshData.TEXTURE_COORDS_PER_VERTEX; c++) {
+                int i = v * MeshData.CPV + MeshData.POSITION_COORDS_PER_VERTEX + c;
+                maxError = Math.max(maxError, Math.abs(mesh.vertices[i] - decoded[i]));
+            }
+        }
+        return maxError;
+    }
+}
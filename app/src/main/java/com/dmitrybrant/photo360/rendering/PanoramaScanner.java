@@ -0,0 +1,355 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.dmitrybrant.photo360.rendering.PhotoSphereTools.JpegMetadata;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the metadata of many images at once, such as a whole photo library, using a bounded pool of
+ * worker threads. Only the header of each image is read, through
+ * {@link PhotoSphereTools#getMetadata(FileChannel)}, and images that are already in the
+ * {@link MetadataIndex} with a matching validator aren't opened at all.
+ */
+public final class PanoramaScanner {
+    // Number of sources below which a task scans them itself instead of splitting them further.
+    private static final int SPLIT_THRESHOLD = 8;
+    private static final long PROGRESS_INTERVAL_NANOS = 100_000_000L;
+    // Characters besides letters and digits that Uri.encode leaves as they are, plus the slash.
+    private static final String URI_UNRESERVED = "_-!.~'()*/";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final int parallelism;
+    @Nullable private final MetadataIndex index;
+    private volatile boolean isCancelled;
+
+    /**
+     * An image to be scanned.
+     */
+    public interface Source {
+        /** The key of the image in the index, normally its Uri. */
+        @NonNull String getKey();
+
+        /** A string that changes whenever the image changes, or null if there is none. */
+        @Nullable String getValidator();
+
+        /** Opens the image for reading. The channel is closed once the header is read. */
+        @NonNull FileChannel open() throws IOException;
+    }
+
+    /**
+     * Receives progress updates while scanning. This is called from the worker threads, but never
+     * from more than one at a time.
+     */
+    public interface ProgressListener {
+        void onProgress(@NonNull Progress progress);
+    }
+
+    /**
+     * @param parallelism Maximum number of images that are scanned at the same time.
+     * @param index Index that is consulted before opening each image, and updated with the images
+     *    that weren't in it. May be null.
+     */
+    public PanoramaScanner(int parallelism, @Nullable MetadataIndex index) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.index = index;
+    }
+
+    /**
+     * Scans all of the given images, blocking until they are done or until {@link #cancel()} is
+     * called. Images that can't be read are left out of the result, and so are the ones that
+     * weren't scanned yet when the scan was cancelled.
+     */
+    @WorkerThread
+    @NonNull
+    public List<MetadataIndex.Entry> scan(@NonNull List<? extends Source> sources, @Nullable ProgressListener listener) {
+        ScanState state = new ScanState(sources, listener);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ScanTask(state, 0, sources.size()));
+        } finally {
+            pool.shutdown();
+        }
+        state.reportProgress(true);
+
+        List<MetadataIndex.Entry> results = new ArrayList<>(sources.size());
+        for (MetadataIndex.Entry entry : state.results) {
+            if (entry != null) {
+                results.add(entry);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stops a scan that is in progress. Images that are being read at the moment are still finished.
+     */
+    public void cancel() {
+        isCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * Lists all the JPEG and MPO files in the given directory and its subdirectories, keyed by their
+     * file:// Uri, as given by {@link #getFileUri(File)}.
+     */
+    @WorkerThread
+    @NonNull
+    public static List<FileSource> listFiles(@NonNull File directory) {
+        List<FileSource> sources = new ArrayList<>();
+        Deque<File> directories = new ArrayDeque<>();
+        directories.push(directory);
+        while (!directories.isEmpty()) {
+            File[] files = directories.pop().listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    directories.push(file);
+                } else if (isJpegName(file.getName())) {
+                    sources.add(new FileSource(file, getFileUri(file)));
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Returns the same string as Uri.fromFile(file).toString(), which is how MediaLoader keys local
+     * files in the index, without depending on the Android framework. Everything in the absolute
+     * path other than slashes and the characters that Uri.encode leaves alone is percent-encoded as
+     * UTF-8, so e.g. a space becomes %20.
+     */
+    @NonNull
+    public static String getFileUri(@NonNull File file) {
+        byte[] path = file.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(path.length + 16).append("file://");
+        for (byte b : path) {
+            int c = b & 0xFF;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || URI_UNRESERVED.indexOf(c) >= 0) {
+                sb.append((char) c);
+            } else {
+                sb.append('%').append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isJpegName(@NonNull String name) {
+        String lowerName = name.toLowerCase(Locale.ROOT);
+        return lowerName.endsWith(".jpg") || lowerName.endsWith(".jpeg") || lowerName.endsWith(".mpo");
+    }
+
+    @Nullable
+    private MetadataIndex.Entry scanSource(@NonNull Source source, @NonNull ScanState state) {
+        String key = source.getKey();
+        String validator = source.getValidator();
+        if (index != null && validator != null) {
+            MetadataIndex.Entry entry = index.get(key, validator);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        MetadataIndex.Entry entry;
+        try (FileChannel channel = source.open()) {
+            JpegMetadata metadata = PhotoSphereTools.getMetadata(channel);
+            state.bytesRead.addAndGet(metadata.headerLength);
+            if (metadata.imageWidth <= 0 || metadata.imageHeight <= 0) {
+                // Not a JPEG after all.
+                state.filesFailed.incrementAndGet();
+                return null;
+            }
+            entry = new MetadataIndex.Entry(key, validator != null ? validator : "", metadata);
+        } catch (IOException | RuntimeException e) {
+            // Unreadable or malformed files are just left out.
+            state.filesFailed.incrementAndGet();
+            return null;
+        }
+        if (index != null && validator != null) {
+            try {
+                index.put(entry);
+            } catch (IOException e) {
+                // The entry will just be scanned again next time.
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Scans a range of the sources, splitting it in half for other workers to steal while it's large.
+     */
+    @SuppressWarnings("serial") // Never serialized.
+    private final class ScanTask extends RecursiveAction {
+        private final ScanState state;
+        private final int start;
+        private final int end;
+
+        ScanTask(@NonNull ScanState state, int start, int end) {
+            this.state = state;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > SPLIT_THRESHOLD) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new ScanTask(state, start, middle), new ScanTask(state, middle, end));
+                return;
+            }
+            for (int i = start; i < end && !isCancelled; i++) {
+                state.results[i] = scanSource(state.sources.get(i), state);
+                state.filesScanned.incrementAndGet();
+                state.reportProgress(false);
+            }
+        }
+    }
+
+    private final class ScanState {
+        final List<? extends Source> sources;
+        final MetadataIndex.Entry[] results;
+        @Nullable final ProgressListener listener;
+        final long startTime = System.nanoTime();
+        final AtomicInteger filesScanned = new AtomicInteger();
+        final AtomicInteger filesFailed = new AtomicInteger();
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong lastReportTime = new AtomicLong(startTime);
+
+        ScanState(@NonNull List<? extends Source> sources, @Nullable ProgressListener listener) {
+            this.sources = sources;
+            this.results = new MetadataIndex.Entry[sources.size()];
+            this.listener = listener;
+        }
+
+        void reportProgress(boolean isFinal) {
+            if (listener == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            long lastTime = lastReportTime.get();
+            // Only one worker gets to report each interval.
+            if (!isFinal && (now - lastTime < PROGRESS_INTERVAL_NANOS || !lastReportTime.compareAndSet(lastTime, now))) {
+                return;
+            }
+            synchronized (this) {
+                listener.onProgress(new Progress(filesScanned.get(), filesFailed.get(), sources.size(),
+                        bytesRead.get(), now - startTime, isCancelled));
+            }
+        }
+    }
+
+    /**
+     * Snapshot of how far along a scan is.
+     */
+    public static final class Progress {
+        public final int filesScanned;
+        public final int filesFailed;
+        public final int filesTotal;
+        public final long bytesRead;
+        public final long elapsedNanos;
+        public final boolean isCancelled;
+
+        Progress(int filesScanned, int filesFailed, int filesTotal, long bytesRead, long elapsedNanos, boolean isCancelled) {
+            this.filesScanned = filesScanned;
+            this.filesFailed = filesFailed;
+            this.filesTotal = filesTotal;
+            this.bytesRead = bytesRead;
+            this.elapsedNanos = elapsedNanos;
+            this.isCancelled = isCancelled;
+        }
+
+        public float getFilesPerSecond() {
+            return elapsedNanos > 0 ? filesScanned * 1e9f / elapsedNanos : 0;
+        }
+
+        public float getMegabytesRead() {
+            return bytesRead / (1024f * 1024f);
+        }
+
+        public float getMegabytesPerSecond() {
+            return elapsedNanos > 0 ? getMegabytesRead() * 1e9f / elapsedNanos : 0;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d/%d files (%d failed), %.1f MB, %.0f files/s, %.1f MB/s",
+                    filesScanned, filesTotal, filesFailed, getMegabytesRead(), getFilesPerSecond(), getMegabytesPerSecond());
+        }
+    }
+
+    /**
+     * A source that is a plain file.
+     */
+    public static final class FileSource implements Source {
+        @NonNull private final File file;
+        @NonNull private final String key;
+
+        public FileSource(@NonNull File file, @NonNull String key) {
+            this.file = file;
+            this.key = key;
+        }
+
+        @NonNull
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Same format as the validator that MediaLoader uses for local files: modification time in
+         * seconds, and size.
+         */
+        @NonNull
+        @Override
+        public String getValidator() {
+            return (file.lastModified() / 1000) + ":" + file.length();
+        }
+
+        @NonNull
+        @Override
+        public FileChannel open() throws IOException {
+            return new FileInputStream(file).getChannel();
+        }
+    }
+}
@@ -19,41 +19,223 @@ package com.dmitrybrant.photo360.rendering;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 public class PhotoSphereTools {
+    private static final byte[] XMP_NAMESPACE = ascii("http://ns.adobe.com/xap/1.0/\0");
+    private static final byte[] EXTENDED_XMP_NAMESPACE = ascii("http://ns.adobe.com/xmp/extension/\0");
+    private static final byte[] HAS_EXTENDED_XMP = ascii("HasExtendedXMP");
+    private static final int EXTENDED_XMP_GUID_LENGTH = 32;
+    // Upper bound for reassembled extended XMP, which can legitimately hold depth maps and such.
+    private static final int MAX_EXTENDED_XMP_LENGTH = 64 * 1024 * 1024;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int EXIF_TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int EXIF_TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    private static final int MPF_TAG_NUMBER_OF_IMAGES = 0xB001;
+    private static final int MPF_TAG_MP_ENTRY = 0xB002;
+    private static final int MPF_ENTRY_LENGTH = 16;
 
     @Nullable
     public static PhotoSphereData getPhotoSphereData(@NonNull byte[] bytes) {
+        return getMetadata(bytes, bytes.length).photoSphereData;
+    }
+
+    /**
+     * Parses the header segments of a JPEG image that is fully contained in the given array.
+     */
+    @NonNull
+    public static JpegMetadata getMetadata(@NonNull byte[] bytes, int length) {
+        JpegMetadata metadata = new JpegMetadata();
+        scanSegments(bytes, length, metadata);
+        metadata.finishScan();
+        return metadata;
+    }
+
+    /**
+     * Reads the header of a JPEG stream up to the start of the image scan (SOS), and parses any
+     * metadata along the way. Only the header segments are buffered; the compressed image data is
+     * left unread in the source, and the returned {@link ScannedStream#imageStream} replays the
+     * header followed by the remainder of the source, so that it can be given directly to a decoder.
+     *
+     * <p>If the stream is not a JPEG, the metadata will be empty, and the image stream will simply
+     * replay the bytes that were read.
+     */
+    @NonNull
+    public static ScannedStream scanStream(@NonNull InputStream in) throws IOException {
+        HeaderBuffer header = new HeaderBuffer();
+        int segmentType;
+        int segmentLength;
+
+        // check for SOI
+        if (!header.read(in, 2) || (header.bytes[0] & 0xFF) != 0xFF || (header.bytes[1] & 0xFF) != 0xD8) {
+            return new ScannedStream(new JpegMetadata(), header.replay(in), header.bytes);
+        }
+
+        while (true) {
+            //read bytes until we get an FF, and then any number of FF bytes
+            do {
+                if (!header.read(in, 1)) {
+                    segmentType = -1;
+                    break;
+                }
+                segmentType = header.bytes[header.length - 1] & 0xFF;
+            } while (segmentType != 0xFF);
+            while (segmentType == 0xFF) {
+                if (!header.read(in, 1)) {
+                    segmentType = -1;
+                    break;
+                }
+                segmentType = header.bytes[header.length - 1] & 0xFF;
+            }
+
+            // stop at the end of the stream, or once the image scan has started
+            if (segmentType < 0xC0 || segmentType == 0xD9 || segmentType == 0xDA) {
+                break;
+            }
+            //check for segments that don't have a length associated with them
+            if ((segmentType >= 0xD0) && (segmentType <= 0xD7)) {
+                continue;
+            }
+            if (!header.read(in, 2)) {
+                break;
+            }
+            segmentLength = ((header.bytes[header.length - 2] & 0xFF) << 8) + (header.bytes[header.length - 1] & 0xFF) - 2;
+            if (segmentLength > 0 && !header.read(in, segmentLength)) {
+                break;
+            }
+        }
+
+        JpegMetadata metadata = getMetadata(header.bytes, header.length);
+        return new ScannedStream(metadata, header.replay(in), header.bytes);
+    }
+
+    /**
+     * Same as {@link #scanStream(InputStream)}, but reads from a channel.
+     */
+    @NonNull
+    public static ScannedStream scanStream(@NonNull ReadableByteChannel channel) throws IOException {
+        return scanStream(Channels.newInputStream(channel));
+    }
+
+    /**
+     * Parses the header segments of a local JPEG file through a read-only memory-mapped view of the
+     * file. Only the pages that hold segment markers and metadata segments are actually touched, so
+     * the compressed image data is never read, no matter how large the file is.
+     *
+     * @throws IOException if the channel can't be mapped, e.g. if it's a pipe rather than a file, in
+     *    which case it has to be read as a stream instead.
+     */
+    @NonNull
+    public static JpegMetadata getMetadata(@NonNull FileChannel channel) throws IOException {
+        JpegMetadata metadata = new JpegMetadata();
+        MappedWindow window = new MappedWindow(channel);
+        byte[] segmentBytes = null;
+        long bytePtr = 0;
+        int segmentType;
+        int segmentLength;
+
+        // check for SOI
+        if (!window.ensure(2) || (window.get(0) != 0xFF) || (window.get(1) != 0xD8)) {
+            metadata.finishScan();
+            return metadata;
+        }
+        bytePtr += 2;
+
+        while (true) {
+            //read bytes until we get an FF, and then any number of FF bytes
+            do {
+                segmentType = window.ensure(bytePtr + 1) ? window.get(bytePtr++) : -1;
+            } while (segmentType >= 0 && segmentType != 0xFF);
+            while (segmentType == 0xFF) {
+                segmentType = window.ensure(bytePtr + 1) ? window.get(bytePtr++) : -1;
+            }
+
+            // stop at the end of the file, or once the image scan has started
+            if (segmentType < 0xC0 || segmentType == 0xD9 || segmentType == 0xDA) {
+                break;
+            }
+            //check for segments that don't have a length associated with them
+            if ((segmentType >= 0xD0) && (segmentType <= 0xD7)) {
+                continue;
+            }
+            if (!window.ensure(bytePtr + 2)) {
+                break;
+            }
+            segmentLength = (window.get(bytePtr) << 8) + window.get(bytePtr + 1) - 2;
+            bytePtr += 2;
+            if (segmentLength <= 0) {
+                continue;
+            }
+            if (!window.ensure(bytePtr + segmentLength)) {
+                break;
+            }
+
+            if (isStartOfFrame(segmentType) && segmentLength >= 5) {
+                metadata.imageHeight = (window.get(bytePtr + 1) << 8) + window.get(bytePtr + 2);
+                metadata.imageWidth = (window.get(bytePtr + 3) << 8) + window.get(bytePtr + 4);
+            } else if ((segmentType == 0xE1 || segmentType == 0xE2) && segmentLength >= 8
+                    && isMetadataSignature(window.get(bytePtr), window.get(bytePtr + 1), window.get(bytePtr + 2), window.get(bytePtr + 3))) {
+                // Only copy out the segments that we actually know how to parse.
+                if (segmentBytes == null || segmentBytes.length < segmentLength) {
+                    segmentBytes = new byte[Math.max(segmentLength, 16384)];
+                }
+                window.get(bytePtr, segmentBytes, segmentLength);
+                processAppSegment(segmentBytes, 0, bytePtr, segmentType, segmentLength, metadata);
+            }
+            bytePtr += segmentLength;
+        }
+        metadata.headerLength = Math.min(bytePtr, window.fileSize);
+        metadata.finishScan();
+        return metadata;
+    }
+
+    private static void scanSegments(@NonNull byte[] bytes, int length, @NonNull JpegMetadata metadata) {
         int bytePtr = 0;
         int segmentStart;
         int segmentType;
         int segmentLength;
         try {
+            if (length < 2) {
+                return;
+            }
             segmentStart = bytes[bytePtr++] & 0xFF;
             segmentType = bytes[bytePtr++] & 0xFF;
 
             // check for SOI
-            if ((segmentStart != 0xFF) && (segmentType != 0xD8)){
-                return null;
+            if ((segmentStart != 0xFF) || (segmentType != 0xD8)){
+                return;
             }
 
             //start reading segments
-            while (true) {
+            while (bytePtr < length) {
                 //read bytes until we get an FF
                 do {
                     segmentStart = bytes[bytePtr++] & 0xFF;
-                } while (segmentStart != 0xFF);
+                } while (segmentStart != 0xFF && bytePtr < length);
 
                 //read any number of FF bytes
                 do {
-                    segmentType = bytes[bytePtr++] & 0xFF;
+                    segmentType = bytePtr < length ? bytes[bytePtr++] & 0xFF : 0xD9;
                 } while (segmentType == 0xFF);
 
-                if ((segmentType > 0xE0) && (segmentType <= 0xEF)) {
-                    //unsupported type of segment...
-                }
-
                 //is it the ending segment?
                 if (segmentType == 0xD9){
                     break;
@@ -62,7 +244,8 @@ public class PhotoSphereTools {
                     break;
                 }
                 if (segmentType == 0xDA){
-                    // image scan has started
+                    // image scan has started, so there are no more header segments.
+                    break;
                 }
 
                 //check for segments that don't have a length associated with them
@@ -70,45 +253,25 @@ public class PhotoSphereTools {
                     // don't need to handle these...
                 } else {
                     //read the length of the segment
-                    segmentLength = (bytes[bytePtr] << 8) + (bytes[bytePtr + 1] & 0xFF);
+                    if (bytePtr + 2 > length) {
+                        break;
+                    }
+                    segmentLength = ((bytes[bytePtr] & 0xFF) << 8) + (bytes[bytePtr + 1] & 0xFF);
                     bytePtr += 2;
 
                     segmentLength -= 2;
                     if (segmentLength <= 0){
                         continue;
                     }
-                    if (segmentLength > 65533){
+                    if (bytePtr + segmentLength > length){
                         break;
                     }
 
-                    if ((segmentType >= 0xE0) && (segmentType <= 0xEF)) {
-                        if (((bytes[bytePtr] == (byte) 'E') && (bytes[bytePtr + 1] == (byte) 'x') && (bytes[bytePtr + 2] == (byte) 'i') && (bytes[bytePtr + 3] == (byte) 'f')) &&
-                                (((bytes[bytePtr + 6] == (byte) 'M') && (bytes[bytePtr + 7] == (byte) 'M')) || ((bytes[bytePtr + 6] == (byte) 'I') && (bytes[bytePtr + 7] == (byte) 'I')))) {
-                            // process Exif block.
-                        }
-                        else if (((bytes[bytePtr] == 'M') && (bytes[bytePtr + 1] == 'P') && (bytes[bytePtr + 2] == 'F') && (bytes[bytePtr + 3] == 0)) && (((bytes[bytePtr + 4] == 'M') && (bytes[bytePtr + 5] == 'M')) || ((bytes[bytePtr + 4] == 'I') && (bytes[bytePtr + 5] == 'I'))))
-                        {
-                            // process MPF block.
-                        }
-                        else if (segmentType == 0xE1 && bytes[bytePtr] == (byte) 'h' && bytes[bytePtr + 1] == (byte) 't' && bytes[bytePtr + 2] == (byte) 't' && bytes[bytePtr + 3] == (byte) 'p') {
-                            // very probably XMP...
-                            int zeroPos = 0;
-                            for (int i = bytePtr; i < bytePtr + segmentLength; i++) {
-                                if (bytes[i] == 0) {
-                                    zeroPos = i;
-                                    break;
-                                }
-                            }
-                            String nsStr = new String(bytes, bytePtr, zeroPos - bytePtr - 1, Charset.forName("ASCII"));
-                            if (nsStr.contains("ns.adobe.com/xap")) {
-                                String xmpStr = new String(bytes, zeroPos + 1, segmentLength - (zeroPos - bytePtr) - 1, Charset.forName("UTF-8"));
-                                PhotoSphereData data = new PhotoSphereData(xmpStr);
-                                // return it only if the data looks sane
-                                if (data.croppedAreaImageWidthPixels > 0 && data.croppedAreaImageHeightPixels > 0 && data.fullPanoWidthPixels > 0 && data.fullPanoHeightPixels > 0) {
-                                    return data;
-                                }
-                            }
-                        }
+                    if (isStartOfFrame(segmentType) && segmentLength >= 5) {
+                        metadata.imageHeight = ((bytes[bytePtr + 1] & 0xFF) << 8) + (bytes[bytePtr + 2] & 0xFF);
+                        metadata.imageWidth = ((bytes[bytePtr + 3] & 0xFF) << 8) + (bytes[bytePtr + 4] & 0xFF);
+                    } else if ((segmentType >= 0xE0) && (segmentType <= 0xEF) && segmentLength >= 8) {
+                        processAppSegment(bytes, bytePtr, bytePtr, segmentType, segmentLength, metadata);
                     }
 
                     bytePtr += segmentLength;
@@ -117,57 +280,328 @@ public class PhotoSphereTools {
         } catch (Exception ex) {
             ex.printStackTrace();
         }
+    }
+
+    private static boolean isStartOfFrame(int segmentType) {
+        // SOF0 through SOF15, except for DHT, JPG, and DAC, which share the same range.
+        return segmentType >= 0xC0 && segmentType <= 0xCF
+                && segmentType != 0xC4 && segmentType != 0xC8 && segmentType != 0xCC;
+    }
+
+    private static boolean isMetadataSignature(int b0, int b1, int b2, int b3) {
+        return (b0 == 'E' && b1 == 'x' && b2 == 'i' && b3 == 'f')
+                || (b0 == 'M' && b1 == 'P' && b2 == 'F' && b3 == 0)
+                || (b0 == 'h' && b1 == 't' && b2 == 't' && b3 == 'p');
+    }
+
+    /**
+     * @param segmentOffset Position of the segment data within the file, which may differ from
+     *                      bytePtr if the segment was copied out of the file by itself.
+     */
+    private static void processAppSegment(@NonNull byte[] bytes, int bytePtr, long segmentOffset, int segmentType, int segmentLength, @NonNull JpegMetadata metadata) {
+        if ((segmentType == 0xE1 || segmentType == 0xE2)
+                && isMetadataSignature(bytes[bytePtr] & 0xFF, bytes[bytePtr + 1] & 0xFF, bytes[bytePtr + 2] & 0xFF, bytes[bytePtr + 3] & 0xFF)) {
+            metadata.contentHash = hash(metadata.contentHash, bytes, bytePtr, segmentLength);
+        }
+        if (((bytes[bytePtr] == (byte) 'E') && (bytes[bytePtr + 1] == (byte) 'x') && (bytes[bytePtr + 2] == (byte) 'i') && (bytes[bytePtr + 3] == (byte) 'f')) &&
+                (((bytes[bytePtr + 6] == (byte) 'M') && (bytes[bytePtr + 7] == (byte) 'M')) || ((bytes[bytePtr + 6] == (byte) 'I') && (bytes[bytePtr + 7] == (byte) 'I')))) {
+            // process Exif block.
+            if (metadata.thumbnailLength == 0) {
+                readExifThumbnail(bytes, bytePtr + 6, bytePtr + segmentLength, segmentOffset + 6, metadata);
+            }
+        }
+        else if (((bytes[bytePtr] == 'M') && (bytes[bytePtr + 1] == 'P') && (bytes[bytePtr + 2] == 'F') && (bytes[bytePtr + 3] == 0)) && (((bytes[bytePtr + 4] == 'M') && (bytes[bytePtr + 5] == 'M')) || ((bytes[bytePtr + 4] == 'I') && (bytes[bytePtr + 5] == 'I'))))
+        {
+            // process MPF block.
+            if (metadata.mpfImages == null) {
+                metadata.mpfImages = readMpfIndex(bytes, bytePtr + 4, bytePtr + segmentLength, segmentOffset + 4);
+            }
+        }
+        else if (segmentType == 0xE1 && bytes[bytePtr] == (byte) 'h' && bytes[bytePtr + 1] == (byte) 't' && bytes[bytePtr + 2] == (byte) 't' && bytes[bytePtr + 3] == (byte) 'p') {
+            // very probably XMP...
+            if (startsWith(bytes, bytePtr, bytePtr + segmentLength, XMP_NAMESPACE)) {
+                if (metadata.standardXmpData == null) {
+                    int xmpStart = bytePtr + XMP_NAMESPACE.length;
+                    metadata.standardXmpData = new PhotoSphereData(bytes, xmpStart, segmentLength - XMP_NAMESPACE.length);
+                    metadata.extendedXmpGuid = findExtendedXmpGuid(bytes, xmpStart, bytePtr + segmentLength);
+                }
+            } else if (startsWith(bytes, bytePtr, bytePtr + segmentLength, EXTENDED_XMP_NAMESPACE)
+                    && segmentLength > EXTENDED_XMP_NAMESPACE.length + EXTENDED_XMP_GUID_LENGTH + 8) {
+                metadata.addExtendedXmpChunk(bytes, bytePtr + EXTENDED_XMP_NAMESPACE.length, segmentLength - EXTENDED_XMP_NAMESPACE.length);
+            }
+        }
+    }
+
+    /**
+     * Finds the JPEG thumbnail in IFD1 of an Exif segment.
+     *
+     * @param start Position of the TIFF header within the given bytes.
+     * @param headerOffset Position of the TIFF header within the file.
+     */
+    private static void readExifThumbnail(@NonNull byte[] bytes, int start, int end, long headerOffset, @NonNull JpegMetadata metadata) {
+        boolean bigEndian = bytes[start] == 'M';
+        if (start + 8 > end || readUInt16(bytes, start + 2, bigEndian) != 0x2A) {
+            return;
+        }
+        long ifd0Pos = start + readUInt32(bytes, start + 4, bigEndian);
+        if (ifd0Pos + 2 > end) {
+            return;
+        }
+        long nextIfdPos = ifd0Pos + 2 + readUInt16(bytes, (int) ifd0Pos, bigEndian) * 12L;
+        if (nextIfdPos + 4 > end) {
+            return;
+        }
+        long ifd1Offset = readUInt32(bytes, (int) nextIfdPos, bigEndian);
+        long ifd1Pos = start + ifd1Offset;
+        if (ifd1Offset == 0 || ifd1Pos + 2 > end) {
+            return;
+        }
+        int entryCount = readUInt16(bytes, (int) ifd1Pos, bigEndian);
+        long thumbnailOffset = 0;
+        long thumbnailLength = 0;
+        for (int i = 0; i < entryCount; i++) {
+            int entryPos = (int) ifd1Pos + 2 + i * 12;
+            if (entryPos + 12 > end) {
+                break;
+            }
+            int tag = readUInt16(bytes, entryPos, bigEndian);
+            if (tag == EXIF_TAG_JPEG_INTERCHANGE_FORMAT) {
+                thumbnailOffset = readUInt32(bytes, entryPos + 8, bigEndian);
+            } else if (tag == EXIF_TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+                thumbnailLength = readUInt32(bytes, entryPos + 8, bigEndian);
+            }
+        }
+        // The thumbnail has to be contained in the segment itself.
+        if (thumbnailOffset > 0 && thumbnailLength > 0 && start + thumbnailOffset + thumbnailLength <= end) {
+            metadata.thumbnailOffset = headerOffset + thumbnailOffset;
+            metadata.thumbnailLength = (int) thumbnailLength;
+        }
+    }
+
+    /**
+     * Reads the list of images from the MP Index IFD of an MPF segment.
+     *
+     * @param start Position of the MP header (i.e. the TIFF header) within the given bytes.
+     * @param headerOffset Position of the MP header within the file. Image offsets are relative to it.
+     */
+    @Nullable
+    private static List<MpfImage> readMpfIndex(@NonNull byte[] bytes, int start, int end, long headerOffset) {
+        boolean bigEndian = bytes[start] == 'M';
+        if (start + 8 > end || readUInt16(bytes, start + 2, bigEndian) != 0x2A) {
+            return null;
+        }
+        long ifdPos = start + readUInt32(bytes, start + 4, bigEndian);
+        if (ifdPos + 2 > end) {
+            return null;
+        }
+        int entryCount = readUInt16(bytes, (int) ifdPos, bigEndian);
+        int numImages = 0;
+        long entriesPos = 0;
+        long entriesLength = 0;
+        for (int i = 0; i < entryCount; i++) {
+            int entryPos = (int) ifdPos + 2 + i * 12;
+            if (entryPos + 12 > end) {
+                break;
+            }
+            int tag = readUInt16(bytes, entryPos, bigEndian);
+            if (tag == MPF_TAG_NUMBER_OF_IMAGES) {
+                numImages = (int) readUInt32(bytes, entryPos + 8, bigEndian);
+            } else if (tag == MPF_TAG_MP_ENTRY) {
+                entriesLength = readUInt32(bytes, entryPos + 4, bigEndian);
+                entriesPos = start + readUInt32(bytes, entryPos + 8, bigEndian);
+            }
+        }
+        numImages = (int) Math.min(numImages, entriesLength / MPF_ENTRY_LENGTH);
+        if (numImages <= 0 || entriesPos + (long) numImages * MPF_ENTRY_LENGTH > end) {
+            return null;
+        }
+        List<MpfImage> images = new ArrayList<>(numImages);
+        for (int i = 0; i < numImages; i++) {
+            int entryPos = (int) entriesPos + i * MPF_ENTRY_LENGTH;
+            int type = (int) readUInt32(bytes, entryPos, bigEndian) & 0xFFFFFF;
+            long length = readUInt32(bytes, entryPos + 4, bigEndian);
+            long offset = readUInt32(bytes, entryPos + 8, bigEndian);
+            // The offset of the first image is always zero, since it's the one that contains this
+            // header. The others are relative to the header itself.
+            images.add(new MpfImage(type, i == 0 ? 0 : headerOffset + offset, length));
+        }
+        return images;
+    }
+
+    /**
+     * Looks for the xmpNote:HasExtendedXMP property in the standard XMP packet, which holds the GUID
+     * of the extended XMP that belongs to it.
+     */
+    @Nullable
+    private static byte[] findExtendedXmpGuid(@NonNull byte[] bytes, int start, int end) {
+        for (int pos = start; pos < end; pos++) {
+            if (bytes[pos] != 'H' || !startsWith(bytes, pos, end, HAS_EXTENDED_XMP)) {
+                continue;
+            }
+            pos += HAS_EXTENDED_XMP.length;
+            // skip to the beginning of the value, whether it's an attribute or an element.
+            while (pos < end && (isWhitespace(bytes[pos]) || bytes[pos] == '=' || bytes[pos] == '"' || bytes[pos] == '\'' || bytes[pos] == '>')) {
+                pos++;
+            }
+            if (pos + EXTENDED_XMP_GUID_LENGTH > end) {
+                return null;
+            }
+            byte[] guid = new byte[EXTENDED_XMP_GUID_LENGTH];
+            System.arraycopy(bytes, pos, guid, 0, EXTENDED_XMP_GUID_LENGTH);
+            return guid;
+        }
         return null;
     }
 
+    private static boolean isSane(@Nullable PhotoSphereData data) {
+        return data != null && data.croppedAreaImageWidthPixels > 0 && data.croppedAreaImageHeightPixels > 0
+                && data.fullPanoWidthPixels > 0 && data.fullPanoHeightPixels > 0;
+    }
 
-    private static String getSingleAttribute(String xmpStr, String name) {
-        int pos = xmpStr.indexOf(name);
-        if (pos < 0) {
-            return "";
+    private static boolean startsWith(@NonNull byte[] bytes, int start, int end, @NonNull byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
         }
-        int q1pos = xmpStr.indexOf("\"", pos);
-        int q2pos = xmpStr.indexOf("\"", q1pos + 1);
-        return xmpStr.substring(q1pos + 1, q2pos);
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private static String getStringAttribute(String xmpStr, String name) {
-        try {
-            return getSingleAttribute(xmpStr, name);
-        } catch (Exception e) {
-            // ignore
+    @NonNull
+    private static byte[] ascii(@NonNull String str) {
+        return str.getBytes(Charset.forName("ASCII"));
+    }
+
+    /**
+     * Continues a 64-bit FNV-1a hash over the given bytes.
+     */
+    private static long hash(long hash, @NonNull byte[] bytes, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            hash ^= bytes[i] & 0xFF;
+            hash *= FNV_PRIME;
         }
-        return "";
+        return hash;
     }
 
-    private static int getIntAttribute(String xmpStr, String name) {
-        try {
-            return Integer.parseInt(getSingleAttribute(xmpStr, name));
-        } catch (Exception e) {
-            // ignore
+    private static long readUInt32(@NonNull byte[] bytes, int pos) {
+        return readUInt32(bytes, pos, true);
+    }
+
+    private static long readUInt32(@NonNull byte[] bytes, int pos, boolean bigEndian) {
+        if (bigEndian) {
+            return ((long) (bytes[pos] & 0xFF) << 24) | ((bytes[pos + 1] & 0xFF) << 16)
+                    | ((bytes[pos + 2] & 0xFF) << 8) | (bytes[pos + 3] & 0xFF);
         }
-        return 0;
+        return ((long) (bytes[pos + 3] & 0xFF) << 24) | ((bytes[pos + 2] & 0xFF) << 16)
+                | ((bytes[pos + 1] & 0xFF) << 8) | (bytes[pos] & 0xFF);
     }
 
-    private static float getFloatAttribute(String xmpStr, String name) {
-        try {
-            return Float.parseFloat(getSingleAttribute(xmpStr, name));
-        } catch (Exception e) {
-            // ignore
+    private static int readUInt16(@NonNull byte[] bytes, int pos, boolean bigEndian) {
+        return bigEndian ? ((bytes[pos] & 0xFF) << 8) | (bytes[pos + 1] & 0xFF)
+                : ((bytes[pos + 1] & 0xFF) << 8) | (bytes[pos] & 0xFF);
+    }
+
+    private static boolean isNameChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_' || b == '-' || b == '.';
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static boolean parseBoolean(@NonNull byte[] bytes, int start, int end) {
+        while (start < end && isWhitespace(bytes[start])) {
+            start++;
         }
-        return 0;
+        return end - start >= 4
+                && (bytes[start] | 0x20) == 't' && (bytes[start + 1] | 0x20) == 'r'
+                && (bytes[start + 2] | 0x20) == 'u' && (bytes[start + 3] | 0x20) == 'e'
+                && (end - start == 4 || !isNameChar(bytes[start + 4]));
     }
 
-    private static boolean getBooleanAttribute(String xmpStr, String name) {
-        try {
-            return getSingleAttribute(xmpStr, name).toLowerCase().equals("true");
-        } catch (Exception e) {
-            // ignore
+    private static int parseInt(@NonNull byte[] bytes, int start, int end) {
+        return (int) parseFloat(bytes, start, end);
+    }
+
+    /**
+     * Parses a decimal number directly from the given bytes, stopping at the first character that
+     * can't be part of it. Returns 0 if there is no number at all.
+     */
+    private static double parseFloat(@NonNull byte[] bytes, int start, int end) {
+        while (start < end && isWhitespace(bytes[start])) {
+            start++;
+        }
+        boolean negative = false;
+        if (start < end && (bytes[start] == '-' || bytes[start] == '+')) {
+            negative = bytes[start++] == '-';
+        }
+        double value = 0;
+        int exponent = 0;
+        boolean fraction = false;
+        for (; start < end; start++) {
+            byte b = bytes[start];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                if (fraction) {
+                    exponent--;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (start + 1 < end && (bytes[start] | 0x20) == 'e') {
+            start++;
+            boolean negativeExponent = false;
+            if (bytes[start] == '-' || bytes[start] == '+') {
+                negativeExponent = bytes[start++] == '-';
+            }
+            int e = 0;
+            for (; start < end && bytes[start] >= '0' && bytes[start] <= '9' && e < 1000; start++) {
+                e = e * 10 + (bytes[start] - '0');
+            }
+            exponent += negativeExponent ? -e : e;
         }
-        return false;
+        if (exponent != 0) {
+            value *= Math.pow(10, exponent);
+        }
+        return negative ? -value : value;
     }
 
     public static class PhotoSphereData {
+        public static final String PROJECTION_EQUIRECTANGULAR = "equirectangular";
+
+        private static final int FIELD_USE_PANORAMA_VIEWER = 0;
+        private static final int FIELD_IS_PHOTOSPHERE = 1;
+        private static final int FIELD_PROJECTION_TYPE = 2;
+        private static final int FIELD_FULL_PANO_WIDTH_PIXELS = 3;
+        private static final int FIELD_FULL_PANO_HEIGHT_PIXELS = 4;
+        private static final int FIELD_CROPPED_AREA_TOP_PIXELS = 5;
+        private static final int FIELD_CROPPED_AREA_LEFT_PIXELS = 6;
+        private static final int FIELD_CROPPED_AREA_IMAGE_WIDTH_PIXELS = 7;
+        private static final int FIELD_CROPPED_AREA_IMAGE_HEIGHT_PIXELS = 8;
+        private static final int FIELD_POSE_HEADING_DEGREES = 9;
+
+        // Indexed by the FIELD_* constants above.
+        private static final byte[][] GPANO_FIELDS = {
+                ascii("UsePanoramaViewer"),
+                ascii("IsPhotosphere"),
+                ascii("ProjectionType"),
+                ascii("FullPanoWidthPixels"),
+                ascii("FullPanoHeightPixels"),
+                ascii("CroppedAreaTopPixels"),
+                ascii("CroppedAreaLeftPixels"),
+                ascii("CroppedAreaImageWidthPixels"),
+                ascii("CroppedAreaImageHeightPixels"),
+                ascii("PoseHeadingDegrees"),
+        };
+        private static final byte[] GPANO_PREFIX = ascii("GPano:");
+        private static final byte[] EQUIRECTANGULAR = ascii(PROJECTION_EQUIRECTANGULAR);
+
         public boolean usePanoramaViewer;
         public boolean isPhotoSphere;
         public String projectionType;
@@ -183,16 +617,541 @@ public class PhotoSphereTools {
         }
 
         public PhotoSphereData(@NonNull String xmpStr) {
-            usePanoramaViewer = getBooleanAttribute(xmpStr, "GPano:UsePanoramaViewer");
-            isPhotoSphere = getBooleanAttribute(xmpStr, "GPano:IsPhotosphere");
-            projectionType = getStringAttribute(xmpStr, "GPano:ProjectionType");
-            fullPanoWidthPixels = getIntAttribute(xmpStr, "GPano:FullPanoWidthPixels");
-            fullPanoHeightPixels = getIntAttribute(xmpStr, "GPano:FullPanoHeightPixels");
-            croppedAreaTopPixels = getIntAttribute(xmpStr, "GPano:CroppedAreaTopPixels");
-            croppedAreaLeftPixels = getIntAttribute(xmpStr, "GPano:CroppedAreaLeftPixels");
-            croppedAreaImageWidthPixels = getIntAttribute(xmpStr, "GPano:CroppedAreaImageWidthPixels");
-            croppedAreaImageHeightPixels = getIntAttribute(xmpStr, "GPano:CroppedAreaImageHeightPixels");
-            poseHeadingDegrees = getFloatAttribute(xmpStr, "GPano:PoseHeadingDegrees");
+            byte[] bytes = xmpStr.getBytes(Charset.forName("UTF-8"));
+            parseXmp(bytes, 0, bytes.length);
+        }
+
+        public PhotoSphereData(@NonNull byte[] xmpBytes, int offset, int length) {
+            parseXmp(xmpBytes, offset, length);
+        }
+
+        /**
+         * Fills in any GPano fields found in the given XMP packet, in a single pass over its bytes.
+         * Both the attribute form (GPano:Name="value") and the element form
+         * (&lt;GPano:Name&gt;value&lt;/GPano:Name&gt;) are recognized. If a field appears more than
+         * once, the first occurrence wins.
+         */
+        private void parseXmp(@NonNull byte[] bytes, int offset, int length) {
+            int end = offset + length;
+            int foundFields = 0;
+            int pos = offset;
+            while (pos < end) {
+                if (bytes[pos] != 'G' || !startsWith(bytes, pos, end, GPANO_PREFIX)) {
+                    pos++;
+                    continue;
+                }
+                boolean isElement = pos > offset && bytes[pos - 1] == '<';
+                boolean isClosingElement = pos > offset && bytes[pos - 1] == '/';
+                pos += GPANO_PREFIX.length;
+
+                int field = -1;
+                for (int i = 0; i < GPANO_FIELDS.length; i++) {
+                    if (startsWith(bytes, pos, end, GPANO_FIELDS[i])
+                            && (pos + GPANO_FIELDS[i].length == end || !isNameChar(bytes[pos + GPANO_FIELDS[i].length]))) {
+                        field = i;
+                        break;
+                    }
+                }
+                if (field < 0 || isClosingElement || (foundFields & (1 << field)) != 0) {
+                    continue;
+                }
+                pos += GPANO_FIELDS[field].length;
+
+                int valueStart;
+                int valueEnd;
+                if (isElement) {
+                    while (pos < end && bytes[pos] != '>') {
+                        pos++;
+                    }
+                    if (pos >= end || bytes[pos - 1] == '/') {
+                        // empty element
+                        continue;
+                    }
+                    valueStart = ++pos;
+                    while (pos < end && bytes[pos] != '<') {
+                        pos++;
+                    }
+                    valueEnd = pos;
+                } else {
+                    while (pos < end && isWhitespace(bytes[pos])) {
+                        pos++;
+                    }
+                    if (pos >= end || bytes[pos] != '=') {
+                        continue;
+                    }
+                    pos++;
+                    while (pos < end && isWhitespace(bytes[pos])) {
+                        pos++;
+                    }
+                    if (pos >= end || (bytes[pos] != '"' && bytes[pos] != '\'')) {
+                        continue;
+                    }
+                    byte quote = bytes[pos++];
+                    valueStart = pos;
+                    while (pos < end && bytes[pos] != quote) {
+                        pos++;
+                    }
+                    valueEnd = pos;
+                }
+                foundFields |= 1 << field;
+                setField(field, bytes, valueStart, valueEnd);
+            }
+        }
+
+        private void setField(int field, @NonNull byte[] bytes, int start, int end) {
+            switch (field) {
+                case FIELD_USE_PANORAMA_VIEWER:
+                    usePanoramaViewer = parseBoolean(bytes, start, end);
+                    break;
+                case FIELD_IS_PHOTOSPHERE:
+                    isPhotoSphere = parseBoolean(bytes, start, end);
+                    break;
+                case FIELD_PROJECTION_TYPE:
+                    projectionType = startsWith(bytes, start, end, EQUIRECTANGULAR) && end - start == EQUIRECTANGULAR.length
+                            ? PROJECTION_EQUIRECTANGULAR : new String(bytes, start, end - start, Charset.forName("UTF-8")).trim();
+                    break;
+                case FIELD_FULL_PANO_WIDTH_PIXELS:
+                    fullPanoWidthPixels = parseInt(bytes, start, end);
+                    break;
+                case FIELD_FULL_PANO_HEIGHT_PIXELS:
+                    fullPanoHeightPixels = parseInt(bytes, start, end);
+                    break;
+                case FIELD_CROPPED_AREA_TOP_PIXELS:
+                    croppedAreaTopPixels = parseInt(bytes, start, end);
+                    break;
+                case FIELD_CROPPED_AREA_LEFT_PIXELS:
+                    croppedAreaLeftPixels = parseInt(bytes, start, end);
+                    break;
+                case FIELD_CROPPED_AREA_IMAGE_WIDTH_PIXELS:
+                    croppedAreaImageWidthPixels = parseInt(bytes, start, end);
+                    break;
+                case FIELD_CROPPED_AREA_IMAGE_HEIGHT_PIXELS:
+                    croppedAreaImageHeightPixels = parseInt(bytes, start, end);
+                    break;
+                case FIELD_POSE_HEADING_DEGREES:
+                    poseHeadingDegrees = (float) parseFloat(bytes, start, end);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Information gathered from the header segments of a JPEG image.
+     */
+    public static class JpegMetadata {
+        @Nullable public PhotoSphereData photoSphereData;
+        public int imageWidth;
+        public int imageHeight;
+        // Images listed in the MPF index, if any. The first one is the primary image.
+        @Nullable public List<MpfImage> mpfImages;
+        // Position and length of the Exif thumbnail within the file, if any.
+        public long thumbnailOffset;
+        public int thumbnailLength;
+        // Hash of the frame dimensions and the Exif, MPF and XMP segments, which identifies the image
+        // without having to read any of the image data.
+        public long contentHash = FNV_OFFSET_BASIS;
+        // Number of bytes that were read from the start of the file to get all of the above. Only
+        // known when the metadata was read from a FileChannel.
+        public long headerLength;
+
+        // GPano data from the standard XMP packet, which might not be complete by itself.
+        @Nullable private PhotoSphereData standardXmpData;
+
+        // Extended XMP is split into chunks across several segments, which are reassembled in place
+        // into a buffer of the full size that is given in each chunk.
+        @Nullable private byte[] extendedXmpGuid;
+        @Nullable private byte[] extendedXmpChunkGuid;
+        @Nullable private byte[] extendedXmp;
+        // Bytes of the extended XMP that were received, so that repeated or overlapping chunks
+        // aren't counted twice.
+        @Nullable private BitSet extendedXmpReceived;
+
+        /**
+         * Returns whether this is a stereo MPO image, with (at least) a left and a right eye.
+         */
+        public boolean isStereo() {
+            return getStereoImage(1) != null;
+        }
+
+        /**
+         * Returns the image for the given eye (0 for left, 1 for right) of a stereo MPO image.
+         */
+        @Nullable
+        public MpfImage getStereoImage(int eye) {
+            if (mpfImages == null) {
+                return null;
+            }
+            for (MpfImage image : mpfImages) {
+                if (image.type == MpfImage.TYPE_DISPARITY && image.length > 0 && eye-- == 0) {
+                    return image;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the smallest of the preview images listed in the MPF index, if any.
+         */
+        @Nullable
+        public MpfImage getSmallestPreview() {
+            MpfImage preview = null;
+            if (mpfImages != null) {
+                for (MpfImage image : mpfImages) {
+                    if ((image.type == MpfImage.TYPE_LARGE_THUMBNAIL_VGA || image.type == MpfImage.TYPE_LARGE_THUMBNAIL_FULL_HD)
+                            && image.length > 0 && (preview == null || image.length < preview.length)) {
+                        preview = image;
+                    }
+                }
+            }
+            return preview;
+        }
+
+        /**
+         * Returns the length of the primary image, if the MPF index is present, otherwise -1. This
+         * excludes any other images that come after it in the file.
+         */
+        public long getPrimaryImageLength() {
+            return mpfImages != null && !mpfImages.isEmpty() && mpfImages.get(0).length > 0 ? mpfImages.get(0).length : -1;
+        }
+
+        /**
+         * Returns the reassembled extended XMP packet, if the image has one. Any chunks that were
+         * missing from the image are left as zeros.
+         */
+        @Nullable
+        public byte[] getExtendedXmp() {
+            return extendedXmp;
+        }
+
+        /**
+         * Returns whether every byte of the extended XMP packet was found.
+         */
+        public boolean isExtendedXmpComplete() {
+            return extendedXmp != null && extendedXmpReceived != null
+                    && extendedXmpReceived.nextClearBit(0) >= extendedXmp.length;
+        }
+
+        private void addExtendedXmpChunk(@NonNull byte[] bytes, int start, int length) {
+            int dataStart = start + EXTENDED_XMP_GUID_LENGTH + 8;
+            int dataLength = length - EXTENDED_XMP_GUID_LENGTH - 8;
+            if (extendedXmpGuid != null && !startsWith(bytes, start, start + EXTENDED_XMP_GUID_LENGTH, extendedXmpGuid)) {
+                // belongs to some other XMP packet.
+                return;
+            }
+            long fullLength = readUInt32(bytes, start + EXTENDED_XMP_GUID_LENGTH);
+            long offset = readUInt32(bytes, start + EXTENDED_XMP_GUID_LENGTH + 4);
+            if (extendedXmp == null) {
+                if (fullLength <= 0 || fullLength > MAX_EXTENDED_XMP_LENGTH) {
+                    return;
+                }
+                extendedXmp = new byte[(int) fullLength];
+                extendedXmpReceived = new BitSet((int) fullLength);
+                extendedXmpChunkGuid = new byte[EXTENDED_XMP_GUID_LENGTH];
+                System.arraycopy(bytes, start, extendedXmpChunkGuid, 0, EXTENDED_XMP_GUID_LENGTH);
+            } else if (fullLength != extendedXmp.length || !startsWith(bytes, start, start + EXTENDED_XMP_GUID_LENGTH, extendedXmpChunkGuid)) {
+                return;
+            }
+            if (dataLength <= 0 || offset + dataLength > extendedXmp.length) {
+                return;
+            }
+            System.arraycopy(bytes, dataStart, extendedXmp, (int) offset, dataLength);
+            extendedXmpReceived.set((int) offset, (int) offset + dataLength);
+        }
+
+        private void finishScan() {
+            contentHash = (contentHash ^ imageWidth) * FNV_PRIME;
+            contentHash = (contentHash ^ imageHeight) * FNV_PRIME;
+            // The chunks can come before the standard XMP, so they're only checked against it once
+            // all segments are read. Without a reference from the standard XMP, or with a reference
+            // to some other GUID, they don't belong to this image.
+            if (extendedXmp != null && (extendedXmpGuid == null
+                    || !startsWith(extendedXmpChunkGuid, 0, EXTENDED_XMP_GUID_LENGTH, extendedXmpGuid))) {
+                extendedXmp = null;
+                extendedXmpReceived = null;
+            }
+            PhotoSphereData data = standardXmpData;
+            if (!isSane(data) && extendedXmp != null) {
+                // The GPano fields were moved to the extended XMP, most likely due to lack of space.
+                if (data == null) {
+                    data = new PhotoSphereData();
+                }
+                data.parseXmp(extendedXmp, 0, extendedXmp.length);
+            }
+            // keep it only if the data looks sane
+            photoSphereData = isSane(data) ? data : null;
+        }
+    }
+
+    /**
+     * An image that is embedded in a Multi-Picture Format file.
+     */
+    public static class MpfImage {
+        public static final int TYPE_LARGE_THUMBNAIL_VGA = 0x010001;
+        public static final int TYPE_LARGE_THUMBNAIL_FULL_HD = 0x010002;
+        public static final int TYPE_PANORAMA = 0x020001;
+        public static final int TYPE_DISPARITY = 0x020002;
+        public static final int TYPE_MULTI_ANGLE = 0x020003;
+        public static final int TYPE_BASELINE_PRIMARY = 0x030000;
+
+        public final int type;
+        // Position and length of the image within the file.
+        public final long offset;
+        public final long length;
+
+        MpfImage(int type, long offset, long length) {
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The result of {@link #scanStream(InputStream)}: the parsed metadata, and a stream of the
+     * complete image that can be passed to a decoder.
+     */
+    public static class ScannedStream {
+        @NonNull public final JpegMetadata metadata;
+        @NonNull public final InputStream imageStream;
+        @NonNull private final byte[] headerBytes;
+        private long position;
+
+        ScannedStream(@NonNull JpegMetadata metadata, @NonNull InputStream imageStream, @NonNull byte[] headerBytes) {
+            this.metadata = metadata;
+            this.imageStream = imageStream;
+            this.headerBytes = headerBytes;
+        }
+
+        /**
+         * Returns the Exif thumbnail of the image, if it has one. This is available as soon as the
+         * stream is scanned, since the thumbnail is part of the header.
+         */
+        @Nullable
+        public byte[] getThumbnail() {
+            if (metadata.thumbnailLength <= 0) {
+                return null;
+            }
+            byte[] thumbnail = new byte[metadata.thumbnailLength];
+            System.arraycopy(headerBytes, (int) metadata.thumbnailOffset, thumbnail, 0, thumbnail.length);
+            return thumbnail;
+        }
+
+        /**
+         * Returns a stream of only the given embedded image, which ends where the image ends, so that
+         * nothing after it needs to be read. Since the underlying stream only moves forward, images
+         * must be opened in the order they appear, and each must be finished with before the next
+         * one is opened. Should not be mixed with reading {@link #imageStream} directly.
+         */
+        @NonNull
+        public InputStream openImage(@NonNull MpfImage image) throws IOException {
+            if (image.offset < position) {
+                throw new IOException("Image at " + image.offset + " was already passed.");
+            }
+            skipFully(imageStream, image.offset - position);
+            position = image.offset;
+            return new LimitedInputStream(imageStream, image.length) {
+                @Override
+                protected void onRead(long count) {
+                    position += count;
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns a stream of only the given embedded image from a local file.
+     */
+    @NonNull
+    public static InputStream openImage(@NonNull FileChannel channel, @NonNull MpfImage image) throws IOException {
+        return new LimitedInputStream(Channels.newInputStream(channel.position(image.offset)), image.length);
+    }
+
+    /**
+     * Reads the smallest preview image that is embedded in a local file, which is either an MPF
+     * preview image, or the Exif thumbnail if there isn't one.
+     */
+    @Nullable
+    public static byte[] readPreview(@NonNull FileChannel channel, @NonNull JpegMetadata metadata) throws IOException {
+        long offset = metadata.thumbnailOffset;
+        long length = metadata.thumbnailLength;
+        MpfImage preview = metadata.getSmallestPreview();
+        if (preview != null) {
+            offset = preview.offset;
+            length = preview.length;
+        }
+        if (length <= 0 || offset + length > channel.size()) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return bytes;
+    }
+
+    private static void skipFully(@NonNull InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Stream that ends after a given number of bytes, without closing the underlying stream.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(@NonNull InputStream in, long limit) {
+            super(in);
+            remaining = limit;
+        }
+
+        protected void onRead(long count) {
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+                onRead(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int bytesRead = in.read(b, off, (int) Math.min(len, remaining));
+            if (bytesRead > 0) {
+                remaining -= bytesRead;
+                onRead(bytesRead);
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            if (skipped > 0) {
+                remaining -= skipped;
+                onRead(skipped);
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // The underlying stream is owned by whoever opened this one.
+        }
+    }
+
+    /**
+     * Growable buffer that holds the header bytes consumed from a stream while scanning it.
+     */
+    private static class HeaderBuffer {
+        byte[] bytes = new byte[16384];
+        int length;
+
+        /**
+         * Appends exactly the given number of bytes from the stream, returning false if the stream
+         * ended before that.
+         */
+        boolean read(@NonNull InputStream in, int count) throws IOException {
+            if (length + count > bytes.length) {
+                byte[] newBytes = new byte[Math.max(bytes.length * 2, length + count)];
+                System.arraycopy(bytes, 0, newBytes, 0, length);
+                bytes = newBytes;
+            }
+            while (count > 0) {
+                int bytesRead = in.read(bytes, length, count);
+                if (bytesRead < 0) {
+                    return false;
+                }
+                length += bytesRead;
+                count -= bytesRead;
+            }
+            return true;
+        }
+
+        @NonNull
+        InputStream replay(@NonNull InputStream remainder) {
+            return new SequenceInputStream(new ByteArrayInputStream(bytes, 0, length), remainder);
+        }
+    }
+
+    /**
+     * Read-only memory-mapped view of the beginning of a file, which is extended as needed while the
+     * header is walked. Mapping the file does not read it; pages are only loaded when accessed.
+     */
+    private static class MappedWindow {
+        private static final long INITIAL_SIZE = 256 * 1024;
+
+        private final FileChannel channel;
+        private final long fileSize;
+        private MappedByteBuffer buffer;
+
+        MappedWindow(@NonNull FileChannel channel) throws IOException {
+            this.channel = channel;
+            // A pipe has no position or size, and can't be mapped. Finding out now, rather than by
+            // failing to map it, keeps it from passing for an empty file.
+            channel.position();
+            fileSize = channel.size();
+            if (fileSize <= 0) {
+                throw new IOException("Not a regular file, or an empty one.");
+            }
+        }
+
+        /**
+         * Makes sure that the window covers the file up to the given position, returning false if
+         * the file is not that long.
+         */
+        boolean ensure(long end) throws IOException {
+            if (buffer != null && end <= buffer.capacity()) {
+                return true;
+            }
+            if (end > fileSize || end > Integer.MAX_VALUE) {
+                return false;
+            }
+            long size = buffer == null ? INITIAL_SIZE : (long) buffer.capacity() * 2;
+            size = Math.min(Math.max(size, end), Math.min(fileSize, Integer.MAX_VALUE));
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return true;
+        }
+
+        int get(long position) {
+            return buffer.get((int) position) & 0xFF;
+        }
+
+        void get(long position, @NonNull byte[] dst, int length) {
+            buffer.position((int) position);
+            buffer.get(dst, 0, length);
         }
     }
 }
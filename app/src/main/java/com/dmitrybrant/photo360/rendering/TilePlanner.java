@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits the scaling of a large image into a smaller target into tiles, each of which can be decoded
+ * on its own with a region decoder, so that the whole image never has to be in memory at once.
+ *
+ * <p>The target is split into a grid of square tiles, and each tile is mapped to the rectangle of
+ * the source that it covers. The source rectangles are widened by a margin of a couple of decoded
+ * pixels, so that filtering at the edges of a tile has the same neighbors as in the middle of it and
+ * no seams show up between tiles, and they're aligned to the sample size, so that every decoded
+ * pixel covers whole source pixels.
+ */
+public final class TilePlanner {
+    // Decoded pixels beyond the edges of each tile, for filtering.
+    private static final int MARGIN_PIXELS = 2;
+
+    public final int sourceWidth;
+    public final int sourceHeight;
+    public final int targetWidth;
+    public final int targetHeight;
+    // Power of two by which the source is subsampled while decoding, so that the decoded tiles are
+    // still at least as large as their targets, but less than twice as large.
+    public final int sampleSize;
+    // Target pixels per source pixel.
+    public final double scaleX;
+    public final double scaleY;
+
+    private final List<Tile> tiles;
+
+    /**
+     * A tile of the target, and the region of the source that it's drawn from. The source region
+     * extends beyond the target, and the part outside of the target should be clipped away.
+     */
+    public static final class Tile {
+        public final int left;
+        public final int top;
+        public final int right;
+        public final int bottom;
+        public final int sourceLeft;
+        public final int sourceTop;
+        public final int sourceRight;
+        public final int sourceBottom;
+
+        /* package */ Tile(int left, int top, int right, int bottom,
+                int sourceLeft, int sourceTop, int sourceRight, int sourceBottom) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.sourceLeft = sourceLeft;
+            this.sourceTop = sourceTop;
+            this.sourceRight = sourceRight;
+            this.sourceBottom = sourceBottom;
+        }
+    }
+
+    /**
+     * @param tileSize Size of the tiles in target pixels. The decoded tiles are up to about twice as
+     *    large on each side.
+     */
+    public TilePlanner(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight, int tileSize) {
+        if (sourceWidth <= 0 || sourceHeight <= 0 || targetWidth <= 0 || targetHeight <= 0 || tileSize <= 0) {
+            throw new IllegalArgumentException("Invalid tile plan dimensions.");
+        }
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        scaleX = (double) targetWidth / sourceWidth;
+        scaleY = (double) targetHeight / sourceHeight;
+        sampleSize = Math.min(getSampleSize(sourceWidth, targetWidth), getSampleSize(sourceHeight, targetHeight));
+
+        List<Tile> tiles = new ArrayList<>();
+        int margin = MARGIN_PIXELS * sampleSize;
+        for (int top = 0; top < targetHeight; top += tileSize) {
+            int bottom = Math.min(top + tileSize, targetHeight);
+            int sourceTop = alignDown(Math.max((int) Math.floor(top / scaleY) - margin, 0));
+            int sourceBottom = Math.min(alignUp((int) Math.ceil(bottom / scaleY) + margin), sourceHeight);
+            for (int left = 0; left < targetWidth; left += tileSize) {
+                int right = Math.min(left + tileSize, targetWidth);
+                int sourceLeft = alignDown(Math.max((int) Math.floor(left / scaleX) - margin, 0));
+                int sourceRight = Math.min(alignUp((int) Math.ceil(right / scaleX) + margin), sourceWidth);
+                tiles.add(new Tile(left, top, right, bottom, sourceLeft, sourceTop, sourceRight, sourceBottom));
+            }
+        }
+        this.tiles = Collections.unmodifiableList(tiles);
+    }
+
+    /**
+     * Returns the largest power of two by which the source can be subsampled without becoming
+     * smaller than the target.
+     */
+    public static int getSampleSize(int sourceSize, int targetSize) {
+        int sampleSize = 1;
+        while ((long) targetSize * sampleSize * 2 <= sourceSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /** Returns the tiles in rows from the top, each from left to right. */
+    @NonNull
+    public List<Tile> getTiles() {
+        return tiles;
+    }
+
+    private int alignDown(int coordinate) {
+        return coordinate / sampleSize * sampleSize;
+    }
+
+    private int alignUp(int coordinate) {
+        return (coordinate + sampleSize - 1) / sampleSize * sampleSize;
+    }
+}
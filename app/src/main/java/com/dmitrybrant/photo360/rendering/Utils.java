@@ -29,12 +29,14 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 /** GL utility methods. */
 public class Utils {
     private static final String TAG = "Video360.Utils";
 
     public static final int BYTES_PER_FLOAT = 4;
+    public static final int BYTES_PER_SHORT = 2;
 
     /**
      * Debug builds should fail quickly. Release versions of the app should have this disabled.
@@ -120,6 +122,19 @@ public class Utils {
         return buffer;
     }
 
+    /**
+     * Allocates a ShortBuffer with the given data.
+     */
+    public static ShortBuffer createBuffer(short[] data) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(data.length * BYTES_PER_SHORT);
+        bb.order(ByteOrder.nativeOrder());
+        ShortBuffer buffer = bb.asShortBuffer();
+        buffer.put(data);
+        buffer.position(0);
+
+        return buffer;
+    }
+
     /**
      * Creates a GL_TEXTURE_EXTERNAL_OES with default configuration of GL_LINEAR filtering and
      * GL_CLAMP_TO_EDGE wrapping.
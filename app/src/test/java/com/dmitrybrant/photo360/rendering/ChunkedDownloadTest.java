@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ChunkedDownloadTest {
+    private static final int FILE_BYTES = 1024 * 1024 + 1000;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[FILE_BYTES];
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    public ChunkedDownloadTest() {
+        new Random(1).nextBytes(content);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void downloadsTheWholeFile() throws IOException {
+        for (int connections : new int[] { 1, 4 }) {
+            File file = new File(folder.getRoot(), "pano" + connections + ".jpg");
+            ChunkedDownload download = ChunkedDownload.open(file, FILE_BYTES, "v1", CHUNK_SIZE);
+            download.download(this::openRange, connections, executor);
+            assertTrue(download.isComplete());
+            assertEquals(FILE_BYTES, download.getBytesFetched());
+            assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+            assertFalse("State of the complete download wasn't deleted", getStateFile(file).exists());
+        }
+    }
+
+    @Test
+    public void droppedConnectionsAreResumedWhereTheyStopped() throws IOException {
+        File file = new File(folder.getRoot(), "pano.jpg");
+        ChunkedDownload download = ChunkedDownload.open(file, FILE_BYTES, "v1", CHUNK_SIZE);
+        // The first request of a couple of chunks is cut off in the middle.
+        boolean[] dropped = new boolean[2];
+        download.download((start, end) -> {
+            int drop = start == 3L * CHUNK_SIZE ? 0 : start == 10L * CHUNK_SIZE ? 1 : -1;
+            synchronized (dropped) {
+                if (drop >= 0 && !dropped[drop]) {
+                    dropped[drop] = true;
+                    return new ByteArrayInputStream(content, (int) start, (int) (end - start) / 2);
+                }
+            }
+            return openRange(start, end);
+        }, 4, executor);
+        assertTrue(dropped[0] && dropped[1]);
+        assertEquals(FILE_BYTES, download.getBytesFetched());
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void cancelledDownloadsAreResumedWhenOpenedAgain() throws IOException {
+        File file = new File(folder.getRoot(), "pano.jpg");
+        ChunkedDownload first = ChunkedDownload.open(file, FILE_BYTES, "v1", CHUNK_SIZE);
+        AtomicLong served = new AtomicLong();
+        try {
+            // Everything requested until half of the file is finished, but nothing after that.
+            first.download((start, end) -> {
+                if (served.getAndAdd(end - start) >= FILE_BYTES / 2) {
+                    first.cancel();
+                }
+                return openRange(start, end);
+            }, 2, executor);
+            fail("Cancelled download completed");
+        } catch (InterruptedIOException e) {
+            // Expected.
+        }
+        assertFalse(first.isComplete());
+        assertTrue(getStateFile(file).exists());
+
+        ChunkedDownload second = ChunkedDownload.open(file, FILE_BYTES, "v1", CHUNK_SIZE);
+        assertEquals("Progress of the cancelled download was lost", first.getBytesDone(), second.getBytesDone());
+        assertTrue(second.getBytesDone() >= FILE_BYTES / 2);
+        second.download(this::openRange, 2, executor);
+        assertEquals(FILE_BYTES - first.getBytesDone(), second.getBytesFetched());
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertFalse(getStateFile(file).exists());
+    }
+
+    @Test
+    public void otherVersionsOrDamagedStatesStartOver() throws IOException {
+        File file = new File(folder.getRoot(), "pano.jpg");
+        downloadFirstChunk(file);
+        assertEquals(CHUNK_SIZE, ChunkedDownload.open(file, FILE_BYTES, "v1", CHUNK_SIZE).getBytesDone());
+
+        assertEquals(0, ChunkedDownload.open(file, FILE_BYTES, "v2", CHUNK_SIZE).getBytesDone());
+        downloadFirstChunk(file);
+        assertEquals(0, ChunkedDownload.open(file, FILE_BYTES - 1, "v1", CHUNK_SIZE).getBytesDone());
+        downloadFirstChunk(file);
+        assertEquals(0, ChunkedDownload.open(file, FILE_BYTES, "v1", CHUNK_SIZE / 2).getBytesDone());
+
+        downloadFirstChunk(file);
+        File state = getStateFile(file);
+        byte[] bytes = Files.readAllBytes(state.toPath());
+        Files.write(state.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        assertEquals(0, ChunkedDownload.open(file, FILE_BYTES, "v1", CHUNK_SIZE).getBytesDone());
+    }
+
+    /**
+     * Starts a download of the first version of the file, and cancels it as it moves on from the
+     * first chunk.
+     */
+    private void downloadFirstChunk(File file) throws IOException {
+        ChunkedDownload download = ChunkedDownload.open(file, FILE_BYTES, "v1", CHUNK_SIZE);
+        try {
+            download.download((start, end) -> {
+                if (start > 0) {
+                    download.cancel();
+                }
+                return openRange(start, end);
+            }, 1, executor);
+            fail("Cancelled download completed");
+        } catch (InterruptedIOException e) {
+            // Expected.
+        }
+    }
+
+    private ByteArrayInputStream openRange(long start, long end) {
+        return new ByteArrayInputStream(content, (int) start, (int) (end - start));
+    }
+
+    private static File getStateFile(File file) {
+        return new File(file.getPath() + ".state");
+    }
+}
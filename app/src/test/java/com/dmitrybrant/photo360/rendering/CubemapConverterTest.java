@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+public class CubemapConverterTest {
+    // Rounding of the channels, plus the error of bilinear sampling and of the clamped pole rows.
+    private static final int MAX_CHANNEL_ERROR = 2;
+    private static final int[] LAYOUTS = { CubemapLayout.LAYOUT_CUBEMAP_3X2, CubemapLayout.LAYOUT_CUBEMAP_6X1,
+            CubemapLayout.LAYOUT_EAC_3X2 };
+
+    @Test
+    public void convertedPixelsLookInTheDirectionOfTheirFace() {
+        for (int layout : LAYOUTS) {
+            // A face size that is a multiple of the bands of rows, and one that isn't.
+            for (int sourceWidth : new int[] { 512, 1500 }) {
+                int[] source = createDirectionImage(sourceWidth);
+                int faceSize = CubemapConverter.getFaceSize(layout, sourceWidth);
+                int[] destination = CubemapConverter.convert(source, sourceWidth, sourceWidth / 2, layout, faceSize);
+                int error = getMaxChannelError(layout, faceSize, destination);
+                assertTrue("Converted pixels are off by " + error + " in layout " + layout
+                        + " from width " + sourceWidth, error <= MAX_CHANNEL_ERROR);
+            }
+        }
+    }
+
+    @Test
+    public void conversionDoesNotDependOnThePool() {
+        int sourceWidth = 800;
+        int[] source = createDirectionImage(sourceWidth);
+        for (int layout : LAYOUTS) {
+            int faceSize = CubemapConverter.getFaceSize(layout, sourceWidth);
+            int[] expected = CubemapConverter.convert(source, sourceWidth, sourceWidth / 2, layout, faceSize);
+            int[] actual = new int[expected.length];
+            ForkJoinPool pool = new ForkJoinPool(1);
+            try {
+                CubemapConverter.convert(source, sourceWidth, sourceWidth / 2, layout, faceSize, actual, pool);
+            } finally {
+                pool.shutdown();
+            }
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void facesAreAsSharpAsTheEquator() {
+        assertEquals(1024, CubemapConverter.getFaceSize(CubemapLayout.LAYOUT_EAC_3X2, 4096));
+        assertEquals(1304, CubemapConverter.getFaceSize(CubemapLayout.LAYOUT_CUBEMAP_3X2, 4096));
+        assertEquals(1, CubemapConverter.getFaceSize(CubemapLayout.LAYOUT_CUBEMAP_6X1, 1));
+    }
+
+    @Test
+    public void rejectsInvalidImages() {
+        int[] source = createDirectionImage(64);
+        int[] destination = new int[6 * 16 * 16];
+        // Faces of 17 pixels don't fit into the destination.
+        int[][] invalid = { { 0, 32, 16 }, { 64, 33, 16 }, { 64, 32, 0 }, { 64, 32, 17 } };
+        for (int[] p : invalid) {
+            try {
+                CubemapConverter.convert(source, p[0], p[1], CubemapLayout.LAYOUT_EAC_3X2, p[2], destination,
+                        ForkJoinPool.commonPool());
+                fail("Converted a " + p[0] + " x " + p[1] + " image into faces of " + p[2]);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    /**
+     * Creates an equirectangular image that encodes the direction of each pixel in its color
+     * channels.
+     */
+    private static int[] createDirectionImage(int width) {
+        int height = width / 2;
+        int[] image = new int[width * height];
+        for (int j = 0; j < height; j++) {
+            double lat = Math.PI / 2 - (j + 0.5) * Math.PI / height;
+            for (int i = 0; i < width; i++) {
+                double lon = (i + 0.5) * 2 * Math.PI / width - Math.PI;
+                image[j * width + i] = encode(
+                        Math.cos(lat) * Math.sin(lon), Math.sin(lat), -Math.cos(lat) * Math.cos(lon));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns the largest difference of a channel between each pixel of the converted faces and the
+     * direction that the layout gives for it.
+     */
+    private static int getMaxChannelError(int layout, int faceSize, int[] destination) {
+        CubemapLayout cubemap = CubemapLayout.get(layout);
+        int width = cubemap.columns * faceSize;
+        int height = cubemap.rows * faceSize;
+        int maxError = 0;
+        double[] direction = new double[3];
+        double[] uv = new double[2];
+        for (int face = 0; face < CubemapLayout.FACE_COUNT; face++) {
+            for (int j = 0; j < faceSize; j++) {
+                double t = (2 * j + 1) / (double) faceSize - 1;
+                for (int i = 0; i < faceSize; i++) {
+                    double s = (2 * i + 1) / (double) faceSize - 1;
+                    cubemap.getDirection(face, s, t, direction);
+                    cubemap.getTextureCoordinates(face, s, t, uv);
+                    double length = Math.sqrt(direction[0] * direction[0] + direction[1] * direction[1]
+                            + direction[2] * direction[2]);
+                    int expected = encode(direction[0] / length, direction[1] / length, direction[2] / length);
+                    int actual = destination[(int) (uv[1] * height) * width + (int) (uv[0] * width)];
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        maxError = Math.max(maxError,
+                                Math.abs(((expected >>> shift) & 0xFF) - ((actual >>> shift) & 0xFF)));
+                    }
+                }
+            }
+        }
+        return maxError;
+    }
+
+    private static int encode(double x, double y, double z) {
+        return 0xFF000000 | (channel(x) << 16) | (channel(y) << 8) | channel(z);
+    }
+
+    private static int channel(double c) {
+        return (int) Math.round((c + 1) * 127.5);
+    }
+}
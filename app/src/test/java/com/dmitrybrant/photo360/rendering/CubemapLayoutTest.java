@@ -0,0 +1,167 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class CubemapLayoutTest {
+    private static final float RADIUS = 50;
+    private static final double MAX_TEXTURE_ERROR = 1e-6;
+    private static final int[] LAYOUTS = { CubemapLayout.LAYOUT_CUBEMAP_3X2, CubemapLayout.LAYOUT_CUBEMAP_6X1,
+            CubemapLayout.LAYOUT_EAC_3X2 };
+    private static final int[] MEDIA_FORMATS = { MeshData.MEDIA_MONOSCOPIC, MeshData.MEDIA_STEREO_LEFT_RIGHT,
+            MeshData.MEDIA_STEREO_TOP_BOTTOM };
+
+    // Outward normal, and the directions of the right and down edges of the image of each face, in
+    // FACE_* order.
+    private static final double[][] FACE_AXES = {
+            { 1, 0, 0,   0, 0, 1,   0, -1, 0 },
+            { -1, 0, 0,  0, 0, -1,  0, -1, 0 },
+            { 0, 1, 0,   1, 0, 0,   0, 0, -1 },
+            { 0, -1, 0,  1, 0, 0,   0, 0, 1 },
+            { 0, 0, -1,  1, 0, 0,   0, -1, 0 },
+            { 0, 0, 1,   -1, 0, 0,  0, -1, 0 },
+    };
+
+    // For each layout and face: the column and row of the face in the frame, and the directions in
+    // the frame (with v down) of the right and down edges of the image of the face.
+    private static final int[][] FACE_CELLS = {
+            { 0, 0, 1, 0, 0, 1,  1, 0, 1, 0, 0, 1,  2, 0, 1, 0, 0, 1,
+              0, 1, 1, 0, 0, 1,  1, 1, 1, 0, 0, 1,  2, 1, 1, 0, 0, 1 },
+            { 0, 0, 1, 0, 0, 1,  1, 0, 1, 0, 0, 1,  2, 0, 1, 0, 0, 1,
+              3, 0, 1, 0, 0, 1,  4, 0, 1, 0, 0, 1,  5, 0, 1, 0, 0, 1 },
+            // EAC: the down and up faces are turned counterclockwise, and the back face clockwise.
+            { 2, 0, 1, 0, 0, 1,  0, 0, 1, 0, 0, 1,  2, 1, 0, -1, 1, 0,
+              0, 1, 0, -1, 1, 0,  1, 0, 1, 0, 0, 1,  1, 1, 0, 1, -1, 0 },
+    };
+
+    @Test
+    public void cubemapSpheresMapEachVertexIntoItsFace() {
+        for (int layout : LAYOUTS) {
+            for (int mediaFormat : MEDIA_FORMATS) {
+                for (int subdivisions : new int[] { 1, 16, 64 }) {
+                    assertTextureCoordinates(layout, mediaFormat,
+                            MeshData.createCubemapSphere(RADIUS, subdivisions, layout, mediaFormat));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void facesRoundTripThroughTheirImageCoordinates() {
+        double[] direction = new double[3];
+        double[] st = new double[2];
+        for (int layout : LAYOUTS) {
+            CubemapLayout cubemap = CubemapLayout.get(layout);
+            for (int face = 0; face < CubemapLayout.FACE_COUNT; face++) {
+                // Stay clear of the edges, where either of the neighbouring faces is a valid answer.
+                for (double s = -.9; s < 1; s += .3) {
+                    for (double t = -.9; t < 1; t += .3) {
+                        cubemap.getDirection(face, s, t, direction);
+                        assertEquals(face, cubemap.getFace(direction[0], direction[1], direction[2], st));
+                        assertEquals(s, st[0], 1e-9);
+                        assertEquals(t, st[1], 1e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsInvalidLayoutsAndFormats() {
+        try {
+            CubemapLayout.get(3);
+            fail("Accepted cubemap layout 3");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            MeshData.createCubemapSphere(RADIUS, 16, CubemapLayout.LAYOUT_EAC_3X2, MeshData.MEDIA_DUAL_FISHEYE);
+            fail("Accepted a dual fisheye cubemap");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Checks the texture coordinates of every vertex of the mesh against a separate, straightforward
+     * implementation of each projection and layout.
+     */
+    private static void assertTextureCoordinates(int layout, int mediaFormat, MeshData mesh) {
+        double[] uv = new double[2];
+        float[] v = mesh.vertices;
+        for (int i = 0; i < mesh.getVertexCount() * MeshData.CPV; i += MeshData.CPV) {
+            double length = Math.sqrt(v[i] * v[i] + v[i + 1] * v[i + 1] + v[i + 2] * v[i + 2]);
+            assertEquals(RADIUS, length, 1e-4);
+
+            // Vertices on the edges of a face are checked against the best matching face.
+            double error = Double.MAX_VALUE;
+            for (int face = 0; face < CubemapLayout.FACE_COUNT; face++) {
+                if (project(layout, face, v[i], v[i + 1], v[i + 2], uv)) {
+                    error = Math.min(error, Math.max(
+                            Math.max(Math.abs(v[i + 3] - eyeU(mediaFormat, uv[0], false)),
+                                    Math.abs(v[i + 4] - eyeV(mediaFormat, uv[1], false))),
+                            Math.max(Math.abs(v[i + 5] - eyeU(mediaFormat, uv[0], true)),
+                                    Math.abs(v[i + 6] - eyeV(mediaFormat, uv[1], true)))));
+                }
+            }
+            assertTrue("Texture coordinates of layout " + layout + " in format " + mediaFormat
+                    + " are off by " + error, error <= MAX_TEXTURE_ERROR);
+        }
+    }
+
+    /**
+     * Computes the texture coordinates of a direction in the given face, before splitting the frame
+     * between the eyes. Returns false if the direction isn't on that face.
+     */
+    private static boolean project(int layout, int face, double x, double y, double z, double[] uv) {
+        double[] axes = FACE_AXES[face];
+        double dot = x * axes[0] + y * axes[1] + z * axes[2];
+        if (dot <= 0) {
+            return false;
+        }
+        double a = (x * axes[3] + y * axes[4] + z * axes[5]) / dot;
+        double b = (x * axes[6] + y * axes[7] + z * axes[8]) / dot;
+        if (Math.abs(a) > 1 + 1e-6 || Math.abs(b) > 1 + 1e-6) {
+            return false;
+        }
+        CubemapLayout cubemap = CubemapLayout.get(layout);
+        if (cubemap.equiAngular) {
+            a = Math.atan(a) / (Math.PI / 4);
+            b = Math.atan(b) / (Math.PI / 4);
+        }
+        int[] cell = FACE_CELLS[layout];
+        int c = face * 6;
+        double cellX = a * cell[c + 2] + b * cell[c + 4];
+        double cellY = a * cell[c + 3] + b * cell[c + 5];
+        uv[0] = (cell[c] + (cellX + 1) / 2) / cubemap.columns;
+        uv[1] = (cell[c + 1] + (cellY + 1) / 2) / cubemap.rows;
+        return true;
+    }
+
+    private static double eyeU(int mediaFormat, double u, boolean rightEye) {
+        return mediaFormat == MeshData.MEDIA_STEREO_LEFT_RIGHT ? (u + (rightEye ? 1 : 0)) / 2 : u;
+    }
+
+    private static double eyeV(int mediaFormat, double v, boolean rightEye) {
+        return mediaFormat == MeshData.MEDIA_STEREO_TOP_BOTTOM ? (v + (rightEye ? 1 : 0)) / 2 : v;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+
+public class DownloadCacheTest {
+    private static final int FILE_BYTES = 1000;
+    private static final int CHUNK_SIZE = 100;
+    private static final Executor DIRECT = Runnable::run;
+    private static final String URI = "https://example.com/pano.jpg";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void completedDownloadsAreKeptForTheSameVersion() throws IOException {
+        DownloadCache cache = new DownloadCache(folder.getRoot(), 10 * FILE_BYTES);
+        assertNull(cache.get(URI, "v1", FILE_BYTES));
+        File file = download(cache, URI, "v1");
+
+        assertEquals(file, cache.get(URI, "v1", FILE_BYTES));
+        assertNull(cache.get(URI, "v2", FILE_BYTES));
+        assertNull(cache.get(URI, "v1", FILE_BYTES + 1));
+        assertNull(cache.get(URI + "?", "v1", FILE_BYTES));
+    }
+
+    @Test
+    public void incompleteDownloadsAreNotReturned() throws IOException {
+        DownloadCache cache = new DownloadCache(folder.getRoot(), 10 * FILE_BYTES);
+        ChunkedDownload download = cache.open(URI, "v1", FILE_BYTES, CHUNK_SIZE);
+        cancelAfterFirstChunk(download);
+        assertNull(cache.get(URI, "v1", FILE_BYTES));
+
+        // Opening it again resumes it.
+        download = cache.open(URI, "v1", FILE_BYTES, CHUNK_SIZE);
+        assertEquals(CHUNK_SIZE, download.getBytesDone());
+        download.download(DownloadCacheTest::openRange, 1, DIRECT);
+        assertNotNull(cache.get(URI, "v1", FILE_BYTES));
+    }
+
+    @Test
+    public void onlyTheLatestIncompleteDownloadIsKept() throws IOException {
+        DownloadCache cache = new DownloadCache(folder.getRoot(), 10 * FILE_BYTES);
+        File complete = download(cache, URI, "v1");
+        cancelAfterFirstChunk(cache.open(URI, "v2", FILE_BYTES, CHUNK_SIZE));
+        cancelAfterFirstChunk(cache.open(URI, "v3", FILE_BYTES, CHUNK_SIZE));
+        assertEquals(CHUNK_SIZE, cache.open(URI, "v3", FILE_BYTES, CHUNK_SIZE).getBytesDone());
+        assertEquals(0, cache.open(URI, "v2", FILE_BYTES, CHUNK_SIZE).getBytesDone());
+        assertTrue(complete.exists());
+    }
+
+    @Test
+    public void leastRecentlyUsedDownloadsAreEvicted() throws IOException {
+        DownloadCache cache = new DownloadCache(folder.getRoot(), 3 * FILE_BYTES);
+        File first = download(cache, URI + 1, "v1");
+        File second = download(cache, URI + 2, "v1");
+        File third = download(cache, URI + 3, "v1");
+        long now = System.currentTimeMillis();
+        assertTrue(first.setLastModified(now - 30000));
+        assertTrue(second.setLastModified(now - 20000));
+        assertTrue(third.setLastModified(now - 10000));
+        // Using the first one makes the second one the least recently used.
+        assertEquals(first, cache.get(URI + 1, "v1", FILE_BYTES));
+
+        File fourth = download(cache, URI + 4, "v1");
+        assertTrue(first.exists());
+        assertFalse(second.exists());
+        assertTrue(third.exists());
+        assertTrue(fourth.exists());
+    }
+
+    @Test
+    public void namesDigestTheWholeUriAndValidator() {
+        String name = DownloadCache.getFileName(URI, "v1");
+        assertEquals(64, name.length());
+        assertTrue(name.matches("[0-9a-f]+"));
+        assertEquals(name, DownloadCache.getFileName(URI, "v1"));
+        assertNotEquals(name, DownloadCache.getFileName(URI, "v2"));
+        assertNotEquals(name, DownloadCache.getFileName(URI + "v", "1"));
+        // Strings with the same hash code.
+        assertNotEquals(DownloadCache.getFileName("Aa", "v1"), DownloadCache.getFileName("BB", "v1"));
+    }
+
+    private static File download(DownloadCache cache, String uri, String validator) throws IOException {
+        ChunkedDownload download = cache.open(uri, validator, FILE_BYTES, CHUNK_SIZE);
+        download.download(DownloadCacheTest::openRange, 1, DIRECT);
+        return download.getFile();
+    }
+
+    private static void cancelAfterFirstChunk(ChunkedDownload download) throws IOException {
+        try {
+            download.download((start, end) -> {
+                if (start > 0) {
+                    download.cancel();
+                }
+                return openRange(start, end);
+            }, 1, DIRECT);
+        } catch (InterruptedIOException e) {
+            // Expected.
+        }
+    }
+
+    private static ByteArrayInputStream openRange(long start, long end) {
+        return new ByteArrayInputStream(new byte[(int) (end - start)]);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class FisheyeLensTest {
+    private static final float RADIUS = 50;
+    // Largest angle between a vertex and the direction that its texture coordinates map back to.
+    private static final double MAX_DIRECTION_ERROR = 1e-5;
+
+    // Slightly off-center lenses of different sizes, so that mixing them up doesn't go unnoticed.
+    private static final FisheyeLens FRONT_LENS = new FisheyeLens(.26f, .49f, .24f, .47f, 195);
+    private static final FisheyeLens BACK_LENS = new FisheyeLens(.74f, .51f, .245f, .48f, 200);
+
+    @Test
+    public void projectsEquidistantly() {
+        FisheyeLens lens = FRONT_LENS;
+        float[] uv = new float[2];
+
+        lens.project(0, 0, 1, uv, 0);
+        assertEquals(lens.centerU, uv[0], 1e-6);
+        assertEquals(lens.centerV, uv[1], 1e-6);
+
+        // The edge of the circle is at half of the field of view, to the right in u and up in -v.
+        double edge = Math.toRadians(lens.fovDegrees / 2);
+        lens.project(Math.sin(edge), 0, Math.cos(edge), uv, 0);
+        assertEquals(lens.centerU + lens.radiusU, uv[0], 1e-6);
+        assertEquals(lens.centerV, uv[1], 1e-6);
+        lens.project(0, Math.sin(edge), Math.cos(edge), uv, 0);
+        assertEquals(lens.centerU, uv[0], 1e-6);
+        assertEquals(lens.centerV - lens.radiusV, uv[1], 1e-6);
+
+        // The distance from the center is proportional to the angle, not to its sine.
+        double angle = Math.toRadians(40);
+        double diagonal = Math.sqrt(.5);
+        lens.project(Math.sin(angle) * diagonal, -Math.sin(angle) * diagonal, Math.cos(angle), uv, 0);
+        double r = angle / edge;
+        assertEquals(lens.centerU + lens.radiusU * r * diagonal, uv[0], 1e-6);
+        assertEquals(lens.centerV + lens.radiusV * r * diagonal, uv[1], 1e-6);
+
+        // Only the direction matters, not the length.
+        float[] scaled = new float[2];
+        lens.project(3 * Math.sin(angle), 0, 3 * Math.cos(angle), scaled, 0);
+        lens.project(Math.sin(angle), 0, Math.cos(angle), uv, 0);
+        assertEquals(uv[0], scaled[0], 1e-6);
+        assertEquals(uv[1], scaled[1], 1e-6);
+    }
+
+    @Test
+    public void projectsDirectionsBehindTheLensOutsideOfTheCircle() {
+        FisheyeLens lens = FisheyeLens.halfFrame(true, 190);
+        float[] uv = new float[3];
+        lens.project(0, 0, -1, uv, 1);
+        double r = Math.hypot((uv[1] - lens.centerU) / lens.radiusU, (uv[2] - lens.centerV) / lens.radiusV);
+        assertEquals(360.0 / 190, r, 1e-5);
+        assertEquals(0, uv[0], 0);
+    }
+
+    @Test
+    public void rejectsInvalidLenses() {
+        float[][] invalid = { { .5f, .5f, 0, .5f, 190 }, { .5f, .5f, .5f, -1, 190 },
+                { .5f, .5f, .5f, .5f, 0 }, { .5f, .5f, .5f, .5f, 360 }, { .5f, .5f, .5f, .5f, Float.NaN } };
+        for (float[] p : invalid) {
+            try {
+                new FisheyeLens(p[0], p[1], p[2], p[3], p[4]);
+                fail("Accepted lens with radius " + p[2] + " x " + p[3] + " and FOV " + p[4]);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void dualFisheyeSphereMapsEachVertexIntoItsLenses() {
+        MeshData mesh = MeshData.createDualFisheyeSphere(RADIUS, 64, 128, FRONT_LENS, BACK_LENS);
+        // The seam band is where both lenses see the vertex, i.e. within half of the overlap of the
+        // lenses beyond 180 degrees from the plane between them.
+        double seamSin = Math.sin(Math.toRadians((Math.min(FRONT_LENS.fovDegrees, BACK_LENS.fovDegrees) - 180) / 2));
+        int seamVertices = 0;
+        float[] v = mesh.vertices;
+        for (int i = 0; i < mesh.getVertexCount() * MeshData.CPV; i += MeshData.CPV) {
+            double length = Math.sqrt(v[i] * v[i] + v[i + 1] * v[i + 1] + v[i + 2] * v[i + 2]);
+            double x = v[i] / length;
+            double y = v[i + 1] / length;
+            double z = v[i + 2] / length;
+            // The front lens faces -Z, and the back lens faces +Z, mirrored.
+            double[] front = unproject(FRONT_LENS, v[i + 3], v[i + 4]);
+            double[] back = unproject(BACK_LENS, v[i + 5], v[i + 6]);
+            if (z <= 0) {
+                assertNotNull("Front lens doesn't see " + x + ", " + y + ", " + z, front);
+            }
+            if (z >= 0) {
+                assertNotNull("Back lens doesn't see " + x + ", " + y + ", " + z, back);
+            }
+            if (Math.abs(z) < seamSin) {
+                // Both lenses are blended across the seam, so both need to see the vertex.
+                assertNotNull(front);
+                assertNotNull(back);
+                seamVertices++;
+            }
+            if (front != null) {
+                assertTrue(angle(x, y, z, front[0], front[1], -front[2]) < MAX_DIRECTION_ERROR);
+            }
+            if (back != null) {
+                assertTrue(angle(x, y, z, -back[0], back[1], back[2]) < MAX_DIRECTION_ERROR);
+            }
+        }
+        assertTrue(seamVertices > 0);
+    }
+
+    /** Returns the direction relative to the lens of a point in its circle, or null if outside. */
+    private static double[] unproject(FisheyeLens lens, float u, float v) {
+        double dx = (u - lens.centerU) / lens.radiusU;
+        double dy = -(v - lens.centerV) / lens.radiusV;
+        double r = Math.sqrt(dx * dx + dy * dy);
+        if (r > 1) {
+            return null;
+        }
+        double theta = r * Math.toRadians(lens.fovDegrees / 2);
+        double scale = r > 0 ? Math.sin(theta) / r : 0;
+        return new double[] { dx * scale, dy * scale, Math.cos(theta) };
+    }
+
+    private static double angle(double x0, double y0, double z0, double x1, double y1, double z1) {
+        double cx = y0 * z1 - z0 * y1;
+        double cy = z0 * x1 - x0 * z1;
+        double cz = x0 * y1 - y0 * x1;
+        return Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz), x0 * x1 + y0 * y1 + z0 * z1);
+    }
+}
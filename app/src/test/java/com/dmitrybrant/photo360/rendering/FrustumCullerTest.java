@@ -0,0 +1,298 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class FrustumCullerTest {
+    private static final int CPV = 7;
+    private static final float RADIUS = 50;
+    // The view of MonoscopicView.
+    private static final float FIELD_OF_VIEW_DEGREES = 90;
+    private static final float Z_NEAR = .1f;
+    private static final float Z_FAR = 100f;
+    // Portrait and landscape.
+    private static final float[] ASPECTS = { 0.5625f, 1.7778f };
+    // Samples along each edge of a triangle when looking for a point of it in view.
+    private static final int SAMPLES = 4;
+    // Upper bound on the average fraction of the indices that are drawn, which is the highest in a
+    // landscape view.
+    private static final double MAX_DRAWN_FRACTION = 0.4;
+
+    @Test
+    public void extractsThePlanesOfTheFrustum() {
+        FrustumCuller culler = new FrustumCuller();
+        float[] viewProjection = new float[16];
+        perspective(viewProjection, FIELD_OF_VIEW_DEGREES, 1, Z_NEAR, Z_FAR);
+        culler.setViewProjection(viewProjection, 0);
+
+        // Straight ahead, between the near and far planes.
+        assertTrue(isPointVisible(culler, 0, 0, RADIUS));
+        assertFalse(isPointVisible(culler, 0, 0, Z_NEAR / 2));
+        assertFalse(isPointVisible(culler, 0, 0, Z_FAR * 1.01f));
+        // Behind the viewer.
+        assertFalse(isPointVisible(culler, 180, 0, RADIUS));
+        // Just inside and just outside of each side.
+        assertTrue(isPointVisible(culler, 44, 0, RADIUS));
+        assertFalse(isPointVisible(culler, 46, 0, RADIUS));
+        assertTrue(isPointVisible(culler, -44, 0, RADIUS));
+        assertFalse(isPointVisible(culler, -46, 0, RADIUS));
+        assertTrue(isPointVisible(culler, 0, 44, RADIUS));
+        assertFalse(isPointVisible(culler, 0, 46, RADIUS));
+        assertTrue(isPointVisible(culler, 0, -44, RADIUS));
+        assertFalse(isPointVisible(culler, 0, -46, RADIUS));
+
+        // The planes come from the view-projection matrix at the given offset, so turning the view
+        // to the right brings what was on the right into view.
+        float[] view = new float[16];
+        float[] matrices = new float[32];
+        rotate(view, 60, 0, 1, 0);
+        multiplyMM(viewProjection, view);
+        System.arraycopy(viewProjection, 0, matrices, 16, 16);
+        culler.setViewProjection(matrices, 16);
+        assertTrue(isPointVisible(culler, 60, 0, RADIUS));
+        assertFalse(isPointVisible(culler, 0, 0, RADIUS));
+    }
+
+    @Test
+    public void conesAreVisibleWhenAnyPartOfThemIsInView() {
+        FrustumCuller culler = new FrustumCuller();
+        float[] viewProjection = new float[16];
+        perspective(viewProjection, FIELD_OF_VIEW_DEGREES, 1, Z_NEAR, Z_FAR);
+        culler.setViewProjection(viewProjection, 0);
+
+        // The axis is out of view 60 degrees to the right, so whether the cone reaches into the view
+        // depends on its angle.
+        assertTrue(culler.isVisible(cone(60, 0, 20, RADIUS, RADIUS), 0));
+        assertFalse(culler.isVisible(cone(60, 0, 10, RADIUS, RADIUS), 0));
+        // Cones that are wide enough reach around from behind the viewer into the view.
+        assertTrue(culler.isVisible(cone(180, 0, 170, RADIUS, RADIUS), 0));
+        assertFalse(culler.isVisible(cone(180, 0, 80, RADIUS, RADIUS), 0));
+        // Only the range of distances between the near and far planes is in view.
+        assertTrue(culler.isVisible(cone(0, 0, 5, Z_NEAR / 2, Z_FAR * 2), 0));
+        assertFalse(culler.isVisible(cone(0, 0, 5, Z_FAR * 1.5f, Z_FAR * 2), 0));
+        assertFalse(culler.isVisible(cone(0, 0, 5, 0, Z_NEAR / 2), 0));
+    }
+
+    @Test
+    public void sectorsAheadAreDrawnAndSectorsBehindAreCulled() {
+        FrustumCuller culler = new FrustumCuller();
+        float[] viewProjection = new float[16];
+        perspective(viewProjection, FIELD_OF_VIEW_DEGREES, 1, Z_NEAR, Z_FAR);
+        culler.setViewProjection(viewProjection, 0);
+
+        MeshData mesh = MeshData.createIndexedUvSphere(RADIUS, 32, 64, 180, 360, MeshData.MEDIA_MONOSCOPIC);
+        int ahead = 0;
+        int behind = 0;
+        for (int s = 0; s < mesh.getSectorCount(); s++) {
+            int offset = s * MeshData.SECTOR_BOUNDS_STRIDE;
+            float[] bounds = mesh.sectorBounds;
+            // Angle from straight ahead (-Z) to the axis of the sector's cone.
+            double angle = Math.acos(-bounds[offset + 2]);
+            double halfAngle = Math.atan2(bounds[offset + 4], bounds[offset + 3]);
+            if (angle < halfAngle) {
+                assertTrue("Sector " + s + " is straight ahead", culler.isVisible(bounds, offset));
+                ahead++;
+            } else if (angle - halfAngle > Math.PI / 2) {
+                assertFalse("Sector " + s + " is behind the viewer", culler.isVisible(bounds, offset));
+                behind++;
+            }
+        }
+        assertTrue(ahead > 0);
+        assertTrue(behind > mesh.getSectorCount() / 4);
+    }
+
+    @Test
+    public void trianglesInViewAreNeverCulled() {
+        assertCullsConservatively(
+                MeshData.createIndexedUvSphere(RADIUS, 32, 32, 180, 360, MeshData.MEDIA_MONOSCOPIC),
+                MAX_DRAWN_FRACTION);
+        // Just large enough to be split into chunks.
+        assertCullsConservatively(
+                MeshData.createIndexedUvSphere(RADIUS, 256, 256, 180, 360, MeshData.MEDIA_MONOSCOPIC),
+                MAX_DRAWN_FRACTION);
+        assertCullsConservatively(
+                MeshData.createAdaptiveUvSphere(RADIUS, 64, 128, 180, 360, MeshData.MEDIA_MONOSCOPIC),
+                MAX_DRAWN_FRACTION);
+        // A section of a cropped panorama is in view much of the time.
+        assertCullsConservatively(
+                MeshData.createAdaptiveSphereSection(RADIUS, 16, 12, -30, 60, -90, 45, MeshData.MEDIA_MONOSCOPIC),
+                1);
+    }
+
+    /**
+     * Looks around in steps of 30 degrees, and checks that no triangle in view is culled, and that
+     * at most the given fraction of the indices is drawn on average.
+     */
+    private static void assertCullsConservatively(MeshData mesh, double maxDrawnFraction) {
+        FrustumCuller culler = new FrustumCuller();
+        float[] projection = new float[16];
+        float[] pitch = new float[16];
+        float[] yaw = new float[16];
+        float[] view = new float[16];
+        float[] viewProjection = new float[16];
+        int[] ranges = new int[3 * mesh.getSectorCount()];
+        for (float aspect : ASPECTS) {
+            perspective(projection, FIELD_OF_VIEW_DEGREES, aspect, Z_NEAR, Z_FAR);
+            long drawnIndices = 0;
+            int views = 0;
+            for (int p = -90; p <= 90; p += 30) {
+                for (int y = 0; y < 360; y += 30) {
+                    rotate(pitch, p, 1, 0, 0);
+                    rotate(yaw, y, 0, 1, 0);
+                    multiplyMM(view, pitch, yaw);
+                    multiplyMM(viewProjection, projection, view);
+                    culler.setViewProjection(viewProjection, 0);
+                    int count = culler.getVisibleRanges(mesh, ranges);
+                    drawnIndices += assertTrianglesInViewAreDrawn(mesh, viewProjection, ranges, count);
+                    views++;
+                }
+            }
+            double drawnFraction = (double) drawnIndices / views / mesh.getIndexCount();
+            assertTrue("Culling draws " + drawnFraction + " of the mesh", drawnFraction <= maxDrawnFraction);
+        }
+    }
+
+    /**
+     * Checks that every triangle with a point in view is in one of the visible ranges, and returns
+     * the number of indices in the visible ranges.
+     */
+    private static int assertTrianglesInViewAreDrawn(MeshData mesh, float[] viewProjection, int[] ranges, int count) {
+        boolean[] drawn = new boolean[mesh.getIndexCount() / 3];
+        int drawnIndices = 0;
+        for (int r = 0; r < count; r++) {
+            for (int k = ranges[3 * r + 1]; k < ranges[3 * r + 2]; k += 3) {
+                assertFalse("Triangle drawn twice", drawn[k / 3]);
+                drawn[k / 3] = true;
+            }
+            drawnIndices += ranges[3 * r + 2] - ranges[3 * r + 1];
+        }
+        float[] v = mesh.vertices;
+        for (int c = 0; c < mesh.getChunkCount(); c++) {
+            int base = mesh.chunkVertexOffsets[c];
+            for (int k = mesh.chunkIndexOffsets[c]; k < mesh.chunkIndexOffsets[c + 1]; k += 3) {
+                if (drawn[k / 3]) {
+                    continue;
+                }
+                int a = (base + (mesh.indices[k] & 0xFFFF)) * CPV;
+                int b = (base + (mesh.indices[k + 1] & 0xFFFF)) * CPV;
+                int d = (base + (mesh.indices[k + 2] & 0xFFFF)) * CPV;
+                for (int p = 0; p <= SAMPLES; p++) {
+                    for (int q = 0; q <= SAMPLES - p; q++) {
+                        float wa = p / (float) SAMPLES;
+                        float wb = q / (float) SAMPLES;
+                        float wd = 1 - wa - wb;
+                        assertFalse("Culled a triangle that is in view", isInView(viewProjection,
+                                wa * v[a] + wb * v[b] + wd * v[d],
+                                wa * v[a + 1] + wb * v[b + 1] + wd * v[d + 1],
+                                wa * v[a + 2] + wb * v[b + 2] + wd * v[d + 2]));
+                    }
+                }
+            }
+        }
+        return drawnIndices;
+    }
+
+    private static boolean isInView(float[] m, float x, float y, float z) {
+        float clipX = m[0] * x + m[4] * y + m[8] * z + m[12];
+        float clipY = m[1] * x + m[5] * y + m[9] * z + m[13];
+        float clipZ = m[2] * x + m[6] * y + m[10] * z + m[14];
+        float clipW = m[3] * x + m[7] * y + m[11] * z + m[15];
+        return Math.abs(clipX) <= clipW && Math.abs(clipY) <= clipW && Math.abs(clipZ) <= clipW;
+    }
+
+    /** Tests a sector that is a single point, in the given direction from straight ahead. */
+    private static boolean isPointVisible(FrustumCuller culler, float rightDegrees, float upDegrees, float distance) {
+        return culler.isVisible(cone(rightDegrees, upDegrees, 0, distance, distance), 0);
+    }
+
+    /**
+     * Returns the bounds of a sector whose cone points in the given direction from straight ahead,
+     * in the layout of {@link MeshData#sectorBounds}.
+     */
+    private static float[] cone(float rightDegrees, float upDegrees, float halfAngleDegrees,
+            float minDistance, float maxDistance) {
+        double right = Math.toRadians(rightDegrees);
+        double up = Math.toRadians(upDegrees);
+        double halfAngle = Math.toRadians(halfAngleDegrees);
+        return new float[] {
+                (float) (Math.sin(right) * Math.cos(up)),
+                (float) Math.sin(up),
+                (float) (-Math.cos(right) * Math.cos(up)),
+                (float) Math.cos(halfAngle),
+                (float) Math.sin(halfAngle),
+                minDistance,
+                maxDistance,
+        };
+    }
+
+    /** Multiplies the matrix by the given one from the right, in place. */
+    private static void multiplyMM(float[] matrix, float[] rhs) {
+        float[] lhs = Arrays.copyOf(matrix, 16);
+        multiplyMM(matrix, lhs, rhs);
+    }
+
+    // Same as android.opengl.Matrix, which isn't available in local unit tests.
+
+    private static void multiplyMM(float[] result, float[] lhs, float[] rhs) {
+        for (int i = 0; i < 4; i++) {
+            float rhs0 = rhs[4 * i];
+            float rhs1 = rhs[4 * i + 1];
+            float rhs2 = rhs[4 * i + 2];
+            float rhs3 = rhs[4 * i + 3];
+            for (int j = 0; j < 4; j++) {
+                result[4 * i + j] = lhs[j] * rhs0 + lhs[4 + j] * rhs1 + lhs[8 + j] * rhs2 + lhs[12 + j] * rhs3;
+            }
+        }
+    }
+
+    private static void perspective(float[] m, float fovyDegrees, float aspect, float near, float far) {
+        float f = 1.0f / (float) Math.tan(Math.toRadians(fovyDegrees) / 2);
+        Arrays.fill(m, 0);
+        m[0] = f / aspect;
+        m[5] = f;
+        m[10] = (far + near) / (near - far);
+        m[11] = -1;
+        m[14] = 2 * far * near / (near - far);
+    }
+
+    private static void rotate(float[] m, float degrees, float x, float y, float z) {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        x /= length;
+        y /= length;
+        z /= length;
+        float s = (float) Math.sin(Math.toRadians(degrees));
+        float c = (float) Math.cos(Math.toRadians(degrees));
+        float nc = 1 - c;
+        Arrays.fill(m, 0);
+        m[0] = x * x * nc + c;
+        m[1] = y * x * nc + z * s;
+        m[2] = x * z * nc - y * s;
+        m[4] = x * y * nc - z * s;
+        m[5] = y * y * nc + c;
+        m[6] = y * z * nc + x * s;
+        m[8] = x * z * nc + y * s;
+        m[9] = y * z * nc - x * s;
+        m[10] = z * z * nc + c;
+        m[15] = 1;
+    }
+}
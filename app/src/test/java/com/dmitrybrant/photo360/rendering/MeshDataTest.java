@@ -0,0 +1,258 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class MeshDataTest {
+    private static final int CPV = 7;
+    private static final float RADIUS = 50;
+    // Samples along each edge of a triangle when measuring how far its texture strays.
+    private static final int SAMPLES = 6;
+    // Allows for the rounding of the float vertices.
+    private static final double TEXTURE_ERROR_TOLERANCE = 1.001;
+    private static final double STRAIGHT_LINE_ERROR_TOLERANCE = 1.001;
+
+    @Test
+    public void indexedSphereHasTheTrianglesOfTheStrip() {
+        int[] mediaFormats = { MeshData.MEDIA_MONOSCOPIC, MeshData.MEDIA_STEREO_LEFT_RIGHT,
+                MeshData.MEDIA_STEREO_TOP_BOTTOM };
+        for (int mediaFormat : mediaFormats) {
+            assertSameTriangles(8, 16, 180, 360, mediaFormat);
+            assertSameTriangles(32, 64, 120, 360, mediaFormat);
+            assertSameTriangles(17, 9, 180, 90, mediaFormat);
+        }
+    }
+
+    @Test
+    public void largeIndexedSphereIsSplitIntoChunks() {
+        MeshData mesh = MeshData.createIndexedUvSphere(RADIUS, 256, 512, 180, 360, MeshData.MEDIA_MONOSCOPIC);
+        assertEquals(257 * 513, mesh.getVertexCount());
+        assertTrue(mesh.getChunkCount() > 1);
+        for (int c = 0; c < mesh.getChunkCount(); c++) {
+            for (int k = mesh.chunkIndexOffsets[c]; k < mesh.chunkIndexOffsets[c + 1]; k++) {
+                assertTrue(mesh.chunkVertexOffsets[c] + (mesh.indices[k] & 0xFFFF) < mesh.getVertexCount());
+            }
+        }
+        // Chunks must not lose or duplicate the triangles along their borders.
+        assertSameTriangles(256, 512, 180, 360, MeshData.MEDIA_MONOSCOPIC);
+    }
+
+    @Test
+    public void adaptiveSphereIsAsAccurateAsTheUniformSphereWithNoMoreTriangles() {
+        int[][] densities = { { 32, 32 }, { 32, 64 }, { 64, 128 }, { 128, 256 }, { 256, 512 } };
+        for (int[] density : densities) {
+            assertAsAccurateWithNoMoreTriangles(density[0], density[1], -90, 90, -180, 180);
+            // Whole spheres have rings between the poles and the equator that can be thinned out.
+            MeshData uniform = MeshData.createIndexedUvSphere(
+                    RADIUS, density[0], density[1], 180, 360, MeshData.MEDIA_MONOSCOPIC);
+            MeshData adaptive = MeshData.createAdaptiveUvSphere(
+                    RADIUS, density[0], density[1], 180, 360, MeshData.MEDIA_MONOSCOPIC);
+            assertTrue(adaptive.getIndexCount() < uniform.getIndexCount());
+        }
+        // Sections of cropped panoramas, which don't reach the poles.
+        assertAsAccurateWithNoMoreTriangles(22, 32, -60, 60, -180, 180);
+        assertAsAccurateWithNoMoreTriangles(16, 12, -30, 60, -90, 45);
+    }
+
+    @Test
+    public void adaptiveSphereIsMoreAccurateThanUniformSphereWithAsManyTriangles() {
+        int[][] densities = { { 32, 64 }, { 64, 128 }, { 128, 256 } };
+        for (int[] density : densities) {
+            MeshData adaptive = MeshData.createAdaptiveUvSphere(
+                    RADIUS, density[0], density[1], 180, 360, MeshData.MEDIA_MONOSCOPIC);
+            // The smallest uniform sphere with twice as many columns as rows, and at least as many
+            // triangles. Each band has two triangles per column, except at the poles.
+            int latitudes = 1;
+            while (2 * 2 * latitudes * (latitudes - 1) < adaptive.getIndexCount() / 3) {
+                latitudes++;
+            }
+            MeshData uniform = MeshData.createIndexedUvSphere(
+                    RADIUS, latitudes, 2 * latitudes, 180, 360, MeshData.MEDIA_MONOSCOPIC);
+            assertTrue(uniform.getIndexCount() >= adaptive.getIndexCount());
+            double adaptiveError = getMaxTextureError(adaptive, -90, 90, -180, 180);
+            double uniformError = getMaxTextureError(uniform, -90, 90, -180, 180);
+            assertTrue("Adaptive " + density[0] + " x " + density[1] + " sphere is off by " + adaptiveError
+                    + " rad, uniform " + latitudes + " x " + 2 * latitudes + " sphere by " + uniformError
+                    + " rad", adaptiveError < uniformError);
+        }
+    }
+
+    private static void assertAsAccurateWithNoMoreTriangles(int latitudes, int longitudes,
+            float bottom, float top, float left, float right) {
+        MeshData uniform = MeshData.createIndexedSphereSection(
+                RADIUS, latitudes, longitudes, bottom, top, left, right, MeshData.MEDIA_MONOSCOPIC);
+        MeshData adaptive = MeshData.createAdaptiveSphereSection(
+                RADIUS, latitudes, longitudes, bottom, top, left, right, MeshData.MEDIA_MONOSCOPIC);
+        String name = latitudes + " x " + longitudes + " section from " + bottom + ", " + left;
+        assertTrue(name + " has more triangles", adaptive.getIndexCount() <= uniform.getIndexCount());
+        double uniformError = getMaxTextureError(uniform, bottom, top, left, right);
+        double adaptiveError = getMaxTextureError(adaptive, bottom, top, left, right);
+        assertTrue(name + " is off by " + adaptiveError + " rad instead of " + uniformError,
+                adaptiveError <= uniformError * TEXTURE_ERROR_TOLERANCE);
+        double uniformDeviation = getMaxStraightLineError(uniform);
+        double adaptiveDeviation = getMaxStraightLineError(adaptive);
+        assertTrue(name + " is inside the sphere by " + adaptiveDeviation + " instead of " + uniformDeviation,
+                adaptiveDeviation <= uniformDeviation * STRAIGHT_LINE_ERROR_TOLERANCE);
+    }
+
+    /**
+     * Returns how far any point of an indexed mesh lies inside the sphere that its vertices are on,
+     * sampled across each triangle.
+     */
+    private static double getMaxStraightLineError(MeshData mesh) {
+        float[] v = mesh.vertices;
+        double maxError = 0;
+        for (int c = 0; c < mesh.getChunkCount(); c++) {
+            int base = mesh.chunkVertexOffsets[c];
+            for (int k = mesh.chunkIndexOffsets[c]; k < mesh.chunkIndexOffsets[c + 1]; k += 3) {
+                int a = (base + (mesh.indices[k] & 0xFFFF)) * CPV;
+                int b = (base + (mesh.indices[k + 1] & 0xFFFF)) * CPV;
+                int d = (base + (mesh.indices[k + 2] & 0xFFFF)) * CPV;
+                for (int p = 0; p <= SAMPLES; p++) {
+                    for (int q = 0; q <= SAMPLES - p; q++) {
+                        double wa = p / (double) SAMPLES;
+                        double wb = q / (double) SAMPLES;
+                        double wd = 1 - wa - wb;
+                        double x = wa * v[a] + wb * v[b] + wd * v[d];
+                        double y = wa * v[a + 1] + wb * v[b + 1] + wd * v[d + 1];
+                        double z = wa * v[a + 2] + wb * v[b + 2] + wd * v[d + 2];
+                        maxError = Math.max(maxError, RADIUS - Math.sqrt(x * x + y * y + z * z));
+                    }
+                }
+            }
+        }
+        return maxError;
+    }
+
+    /**
+     * Returns the largest angle between the direction of a point of a monoscopic indexed mesh, and
+     * the direction that its interpolated texture coordinates map to in the equirectangular image,
+     * sampled across each triangle the way that the GPU interpolates it.
+     */
+    private static double getMaxTextureError(MeshData mesh, float bottom, float top, float left, float right) {
+        double bottomRads = Math.toRadians(bottom);
+        double leftRads = Math.toRadians(left);
+        double verticalFovRads = Math.toRadians(top - bottom);
+        double horizontalFovRads = Math.toRadians(right - left);
+        float[] v = mesh.vertices;
+        double maxError = 0;
+        for (int c = 0; c < mesh.getChunkCount(); c++) {
+            int base = mesh.chunkVertexOffsets[c];
+            for (int k = mesh.chunkIndexOffsets[c]; k < mesh.chunkIndexOffsets[c + 1]; k += 3) {
+                int a = (base + (mesh.indices[k] & 0xFFFF)) * CPV;
+                int b = (base + (mesh.indices[k + 1] & 0xFFFF)) * CPV;
+                int d = (base + (mesh.indices[k + 2] & 0xFFFF)) * CPV;
+                for (int p = 0; p <= SAMPLES; p++) {
+                    for (int q = 0; q <= SAMPLES - p; q++) {
+                        double wa = p / (double) SAMPLES;
+                        double wb = q / (double) SAMPLES;
+                        double wd = 1 - wa - wb;
+                        double x = wa * v[a] + wb * v[b] + wd * v[d];
+                        double y = wa * v[a + 1] + wb * v[b + 1] + wd * v[d + 1];
+                        double z = wa * v[a + 2] + wb * v[b + 2] + wd * v[d + 2];
+                        double u = wa * v[a + 3] + wb * v[b + 3] + wd * v[d + 3];
+                        double t = wa * v[a + 4] + wb * v[b + 4] + wd * v[d + 4];
+
+                        // Inverse of the mapping in MeshData.
+                        double theta = u * horizontalFovRads + Math.PI + leftRads;
+                        double phi = (1 - t) * verticalFovRads + bottomRads;
+                        double ex = -Math.sin(theta) * Math.cos(phi);
+                        double ey = Math.sin(phi);
+                        double ez = Math.cos(theta) * Math.cos(phi);
+                        double cx = y * ez - z * ey;
+                        double cy = z * ex - x * ez;
+                        double cz = x * ey - y * ex;
+                        double angle = Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz), x * ex + y * ey + z * ez);
+                        maxError = Math.max(maxError, angle);
+                    }
+                }
+            }
+        }
+        return maxError;
+    }
+
+    private static void assertSameTriangles(int latitudes, int longitudes, float verticalFov,
+            float horizontalFov, int mediaFormat) {
+        MeshData strip = MeshData.createUvSphere(RADIUS, latitudes, longitudes, verticalFov, horizontalFov, mediaFormat);
+        MeshData indexed = MeshData.createIndexedUvSphere(
+                RADIUS, latitudes, longitudes, verticalFov, horizontalFov, mediaFormat);
+
+        List<String> stripTriangles = new ArrayList<>();
+        int stripVertices = strip.getVertexCount();
+        for (int k = 0; k + 2 < stripVertices; k++) {
+            // Every other triangle of a strip is wound the other way around.
+            if (k % 2 == 0) {
+                addTriangle(stripTriangles, strip.vertices, k, k + 1, k + 2);
+            } else {
+                addTriangle(stripTriangles, strip.vertices, k + 1, k, k + 2);
+            }
+        }
+
+        List<String> indexedTriangles = new ArrayList<>();
+        for (int c = 0; c < indexed.getChunkCount(); c++) {
+            int base = indexed.chunkVertexOffsets[c];
+            for (int k = indexed.chunkIndexOffsets[c]; k < indexed.chunkIndexOffsets[c + 1]; k += 3) {
+                addTriangle(indexedTriangles, indexed.vertices, base + (indexed.indices[k] & 0xFFFF),
+                        base + (indexed.indices[k + 1] & 0xFFFF), base + (indexed.indices[k + 2] & 0xFFFF));
+            }
+        }
+        assertEquals("Triangles without area in the indexed sphere", indexed.getIndexCount() / 3,
+                indexedTriangles.size());
+
+        Collections.sort(stripTriangles);
+        Collections.sort(indexedTriangles);
+        assertEquals(stripTriangles, indexedTriangles);
+    }
+
+    /**
+     * Adds a triangle, unless it has no area, as a string of its vertices that starts from the
+     * smallest one, so that the same triangle with the same winding always gives the same string.
+     */
+    private static void addTriangle(List<String> triangles, float[] vertices, int a, int b, int c) {
+        if (isSamePoint(vertices, a, b) || isSamePoint(vertices, b, c) || isSamePoint(vertices, c, a)) {
+            return;
+        }
+        String[] corners = { vertex(vertices, a), vertex(vertices, b), vertex(vertices, c) };
+        int first = 0;
+        for (int i = 1; i < 3; i++) {
+            if (corners[i].compareTo(corners[first]) < 0) {
+                first = i;
+            }
+        }
+        triangles.add(corners[first] + corners[(first + 1) % 3] + corners[(first + 2) % 3]);
+    }
+
+    private static boolean isSamePoint(float[] vertices, int a, int b) {
+        double dx = vertices[a * CPV] - vertices[b * CPV];
+        double dy = vertices[a * CPV + 1] - vertices[b * CPV + 1];
+        double dz = vertices[a * CPV + 2] - vertices[b * CPV + 2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz) < RADIUS * 1e-5;
+    }
+
+    private static String vertex(float[] vertices, int index) {
+        return Arrays.toString(Arrays.copyOfRange(vertices, index * CPV, index * CPV + CPV));
+    }
+}
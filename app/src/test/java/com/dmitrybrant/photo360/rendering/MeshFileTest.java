@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class MeshFileTest {
+    private static final float RADIUS = 50;
+    private static final int HEADER_LENGTH = 48;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void meshesSurviveARoundTrip() throws IOException {
+        MeshData[] meshes = {
+                MeshData.createUvSphere(RADIUS, 32, 32, 180, 360, MeshData.MEDIA_MONOSCOPIC),
+                MeshData.createIndexedUvSphere(RADIUS, 256, 512, 180, 360, MeshData.MEDIA_MONOSCOPIC),
+                MeshData.createAdaptiveSphereSection(RADIUS, 32, 32, -30, 60, -90, 45,
+                        MeshData.MEDIA_STEREO_LEFT_RIGHT),
+                MeshData.createCubemapSphere(RADIUS, 16, CubemapLayout.LAYOUT_EAC_3X2, MeshData.MEDIA_STEREO_TOP_BOTTOM),
+                MeshData.createDualFisheyeSphere(RADIUS, 32, 32,
+                        FisheyeLens.halfFrame(false, 190), FisheyeLens.halfFrame(true, 190)),
+        };
+        for (MeshData mesh : meshes) {
+            assertRoundTrip(mesh, null);
+            assertRoundTrip(mesh, PackedVertices.encode(mesh));
+        }
+    }
+
+    @Test
+    public void truncatedOrCorruptFilesAreRejected() throws IOException {
+        for (boolean packed : new boolean[] { false, true }) {
+            File file = folder.newFile(packed ? "packed.mesh" : "float.mesh");
+            MeshData mesh = MeshData.createIndexedUvSphere(RADIUS, 8, 16, 180, 360, MeshData.MEDIA_MONOSCOPIC);
+            MeshFile.write(file, mesh, packed ? PackedVertices.encode(mesh) : null);
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            MeshFile.read(file);
+
+            // The header, the first and last vertex, an index and the sector bounds at the end.
+            int vertexBytes = packed ? PackedVertices.BYTES_PER_VERTEX : MeshData.CPV * 4;
+            int[] offsets = { 5, 12, 30, 40, HEADER_LENGTH, HEADER_LENGTH + 1,
+                    HEADER_LENGTH + (mesh.getVertexCount() - 1) * vertexBytes, bytes.length / 2, bytes.length - 1 };
+            for (int offset : offsets) {
+                byte[] corrupt = bytes.clone();
+                corrupt[offset] ^= 0x10;
+                assertRejected(file, corrupt, "with byte " + offset + " changed");
+            }
+            assertRejected(file, Arrays.copyOf(bytes, bytes.length - 4), "truncated");
+            assertRejected(file, Arrays.copyOf(bytes, 20), "truncated to its header");
+            assertRejected(file, Arrays.copyOf(bytes, bytes.length + 4), "with extra bytes");
+            assertRejected(file, new byte[0], "that is empty");
+        }
+    }
+
+    @Test
+    public void missingFilesAreRejected() {
+        try {
+            MeshFile.read(new File(folder.getRoot(), "missing.mesh"));
+            fail("Read a mesh file that doesn't exist");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private void assertRoundTrip(MeshData mesh, PackedVertices packedVertices) throws IOException {
+        File file = new File(folder.getRoot(), "sphere.mesh");
+        MeshFile.write(file, mesh, packedVertices);
+        MeshFile read = MeshFile.read(file);
+        MeshData data = read.data;
+        assertEquals(packedVertices != null, read.packed);
+        assertEquals(mesh.getVertexCount(), data.getVertexCount());
+        assertEquals(mesh.isIndexed(), data.isIndexed());
+        assertEquals(mesh.getIndexCount(), data.getIndexCount());
+        assertArrayEquals(mesh.chunkVertexOffsets, data.chunkVertexOffsets);
+        assertArrayEquals(mesh.chunkIndexOffsets, data.chunkIndexOffsets);
+        assertArrayEquals(mesh.sectorIndexOffsets, data.sectorIndexOffsets);
+        assertArrayEquals(mesh.sectorChunks, data.sectorChunks);
+        assertArrayEquals(mesh.sectorBounds, data.sectorBounds, 0);
+        // A mesh from a file only has its vertices and indices in the buffers of the file.
+        assertNull(data.vertices);
+        assertNull(data.indices);
+
+        if (packedVertices != null) {
+            assertEquals(packedVertices.radius, read.packedRadius, 0);
+            assertEquals(packedVertices.textureOffset, read.packedTextureOffset, 0);
+            assertEquals(packedVertices.textureScale, read.packedTextureScale, 0);
+            assertEquals(ShortBuffer.wrap(packedVertices.data), read.vertexData.asShortBuffer());
+        } else {
+            assertEquals(FloatBuffer.wrap(mesh.vertices), read.vertexData.asFloatBuffer());
+        }
+        if (mesh.isIndexed()) {
+            assertNotNull(read.indexData);
+            assertEquals(ShortBuffer.wrap(mesh.indices), read.indexData.asShortBuffer());
+        } else {
+            assertNull(read.indexData);
+        }
+    }
+
+    private static void assertRejected(File file, byte[] bytes, String description) throws IOException {
+        Files.write(file.toPath(), bytes);
+        try {
+            MeshFile.read(file);
+            fail("Read a mesh file " + description);
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
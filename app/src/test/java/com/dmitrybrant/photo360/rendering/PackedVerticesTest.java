@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PackedVerticesTest {
+    private static final float RADIUS = 50;
+    // Slightly more than sqrt(3) * 0.5 / 32767, the worst case for rounding each coordinate.
+    private static final double MAX_ANGULAR_ERROR = 2.7e-5;
+    // Slightly more than half of a step of an unsigned normalized short.
+    private static final double MAX_NORMALIZED_TEXTURE_ERROR = 0.5 / 65535 + 1e-6;
+    private static final int[] MEDIA_FORMATS = { MeshData.MEDIA_MONOSCOPIC, MeshData.MEDIA_STEREO_LEFT_RIGHT,
+            MeshData.MEDIA_STEREO_TOP_BOTTOM };
+
+    @Test
+    public void packedSpheresStayWithinErrorBounds() {
+        for (int mediaFormat : MEDIA_FORMATS) {
+            // The density that the app uses, and the largest one that we support.
+            assertWithinErrorBounds(MeshData.createIndexedUvSphere(RADIUS, 32, 32, 180, 360, mediaFormat));
+            assertWithinErrorBounds(MeshData.createIndexedUvSphere(RADIUS, 256, 512, 180, 360, mediaFormat));
+            assertWithinErrorBounds(MeshData.createAdaptiveUvSphere(RADIUS, 32, 32, 180, 360, mediaFormat));
+            // Sections of cropped panoramas.
+            assertWithinErrorBounds(MeshData.createIndexedSphereSection(RADIUS, 16, 12, -30, 60, -90, 45, mediaFormat));
+            assertWithinErrorBounds(MeshData.createIndexedSphereSection(RADIUS, 5, 32, -10, 12.5f, -180, 180, mediaFormat));
+        }
+    }
+
+    @Test
+    public void packedCubemapsStayWithinErrorBounds() {
+        int[] layouts = { CubemapLayout.LAYOUT_CUBEMAP_3X2, CubemapLayout.LAYOUT_CUBEMAP_6X1,
+                CubemapLayout.LAYOUT_EAC_3X2 };
+        for (int layout : layouts) {
+            for (int mediaFormat : MEDIA_FORMATS) {
+                assertWithinErrorBounds(MeshData.createCubemapSphere(RADIUS, 16, layout, mediaFormat));
+            }
+        }
+    }
+
+    @Test
+    public void texturesInUnitRangeKeepFullPrecision() {
+        PackedVertices packed = PackedVertices.encode(
+                MeshData.createIndexedUvSphere(RADIUS, 32, 32, 180, 360, MeshData.MEDIA_MONOSCOPIC));
+        assertEquals(0, packed.textureOffset, 0);
+        assertEquals(1, packed.textureScale, 1e-6);
+        assertEquals(RADIUS, packed.radius, 1e-4);
+    }
+
+    @Test
+    public void dualFisheyeTextureCoordinatesSurvivePacking() {
+        // The lenses of MediaLoader, whose texture coordinates reach well outside of [0, 1] near the seam.
+        MeshData mesh = MeshData.createDualFisheyeSphere(RADIUS, 32, 32,
+                FisheyeLens.halfFrame(false, 190), FisheyeLens.halfFrame(true, 190));
+        float minTexture = 0;
+        float maxTexture = 1;
+        for (int v = 0; v < mesh.getVertexCount(); v++) {
+            for (int c = 0; c < MeshData.TEXTURE_COORDS_PER_VERTEX; c++) {
+                float t = mesh.vertices[v * MeshData.CPV + MeshData.POSITION_COORDS_PER_VERTEX + c];
+                minTexture = Math.min(minTexture, t);
+                maxTexture = Math.max(maxTexture, t);
+            }
+        }
+        assertTrue(minTexture < -0.1f && maxTexture > 1.1f);
+
+        PackedVertices packed = assertWithinErrorBounds(mesh);
+        assertEquals(minTexture, packed.textureOffset, 0);
+        assertEquals(maxTexture - minTexture, packed.textureScale, 1e-6);
+    }
+
+    /**
+     * Packs the given mesh, and checks that its directions and texture coordinates are as close to
+     * the original ones as the format promises.
+     */
+    private static PackedVertices assertWithinErrorBounds(MeshData mesh) {
+        PackedVertices packed = PackedVertices.encode(mesh);
+        assertEquals(mesh.getVertexCount(), packed.getVertexCount());
+        double angularError = PackedVertices.getMaxAngularError(mesh, packed);
+        assertTrue("Packed vertices are off by " + angularError + " rad", angularError <= MAX_ANGULAR_ERROR);
+        double textureError = PackedVertices.getMaxTextureError(mesh, packed);
+        assertTrue("Packed texture coordinates are off by " + textureError,
+                textureError <= MAX_NORMALIZED_TEXTURE_ERROR * packed.textureScale);
+        return packed;
+    }
+}
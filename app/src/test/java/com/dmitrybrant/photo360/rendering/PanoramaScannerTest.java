@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class PanoramaScannerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void fileUriMatchesAndroidUri() {
+        // Expected values as given by Uri.fromFile(file).toString().
+        assertEquals("file:///sdcard/DCIM/PANO_1.jpg", PanoramaScanner.getFileUri(new File("/sdcard/DCIM/PANO_1.jpg")));
+        assertEquals("file:///sdcard/My%20Panoramas/a%2Cb%3Bc%3Dd%26e%2Bf%40g%23h%25i.jpg",
+                PanoramaScanner.getFileUri(new File("/sdcard/My Panoramas/a,b;c=d&e+f@g#h%i.jpg")));
+        assertEquals("file:///sdcard/Caf%C3%A9/%E5%85%A8%E6%99%AF.jpg",
+                PanoramaScanner.getFileUri(new File("/sdcard/Caf\u00e9/\u5168\u666f.jpg")));
+        assertEquals("file:///sdcard/_-!.~'()*.jpg", PanoramaScanner.getFileUri(new File("/sdcard/_-!.~'()*.jpg")));
+        assertEquals("file:///sdcard/%F0%9F%8C%84.jpg", PanoramaScanner.getFileUri(new File("/sdcard/\ud83c\udf04.jpg")));
+    }
+
+    @Test
+    public void listsJpegsByFileUri() throws IOException {
+        File directory = folder.newFolder("My Panoramas");
+        File nested = new File(directory, "Sub dir");
+        assertTrue(nested.mkdir());
+        File jpeg = new File(nested, "pano 1.JPG");
+        assertTrue(jpeg.createNewFile());
+        assertTrue(new File(directory, "notes.txt").createNewFile());
+
+        List<PanoramaScanner.FileSource> sources = PanoramaScanner.listFiles(directory);
+        assertEquals(1, sources.size());
+        assertEquals(PanoramaScanner.getFileUri(jpeg), sources.get(0).getKey());
+    }
+}
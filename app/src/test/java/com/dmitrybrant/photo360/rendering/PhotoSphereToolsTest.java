@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.dmitrybrant.photo360.rendering.PhotoSphereTools.JpegMetadata;
+import com.dmitrybrant.photo360.rendering.PhotoSphereTools.ScannedStream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class PhotoSphereToolsTest {
+    private static final int CHUNK_LENGTH = 65000;
+
+    private static final byte[] EXTENDED = TestJpegs.xmpPacket(TestJpegs.filler(200000), TestJpegs.GPANO_FIELDS)
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] STANDARD = TestJpegs.xmpSegment(TestJpegs.xmpPacket("",
+            " xmpNote:HasExtendedXMP=\"" + TestJpegs.EXTENDED_XMP_GUID + "\""));
+
+    @Test
+    public void parsesStandardXmp() {
+        byte[] jpeg = TestJpegs.jpeg(TestJpegs.xmpSegment(TestJpegs.xmpPacket("", TestJpegs.GPANO_FIELDS)));
+        JpegMetadata metadata = PhotoSphereTools.getMetadata(jpeg, jpeg.length);
+        assertEquals(8000, metadata.imageWidth);
+        assertEquals(2000, metadata.imageHeight);
+        assertNotNull(metadata.photoSphereData);
+        assertEquals(8000, metadata.photoSphereData.fullPanoWidthPixels);
+        assertEquals(1000, metadata.photoSphereData.croppedAreaTopPixels);
+    }
+
+    @Test
+    public void scansMetadataFromTheStartOfAnImage() throws IOException {
+        // The first bytes of an image, as a range request for its header gets them.
+        byte[] header = TestJpegs.jpeg(TestJpegs.xmpSegment(TestJpegs.xmpPacket("", TestJpegs.GPANO_FIELDS)));
+        byte[] image = Arrays.copyOf(header, header.length + 1000);
+        Arrays.fill(image, header.length - 2, image.length, (byte) 0x55);
+        ScannedStream scanned = PhotoSphereTools.scanStream(new ByteArrayInputStream(image));
+        assertEquals(8000, scanned.metadata.imageWidth);
+        assertEquals(2000, scanned.metadata.imageHeight);
+        assertNotNull(scanned.metadata.photoSphereData);
+
+        // A range that ends before the frame header is too short to tell the dimensions.
+        scanned = PhotoSphereTools.scanStream(new ByteArrayInputStream(Arrays.copyOf(header, header.length - 30)));
+        assertEquals(0, scanned.metadata.imageWidth);
+    }
+
+    @Test
+    public void parsesFieldsAtTheEndOfALargeStandardXmp() {
+        byte[] jpeg = TestJpegs.jpeg(TestJpegs.xmpSegment(
+                TestJpegs.xmpPacket(TestJpegs.filler(60000), TestJpegs.GPANO_FIELDS)));
+        PhotoSphereTools.PhotoSphereData data = PhotoSphereTools.getPhotoSphereData(jpeg);
+        assertNotNull(data);
+        assertEquals(2000, data.croppedAreaImageHeightPixels);
+    }
+
+    @Test
+    public void reassemblesExtendedXmp() {
+        byte[] jpeg = TestJpegs.jpeg(STANDARD, chunk(0), chunk(1), chunk(2), chunk(3));
+        JpegMetadata metadata = PhotoSphereTools.getMetadata(jpeg, jpeg.length);
+        assertTrue(metadata.isExtendedXmpComplete());
+        assertArrayEquals(EXTENDED, metadata.getExtendedXmp());
+        assertNotNull(metadata.photoSphereData);
+        assertEquals(8000, metadata.photoSphereData.fullPanoWidthPixels);
+    }
+
+    @Test
+    public void acceptsChunksBeforeStandardXmp() {
+        byte[] jpeg = TestJpegs.jpeg(chunk(2), chunk(0), chunk(3), STANDARD, chunk(1));
+        JpegMetadata metadata = PhotoSphereTools.getMetadata(jpeg, jpeg.length);
+        assertTrue(metadata.isExtendedXmpComplete());
+        assertArrayEquals(EXTENDED, metadata.getExtendedXmp());
+    }
+
+    @Test
+    public void repeatedChunksDontCompleteExtendedXmp() {
+        // As many bytes as the whole packet, but the third chunk is missing.
+        byte[] jpeg = TestJpegs.jpeg(STANDARD, chunk(0), chunk(1), chunk(1), chunk(3), chunk(0));
+        JpegMetadata metadata = PhotoSphereTools.getMetadata(jpeg, jpeg.length);
+        assertNotNull(metadata.getExtendedXmp());
+        assertFalse(metadata.isExtendedXmpComplete());
+    }
+
+    @Test
+    public void overlappingChunksDontCompleteExtendedXmp() {
+        byte[] jpeg = TestJpegs.jpeg(STANDARD, chunk(0), chunk(1),
+                TestJpegs.extendedXmpSegment(EXTENDED, CHUNK_LENGTH / 2, CHUNK_LENGTH),
+                TestJpegs.extendedXmpSegment(EXTENDED, 3 * CHUNK_LENGTH, EXTENDED.length - 3 * CHUNK_LENGTH));
+        JpegMetadata metadata = PhotoSphereTools.getMetadata(jpeg, jpeg.length);
+        assertFalse(metadata.isExtendedXmpComplete());
+    }
+
+    @Test
+    public void dropsExtendedXmpWithoutReference() {
+        byte[] jpeg = TestJpegs.jpeg(TestJpegs.xmpSegment(TestJpegs.xmpPacket("", "")),
+                chunk(0), chunk(1), chunk(2), chunk(3));
+        JpegMetadata metadata = PhotoSphereTools.getMetadata(jpeg, jpeg.length);
+        assertNull(metadata.getExtendedXmp());
+        assertFalse(metadata.isExtendedXmpComplete());
+        assertNull(metadata.photoSphereData);
+    }
+
+    @Test
+    public void dropsExtendedXmpOfOtherGuid() {
+        byte[] other = TestJpegs.xmpSegment(TestJpegs.xmpPacket("",
+                " xmpNote:HasExtendedXMP=\"FEDCBA9876543210FEDCBA9876543210\""));
+        byte[] jpeg = TestJpegs.jpeg(other, chunk(0), chunk(1), chunk(2), chunk(3));
+        JpegMetadata metadata = PhotoSphereTools.getMetadata(jpeg, jpeg.length);
+        assertNull(metadata.getExtendedXmp());
+        assertNull(metadata.photoSphereData);
+    }
+
+    private static byte[] chunk(int index) {
+        int offset = index * CHUNK_LENGTH;
+        return TestJpegs.extendedXmpSegment(EXTENDED, offset, Math.min(CHUNK_LENGTH, EXTENDED.length - offset));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builders of synthetic JPEG headers for tests.
+ */
+final class TestJpegs {
+    static final String XMP_NAMESPACE = "http://ns.adobe.com/xap/1.0/\0";
+    static final String EXTENDED_XMP_NAMESPACE = "http://ns.adobe.com/xmp/extension/\0";
+    static final String EXTENDED_XMP_GUID = "0123456789ABCDEF0123456789ABCDEF";
+
+    static final String GPANO_FIELDS =
+            " GPano:UsePanoramaViewer=\"True\""
+            + " GPano:ProjectionType=\"equirectangular\""
+            + " GPano:FullPanoWidthPixels=\"8000\""
+            + " GPano:FullPanoHeightPixels=\"4000\""
+            + " GPano:CroppedAreaTopPixels=\"1000\""
+            + " GPano:CroppedAreaLeftPixels=\"0\""
+            + " GPano:CroppedAreaImageWidthPixels=\"8000\""
+            + " GPano:CroppedAreaImageHeightPixels=\"2000\""
+            + " GPano:PoseHeadingDegrees=\"12.5\"";
+
+    private TestJpegs() {
+    }
+
+    static String xmpPacket(String otherContent, String descriptionAttributes) {
+        return "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+                + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+                + otherContent
+                + "<rdf:Description rdf:about=\"\" xmlns:GPano=\"http://ns.google.com/photos/1.0/panorama/\""
+                + " xmlns:xmpNote=\"http://ns.adobe.com/xmp/note/\"" + descriptionAttributes + "/>"
+                + "</rdf:RDF></x:xmpmeta>";
+    }
+
+    /**
+     * Unrelated XMP content of roughly the given length.
+     */
+    static String filler(int length) {
+        StringBuilder sb = new StringBuilder(length + 64);
+        sb.append("<rdf:Description rdf:about=\"\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><dc:subject><rdf:Bag>");
+        for (int i = 0; sb.length() < length; i++) {
+            sb.append("<rdf:li>keyword").append(i).append("</rdf:li>");
+        }
+        sb.append("</rdf:Bag></dc:subject></rdf:Description>");
+        return sb.toString();
+    }
+
+    static byte[] xmpSegment(String packet) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        write(payload, XMP_NAMESPACE.getBytes(StandardCharsets.US_ASCII));
+        write(payload, packet.getBytes(StandardCharsets.UTF_8));
+        return segment(0xE1, payload.toByteArray());
+    }
+
+    static byte[] extendedXmpSegment(byte[] extended, int offset, int length) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        write(payload, EXTENDED_XMP_NAMESPACE.getBytes(StandardCharsets.US_ASCII));
+        write(payload, EXTENDED_XMP_GUID.getBytes(StandardCharsets.US_ASCII));
+        writeInt(payload, extended.length);
+        writeInt(payload, offset);
+        payload.write(extended, offset, length);
+        return segment(0xE1, payload.toByteArray());
+    }
+
+    /**
+     * A JPEG header with the given segments and a 8000x2000 frame, followed by a start of scan and
+     * the end of the image, without any image data in between.
+     */
+    static byte[] jpeg(byte[]... segments) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        for (byte[] s : segments) {
+            write(out, s);
+        }
+        write(out, segment(0xC0, new byte[] {8, 2000 >> 8, (byte) 2000, 8000 >> 8, (byte) 8000, 1, 1, 0x11, 0}));
+        write(out, segment(0xDA, new byte[] {1, 1, 0, 0, 63, 0}));
+        out.write(0xFF);
+        out.write(0xD9);
+        return out.toByteArray();
+    }
+
+    static byte[] segment(int type, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(type);
+        out.write((payload.length + 2) >> 8);
+        out.write(payload.length + 2);
+        write(out, payload);
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
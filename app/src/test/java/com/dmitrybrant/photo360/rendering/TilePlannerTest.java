@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class TilePlannerTest {
+    private static final int MAX_SURFACE_SIZE = 4096;
+    private static final int TILE_SIZE = 512;
+    // Decoded pixels of the largest tile: twice the tile size on each side, plus the margins.
+    private static final long MAX_TILE_PIXELS = (2L * TILE_SIZE + 8) * (2L * TILE_SIZE + 8);
+
+    @Test
+    public void tilesCoverLargeImagesScaledToTheSurface() {
+        int[][] sizes = { { 8192, 4096 }, { 20000, 10000 }, { 30000, 4000 }, { 5000, 4097 }, { 4096, 2048 } };
+        for (int[] size : sizes) {
+            // The same scaling as the display surface of a monoscopic image in MediaLoader.
+            float scale = Math.max(1f, (float) size[0] / MAX_SURFACE_SIZE);
+            TilePlanner plan = new TilePlanner(size[0], size[1],
+                    Math.max(1, (int) (size[0] / scale)), Math.max(1, (int) (size[1] / scale)), TILE_SIZE);
+            assertTrue(plan.targetWidth <= MAX_SURFACE_SIZE);
+            assertCoversTarget(plan);
+        }
+    }
+
+    @Test
+    public void tilesCoverOddTargets() {
+        // Scaled up, barely scaled down, scaled down more in one direction, and a single pixel.
+        assertCoversTarget(new TilePlanner(1000, 500, 1500, 750, TILE_SIZE));
+        assertCoversTarget(new TilePlanner(4097, 2049, 4096, 2048, TILE_SIZE));
+        assertCoversTarget(new TilePlanner(6000, 1000, 3000, 600, TILE_SIZE));
+        assertCoversTarget(new TilePlanner(3000, 3000, 1, 1, TILE_SIZE));
+    }
+
+    @Test
+    public void sampleSizeKeepsTheSourceAtLeastAsLargeAsTheTarget() {
+        assertEquals(1, TilePlanner.getSampleSize(1000, 1000));
+        assertEquals(1, TilePlanner.getSampleSize(1999, 1000));
+        assertEquals(2, TilePlanner.getSampleSize(2000, 1000));
+        assertEquals(4, TilePlanner.getSampleSize(30000, 4096));
+        assertEquals(1, TilePlanner.getSampleSize(500, 1000));
+        // The sample size of a plan is that of the direction that is scaled down the least.
+        assertEquals(1, new TilePlanner(6000, 1000, 3000, 600, TILE_SIZE).sampleSize);
+    }
+
+    @Test
+    public void rejectsInvalidDimensions() {
+        int[][] invalid = { { 0, 100, 100, 100, 16 }, { 100, 100, 100, -1, 16 }, { 100, 100, 100, 100, 0 } };
+        for (int[] p : invalid) {
+            try {
+                new TilePlanner(p[0], p[1], p[2], p[3], p[4]);
+                fail("Planned " + p[0] + " x " + p[1] + " into " + p[2] + " x " + p[3] + " by " + p[4]);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    /**
+     * Checks that the tiles cover the whole target exactly once, that each source region covers its
+     * tile with a margin for filtering, and that the largest decoded tile stays within a fixed size.
+     */
+    private static void assertCoversTarget(TilePlanner plan) {
+        String name = plan.sourceWidth + " x " + plan.sourceHeight + " into "
+                + plan.targetWidth + " x " + plan.targetHeight;
+        int[] coverage = new int[plan.targetWidth * plan.targetHeight];
+        for (TilePlanner.Tile tile : plan.getTiles()) {
+            for (int y = tile.top; y < tile.bottom; y++) {
+                for (int x = tile.left; x < tile.right; x++) {
+                    coverage[y * plan.targetWidth + x]++;
+                }
+            }
+            // The source region has to cover the tile, plus a decoded pixel on each side unless the
+            // tile is at the edge of the image.
+            double margin = plan.sampleSize;
+            assertTrue("Source region doesn't cover its tile: " + name,
+                    tile.sourceLeft <= Math.max(tile.left / plan.scaleX - margin, 0)
+                    && tile.sourceTop <= Math.max(tile.top / plan.scaleY - margin, 0)
+                    && tile.sourceRight >= Math.min(tile.right / plan.scaleX + margin, plan.sourceWidth)
+                    && tile.sourceBottom >= Math.min(tile.bottom / plan.scaleY + margin, plan.sourceHeight));
+            assertTrue("Source region isn't aligned to the sample size: " + name,
+                    tile.sourceLeft % plan.sampleSize == 0 && tile.sourceTop % plan.sampleSize == 0);
+            long decodedPixels = (long) ((tile.sourceRight - tile.sourceLeft) / plan.sampleSize)
+                    * ((tile.sourceBottom - tile.sourceTop) / plan.sampleSize);
+            assertTrue("Decoded tile of " + decodedPixels + " pixels: " + name, decodedPixels <= MAX_TILE_PIXELS);
+        }
+        for (int count : coverage) {
+            assertEquals("Tiles don't cover the target exactly once: " + name, 1, count);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.benchmark;
+
+import com.dmitrybrant.photo360.rendering.ChunkedDownload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Download of a large panorama over one or several connections, from a local server that limits
+ * the throughput of each connection, like some CDNs do, and drops a share of its connections
+ * somewhere in the middle of the response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class ChunkedDownloadBenchmark {
+    private static final int FILE_BYTES = 8 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int SEND_BYTES = 4096;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    @Param({"1", "4"})
+    public int connections;
+
+    // Bandwidth of each connection, in bytes per second.
+    @Param({"2000000"})
+    public int connectionBandwidth;
+
+    // Share of responses that are cut off before their end.
+    @Param({"0.1"})
+    public double dropRate;
+
+    private byte[] file;
+    private HttpServer server;
+    private ExecutorService executor;
+    private URL url;
+    private File directory;
+    private final Random dropRandom = new Random(2);
+
+    @Setup
+    public void setUp() throws IOException {
+        file = new byte[FILE_BYTES];
+        new Random(1).nextBytes(file);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::serve);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        executor = Executors.newCachedThreadPool();
+        url = new URL("http", "127.0.0.1", server.getAddress().getPort(), "/pano.jpg");
+        directory = Files.createTempDirectory("download").toFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        File target = new File(directory, "pano.jpg");
+        target.delete();
+        ChunkedDownload download = ChunkedDownload.open(target, FILE_BYTES, "v1", CHUNK_SIZE);
+        download.download(this::openRange, connections, executor);
+        return download.getBytesFetched();
+    }
+
+    private InputStream openRange(long start, long end) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+        if (connection.getResponseCode() != 206
+                || !("bytes " + start + "-" + (end - 1) + "/" + FILE_BYTES).equals(connection.getHeaderField("Content-Range"))) {
+            connection.disconnect();
+            throw new IOException("Range not honored: " + start + "-" + end);
+        }
+        return connection.getInputStream();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range != null ? RANGE.matcher(range) : null;
+        if (matcher == null || !matcher.matches()) {
+            exchange.sendResponseHeaders(200, file.length);
+            send(exchange, 0, file.length, file.length);
+            return;
+        }
+        int start = Integer.parseInt(matcher.group(1));
+        int end = Math.min(Integer.parseInt(matcher.group(2)) + 1, file.length);
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + file.length);
+        exchange.sendResponseHeaders(206, end - start);
+        int cutoff;
+        synchronized (dropRandom) {
+            cutoff = dropRandom.nextDouble() < dropRate ? start + dropRandom.nextInt(end - start) : end;
+        }
+        send(exchange, start, end, cutoff);
+    }
+
+    /**
+     * Sends the bytes from start to end at the bandwidth of a connection, but closes the connection
+     * once the cutoff is reached.
+     */
+    private void send(HttpExchange exchange, int start, int end, int cutoff) {
+        long startNanos = System.nanoTime();
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int offset = start; offset < cutoff; offset += SEND_BYTES) {
+                int length = Math.min(SEND_BYTES, cutoff - offset);
+                long sendNanos = startNanos + (offset + length - start) * 1_000_000_000L / connectionBandwidth;
+                long delay = sendNanos - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                out.write(file, offset, length);
+                out.flush();
+            }
+            if (cutoff < end) {
+                // Closing the exchange before all of the response is sent drops the connection.
+                exchange.close();
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client went away, e.g. after a cancel.
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.benchmark;
+
+import com.dmitrybrant.photo360.rendering.CubemapConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of equirectangular images into cubemaps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CubemapConverterBenchmark {
+    @Param({"0", "2"})
+    public int layout;
+
+    @Param({"2048", "8192"})
+    public int sourceWidth;
+
+    private int[] source;
+    private int[] destination;
+    private int faceSize;
+
+    @Setup
+    public void setUp() {
+        int sourceHeight = sourceWidth / 2;
+        source = new int[sourceWidth * sourceHeight];
+        for (int j = 0; j < sourceHeight; j++) {
+            double lat = Math.PI / 2 - (j + 0.5) * Math.PI / sourceHeight;
+            for (int i = 0; i < sourceWidth; i++) {
+                double lon = (i + 0.5) * 2 * Math.PI / sourceWidth - Math.PI;
+                source[j * sourceWidth + i] = encode(
+                        Math.cos(lat) * Math.sin(lon), Math.sin(lat), -Math.cos(lat) * Math.cos(lon));
+            }
+        }
+
+        faceSize = CubemapConverter.getFaceSize(layout, sourceWidth);
+        destination = CubemapConverter.convert(source, sourceWidth, sourceHeight, layout, faceSize);
+    }
+
+    private static int encode(double x, double y, double z) {
+        return 0xFF000000 | (channel(x) << 16) | (channel(y) << 8) | channel(z);
+    }
+
+    private static int channel(double c) {
+        return (int) Math.round((c + 1) * 127.5);
+    }
+
+    @Benchmark
+    public int[] convert() {
+        CubemapConverter.convert(source, sourceWidth, sourceWidth / 2, layout, faceSize,
+                destination, ForkJoinPool.commonPool());
+        return destination;
+    }
+}
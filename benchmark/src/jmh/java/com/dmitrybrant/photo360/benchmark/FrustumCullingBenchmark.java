@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.benchmark;
+
+import com.dmitrybrant.photo360.rendering.FrustumCuller;
+import com.dmitrybrant.photo360.rendering.MeshData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-frame visibility pass of Mesh.glDraw, for the 90 degree view of MonoscopicView in a
+ * range of directions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrustumCullingBenchmark {
+    private static final float FIELD_OF_VIEW_DEGREES = 90;
+    private static final float Z_NEAR = .1f;
+    private static final float Z_FAR = 100f;
+
+    @Param({"32x32", "64x128", "256x512"})
+    public String density;
+
+    // Aspect ratio of the view, portrait and landscape.
+    @Param({"0.5625", "1.7778"})
+    public float aspect;
+
+    private final FrustumCuller culler = new FrustumCuller();
+    private MeshData mesh;
+    private int[] ranges;
+    private float[][] viewProjectionMatrices;
+    private int frame;
+
+    @Setup
+    public void setUp() {
+        int separator = density.indexOf('x');
+        int latitudes = Integer.parseInt(density.substring(0, separator));
+        int longitudes = Integer.parseInt(density.substring(separator + 1));
+        mesh = MeshData.createIndexedUvSphere(50, latitudes, longitudes, 180, 360, MeshData.MEDIA_MONOSCOPIC);
+        ranges = new int[3 * mesh.getSectorCount()];
+
+        float[] projection = new float[16];
+        float[] pitch = new float[16];
+        float[] yaw = new float[16];
+        float[] view = new float[16];
+        ViewMatrixBenchmark.perspective(projection, FIELD_OF_VIEW_DEGREES, aspect, Z_NEAR, Z_FAR);
+        int pitches = 7;
+        int yaws = 12;
+        viewProjectionMatrices = new float[pitches * yaws][16];
+        for (int p = 0; p < pitches; p++) {
+            for (int y = 0; y < yaws; y++) {
+                ViewMatrixBenchmark.rotate(pitch, -90 + 30 * p, 1, 0, 0);
+                ViewMatrixBenchmark.rotate(yaw, 30 * y, 0, 1, 0);
+                ViewMatrixBenchmark.multiplyMM(view, pitch, yaw);
+                float[] viewProjection = viewProjectionMatrices[p * yaws + y];
+                ViewMatrixBenchmark.multiplyMM(viewProjection, projection, view);
+            }
+        }
+    }
+
+    @Benchmark
+    public int getVisibleRanges() {
+        float[] viewProjection = viewProjectionMatrices[frame++ % viewProjectionMatrices.length];
+        culler.setViewProjection(viewProjection, 0);
+        return culler.getVisibleRanges(mesh, ranges);
+    }
+}
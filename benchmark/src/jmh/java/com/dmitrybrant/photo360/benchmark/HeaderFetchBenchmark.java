@@ -0,0 +1,250 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.benchmark;
+
+import com.dmitrybrant.photo360.rendering.PhotoSphereTools;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loading of a remote panorama from a local server that simulates a slow link, with the same
+ * sequence of steps as MediaLoader: the header is scanned for metadata, the display is set up from
+ * it, and the rest of the body is read. Setting up the display is simulated by a fixed delay, which
+ * stands for decoding the preview, building the mesh and creating the display surface.
+ *
+ * <p>"body" scans the header from the body itself and sets up the display before reading on, which
+ * is how remote images were loaded before. "range" also requests the header by a range request.
+ * Whichever of the two scans gets through the header first sets up the display, once, and the body
+ * is only read on after the display is set up, since its scan waits for the setup as well.
+ *
+ * <p>The server shares its bandwidth between all connections, like the link of a phone would, and
+ * adds a fixed latency before each response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class HeaderFetchBenchmark {
+    private static final int IMAGE_BYTES = 2 * 1024 * 1024;
+    private static final int HEADER_RANGE_BYTES = 128 * 1024;
+    private static final int CHUNK_BYTES = 4096;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    @Param({"body", "range"})
+    public String strategy;
+
+    // Bandwidth of the simulated link, in bytes per second.
+    @Param({"1000000"})
+    public int bandwidth;
+
+    @Param({"100"})
+    public int latencyMillis;
+
+    @Param({"150"})
+    public int setupMillis;
+
+    private byte[] image;
+    private HttpServer server;
+    private ExecutorService executor;
+    private URL url;
+    // Time at which the link is free to send the next chunk, shared by all connections.
+    private long linkFreeNanos;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] header = PhotoSphereParseBenchmark.jpeg(PhotoSphereParseBenchmark.xmpSegment(
+                PhotoSphereParseBenchmark.xmpPacket("", PhotoSphereParseBenchmark.GPANO_FIELDS)));
+        // The image data follows the start of scan, where the header ends with the end of image.
+        image = new byte[IMAGE_BYTES];
+        System.arraycopy(header, 0, image, 0, header.length - 2);
+        Random random = new Random(1);
+        for (int i = header.length - 2; i < image.length - 2; i++) {
+            image[i] = (byte) random.nextInt(0x80);
+        }
+        image[image.length - 2] = (byte) 0xFF;
+        image[image.length - 1] = (byte) 0xD9;
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::serve);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        executor = Executors.newCachedThreadPool();
+        url = new URL("http", "127.0.0.1", server.getAddress().getPort(), "/pano.jpg");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Time until the display is set up and showing the preview.
+     */
+    @Benchmark
+    public void timeToFirstFrame() throws Exception {
+        load(true);
+    }
+
+    /**
+     * Time until the whole image is read, i.e. could be decoded and displayed.
+     */
+    @Benchmark
+    public void timeToFullImage() throws Exception {
+        load(false);
+    }
+
+    private void load(boolean firstFrameOnly) throws Exception {
+        FutureTask<Void> setup = new FutureTask<>(() -> {
+            Thread.sleep(setupMillis);
+            return null;
+        });
+        Future<?> headerFetch = null;
+        if ("range".equals(strategy)) {
+            headerFetch = executor.submit(() -> {
+                fetchHeader();
+                // Does nothing if the scan of the body got there first.
+                setup.run();
+                return null;
+            });
+        }
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        Future<?> body = executor.submit(() -> {
+            try (InputStream in = connection.getInputStream()) {
+                PhotoSphereTools.ScannedStream scanned = PhotoSphereTools.scanStream(in);
+                // Waits for the setup if the header request got there first.
+                setup.run();
+                setup.get();
+                if (firstFrameOnly) {
+                    return null;
+                }
+                byte[] buffer = new byte[CHUNK_BYTES];
+                while (scanned.imageStream.read(buffer) >= 0) {
+                    // The decoder would be reading the image data here.
+                }
+            }
+            return null;
+        });
+        try {
+            if (firstFrameOnly) {
+                setup.get();
+            } else {
+                body.get();
+            }
+        } finally {
+            // Disconnecting aborts whatever is still being read.
+            connection.disconnect();
+            body.cancel(true);
+            if (headerFetch != null) {
+                headerFetch.cancel(true);
+            }
+        }
+    }
+
+    private PhotoSphereTools.JpegMetadata fetchHeader() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty("Range", "bytes=0-" + (HEADER_RANGE_BYTES - 1));
+        try (InputStream in = connection.getInputStream()) {
+            return PhotoSphereTools.scanStream(in).metadata;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            exchange.close();
+            return;
+        }
+        int start = 0;
+        int end = image.length;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range != null ? RANGE.matcher(range) : null;
+        if (matcher != null && matcher.matches()) {
+            start = Integer.parseInt(matcher.group(1));
+            end = Math.min(Integer.parseInt(matcher.group(2)) + 1, image.length);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + image.length);
+            exchange.sendResponseHeaders(206, end - start);
+        } else {
+            exchange.sendResponseHeaders(200, end - start);
+        }
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int offset = start; offset < end; offset += CHUNK_BYTES) {
+                int length = Math.min(CHUNK_BYTES, end - offset);
+                waitForLink(length);
+                out.write(image, offset, length);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away, e.g. after the first frame.
+        }
+    }
+
+    /**
+     * Waits until the link has had the time to send the given number of bytes after everything
+     * that was sent before, on any connection.
+     */
+    private void waitForLink(int length) {
+        long sendNanos;
+        synchronized (this) {
+            linkFreeNanos = Math.max(linkFreeNanos, System.nanoTime()) + length * 1_000_000_000L / bandwidth;
+            sendNanos = linkFreeNanos;
+        }
+        long delay = sendNanos - System.nanoTime();
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
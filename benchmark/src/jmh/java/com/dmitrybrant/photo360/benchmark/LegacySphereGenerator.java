@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.benchmark;
+
+import com.dmitrybrant.photo360.rendering.MeshData;
+
+/**
+ * The sphere generator as it was before the sin/cos tables, which evaluates the trig functions for
+ * every vertex. Kept here as the baseline for {@link SphereMeshBenchmark}.
+ */
+final class LegacySphereGenerator {
+    private static final int CPV = 7;
+
+    private LegacySphereGenerator() {
+    }
+
+    static float[] createUvSphere(
+            float radius,
+            int latitudes,
+            int longitudes,
+            float verticalFovDegrees,
+            float horizontalFovDegrees,
+            int mediaFormat) {
+        if (radius <= 0
+                || latitudes < 1 || longitudes < 1
+                || verticalFovDegrees <= 0 || verticalFovDegrees > 180
+                || horizontalFovDegrees <= 0 || horizontalFovDegrees > 360) {
+            throw new IllegalArgumentException("Invalid parameters for sphere.");
+        }
+
+        // Compute angular size in radians of each UV quad.
+        float verticalFovRads = (float) Math.toRadians(verticalFovDegrees);
+        float horizontalFovRads = (float) Math.toRadians(horizontalFovDegrees);
+        float quadHeightRads = verticalFovRads / latitudes;
+        float quadWidthRads = horizontalFovRads / longitudes;
+
+        // Each latitude strip has 2 * (longitudes quads + extra edge) vertices + 2 degenerate vertices.
+        int vertexCount = (2 * (longitudes + 1) + 2) * latitudes;
+        // Buffer to return.
+        float[] vertexData = new float[vertexCount * CPV];
+
+        // Generate the data for the sphere which is a set of triangle strips representing each
+        // latitude band.
+        int v = 0; // Index into the vertex array.
+        // (i, j) represents a quad in the equirectangular sphere.
+        for (int j = 0; j < latitudes; ++j) { // For each horizontal triangle strip.
+            // Each latitude band lies between the two phi values. Each vertical edge on a band lies on
+            // a theta value.
+            float phiLow = (quadHeightRads * j - verticalFovRads / 2);
+            float phiHigh = (quadHeightRads * (j + 1) - verticalFovRads / 2);
+
+            for (int i = 0; i < longitudes + 1; ++i) { // For each vertical edge in the band.
+                for (int k = 0; k < 2; ++k) { // For low and high points on an edge.
+                    // For each point, determine it's position in polar coordinates.
+                    float phi = (k == 0) ? phiLow : phiHigh;
+                    float theta = quadWidthRads * i + (float) Math.PI - horizontalFovRads / 2;
+
+                    // Set vertex position data as Cartesian coordinates.
+                    vertexData[CPV * v + 0] = -(float) (radius * Math.sin(theta) * Math.cos(phi));
+                    vertexData[CPV * v + 1] =  (float) (radius * Math.sin(phi));
+                    vertexData[CPV * v + 2] =  (float) (radius * Math.cos(theta) * Math.cos(phi));
+
+                    // Set vertex texture.x data.
+                    if (mediaFormat == MeshData.MEDIA_STEREO_LEFT_RIGHT) {
+                        // For left-right media, each eye's x coordinate points to the left or right half of the
+                        // texture.
+                        vertexData[CPV * v + 3] = (i * quadWidthRads / horizontalFovRads) / 2;
+                        vertexData[CPV * v + 5] = (i * quadWidthRads / horizontalFovRads) / 2 + .5f;
+                    } else {
+                        // For top-bottom or monoscopic media, the eye's x spans the full width of the texture.
+                        vertexData[CPV * v + 3] = i * quadWidthRads / horizontalFovRads;
+                        vertexData[CPV * v + 5] = i * quadWidthRads / horizontalFovRads;
+                    }
+
+                    // Set vertex texture.y data. The "1 - ..." is due to Canvas vs GL coords.
+                    if (mediaFormat == MeshData.MEDIA_STEREO_TOP_BOTTOM) {
+                        // For top-bottom media, each eye's y coordinate points to the top or bottom half of the
+                        // texture.
+                        vertexData[CPV * v + 4] = 1 - (((j + k) * quadHeightRads / verticalFovRads) / 2 + .5f);
+                        vertexData[CPV * v + 6] = 1 - ((j + k) * quadHeightRads / verticalFovRads) / 2;
+                    } else {
+                        // For left-right or monoscopic media, the eye's y spans the full height of the texture.
+                        vertexData[CPV * v + 4] = 1 - (j + k) * quadHeightRads / verticalFovRads;
+                        vertexData[CPV * v + 6] = 1 - (j + k) * quadHeightRads / verticalFovRads;
+                    }
+                    v++;
+
+                    // Break up the triangle strip with degenerate vertices by copying first and last points.
+                    if ((i == 0 && k == 0) || (i == longitudes && k == 1)) {
+                        System.arraycopy(vertexData, CPV * (v - 1), vertexData, CPV * v, CPV);
+                        v++;
+                    }
+                }
+                // Move on to the next vertical edge in the triangle strip.
+            }
+            // Move on to the next triangle strip.
+        }
+
+        return vertexData;
+    }
+}
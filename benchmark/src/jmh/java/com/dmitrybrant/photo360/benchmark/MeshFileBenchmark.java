@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.benchmark;
+
+import com.dmitrybrant.photo360.rendering.MeshData;
+import com.dmitrybrant.photo360.rendering.MeshFile;
+import com.dmitrybrant.photo360.rendering.PackedVertices;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a sphere from a {@link MeshFile}, compared to generating it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MeshFileBenchmark {
+    @Param({"32x32", "256x512"})
+    public String density;
+
+    @Param({"false", "true"})
+    public boolean packed;
+
+    private int latitudes;
+    private int longitudes;
+    private File directory;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        int separator = density.indexOf('x');
+        latitudes = Integer.parseInt(density.substring(0, separator));
+        longitudes = Integer.parseInt(density.substring(separator + 1));
+        directory = Files.createTempDirectory("meshes").toFile();
+        file = new File(directory, "sphere.mesh");
+
+        MeshData mesh = generate();
+        MeshFile.write(file, mesh, packed ? PackedVertices.encode(mesh) : null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    private MeshData generate() {
+        return MeshData.createIndexedUvSphere(50, latitudes, longitudes, 180, 360, MeshData.MEDIA_MONOSCOPIC);
+    }
+
+    @Benchmark
+    public MeshFile read() throws IOException {
+        return MeshFile.read(file);
+    }
+
+    /** Generating the mesh as MeshCache does when there's no file, for comparison. */
+    @Benchmark
+    public Object generateAndPack() {
+        MeshData mesh = generate();
+        return packed ? PackedVertices.encode(mesh) : mesh;
+    }
+}
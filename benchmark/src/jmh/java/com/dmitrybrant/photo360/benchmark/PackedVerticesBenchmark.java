@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.benchmark;
+
+import com.dmitrybrant.photo360.rendering.MeshData;
+import com.dmitrybrant.photo360.rendering.PackedVertices;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packing of sphere vertices into the compact format, at the largest radius and density we use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PackedVerticesBenchmark {
+    @Param({"32x32", "256x512"})
+    public String density;
+
+    @Param({"50"})
+    public float radius;
+
+    private MeshData mesh;
+    private PackedVertices packed;
+
+    @Setup
+    public void setUp() {
+        int separator = density.indexOf('x');
+        int latitudes = Integer.parseInt(density.substring(0, separator));
+        int longitudes = Integer.parseInt(density.substring(separator + 1));
+        mesh = MeshData.createIndexedUvSphere(radius, latitudes, longitudes, 180, 360, MeshData.MEDIA_STEREO_TOP_BOTTOM);
+        packed = PackedVertices.encode(mesh);
+    }
+
+    @Benchmark
+    public PackedVertices encode() {
+        return PackedVertices.encode(mesh);
+    }
+
+    @Benchmark
+    public float[] decode() {
+        return packed.decode();
+    }
+}
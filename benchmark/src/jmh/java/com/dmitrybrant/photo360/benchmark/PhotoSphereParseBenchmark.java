@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.benchmark;
+
+import com.dmitrybrant.photo360.rendering.PhotoSphereTools;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the GPano metadata from synthetic JPEG headers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PhotoSphereParseBenchmark {
+    private static final String XMP_NAMESPACE = "http://ns.adobe.com/xap/1.0/\0";
+    private static final String EXTENDED_XMP_NAMESPACE = "http://ns.adobe.com/xmp/extension/\0";
+    private static final String EXTENDED_XMP_GUID = "0123456789ABCDEF0123456789ABCDEF";
+    private static final int EXTENDED_XMP_CHUNK_LENGTH = 65000;
+
+    static final String GPANO_FIELDS =
+            " GPano:UsePanoramaViewer=\"True\""
+            + " GPano:ProjectionType=\"equirectangular\""
+            + " GPano:FullPanoWidthPixels=\"8000\""
+            + " GPano:FullPanoHeightPixels=\"4000\""
+            + " GPano:CroppedAreaTopPixels=\"1000\""
+            + " GPano:CroppedAreaLeftPixels=\"0\""
+            + " GPano:CroppedAreaImageWidthPixels=\"8000\""
+            + " GPano:CroppedAreaImageHeightPixels=\"2000\""
+            + " GPano:PoseHeadingDegrees=\"12.5\"";
+
+    /**
+     * small: a minimal XMP packet with just the GPano fields.
+     * large: a standard XMP packet that is nearly full, with the GPano fields at the end.
+     * extended: GPano fields at the end of ~200 KB of extended XMP, split across several segments.
+     */
+    @Param({"small", "large", "extended"})
+    public String xmp;
+
+    private byte[] jpeg;
+
+    @Setup
+    public void setUp() {
+        switch (xmp) {
+            case "small":
+                jpeg = jpeg(xmpSegment(xmpPacket("", GPANO_FIELDS)));
+                break;
+            case "large":
+                jpeg = jpeg(xmpSegment(xmpPacket(filler(60000), GPANO_FIELDS)));
+                break;
+            case "extended":
+                byte[] extended = xmpPacket(filler(200000), GPANO_FIELDS).getBytes(StandardCharsets.UTF_8);
+                ByteArrayOutputStream segments = new ByteArrayOutputStream();
+                byte[] standard = xmpSegment(xmpPacket("", " xmpNote:HasExtendedXMP=\"" + EXTENDED_XMP_GUID + "\""));
+                segments.write(standard, 0, standard.length);
+                for (int offset = 0; offset < extended.length; offset += EXTENDED_XMP_CHUNK_LENGTH) {
+                    byte[] chunk = extendedXmpSegment(extended, offset,
+                            Math.min(EXTENDED_XMP_CHUNK_LENGTH, extended.length - offset));
+                    segments.write(chunk, 0, chunk.length);
+                }
+                jpeg = jpeg(segments.toByteArray());
+                break;
+            default:
+                throw new IllegalArgumentException(xmp);
+        }
+    }
+
+    @Benchmark
+    public PhotoSphereTools.PhotoSphereData getPhotoSphereData() {
+        return PhotoSphereTools.getPhotoSphereData(jpeg);
+    }
+
+    @Benchmark
+    public PhotoSphereTools.JpegMetadata getMetadata() {
+        return PhotoSphereTools.getMetadata(jpeg, jpeg.length);
+    }
+
+    static String xmpPacket(String otherContent, String descriptionAttributes) {
+        return "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+                + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+                + otherContent
+                + "<rdf:Description rdf:about=\"\" xmlns:GPano=\"http://ns.google.com/photos/1.0/panorama/\""
+                + " xmlns:xmpNote=\"http://ns.adobe.com/xmp/note/\"" + descriptionAttributes + "/>"
+                + "</rdf:RDF></x:xmpmeta>";
+    }
+
+    /**
+     * Unrelated XMP content of roughly the given length, of the kind that editing apps like to add.
+     */
+    private static String filler(int length) {
+        StringBuilder sb = new StringBuilder(length + 64);
+        sb.append("<rdf:Description rdf:about=\"\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><dc:subject><rdf:Bag>");
+        for (int i = 0; sb.length() < length; i++) {
+            sb.append("<rdf:li>keyword").append(i).append("</rdf:li>");
+        }
+        sb.append("</rdf:Bag></dc:subject></rdf:Description>");
+        return sb.toString();
+    }
+
+    static byte[] xmpSegment(String packet) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        write(payload, XMP_NAMESPACE.getBytes(StandardCharsets.US_ASCII));
+        write(payload, packet.getBytes(StandardCharsets.UTF_8));
+        return segment(0xE1, payload.toByteArray());
+    }
+
+    private static byte[] extendedXmpSegment(byte[] extended, int offset, int length) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        write(payload, EXTENDED_XMP_NAMESPACE.getBytes(StandardCharsets.US_ASCII));
+        write(payload, EXTENDED_XMP_GUID.getBytes(StandardCharsets.US_ASCII));
+        writeInt(payload, extended.length);
+        writeInt(payload, offset);
+        payload.write(extended, offset, length);
+        return segment(0xE1, payload.toByteArray());
+    }
+
+    /**
+     * A JPEG header with the given segments and a 8000x2000 frame. The image data itself is left
+     * out, since nothing after the start of scan is parsed.
+     */
+    static byte[] jpeg(byte[] segments) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        write(out, segments);
+        write(out, segment(0xC0, new byte[] {8, 2000 >> 8, (byte) 2000, 8000 >> 8, (byte) 8000, 1, 1, 0x11, 0}));
+        write(out, segment(0xDA, new byte[] {1, 1, 0, 0, 63, 0}));
+        out.write(0xFF);
+        out.write(0xD9);
+        return out.toByteArray();
+    }
+
+    private static byte[] segment(int type, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(type);
+        out.write((payload.length + 2) >> 8);
+        out.write(payload.length + 2);
+        write(out, payload);
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
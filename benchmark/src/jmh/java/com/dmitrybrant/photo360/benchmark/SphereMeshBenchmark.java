@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.benchmark;
+
+import com.dmitrybrant.photo360.rendering.FisheyeLens;
+import com.dmitrybrant.photo360.rendering.MeshData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation of the sphere mesh, from the density that the app uses by default, up to the density
+ * that is needed for straight lines to stay straight in 8K media.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SphereMeshBenchmark {
+    // Slightly off-center lenses of different sizes, like those of a real camera.
+    private static final FisheyeLens FRONT_LENS = new FisheyeLens(.26f, .49f, .24f, .47f, 195);
+    private static final FisheyeLens BACK_LENS = new FisheyeLens(.74f, .51f, .245f, .48f, 200);
+
+    @Param({"32x32", "64x128", "128x256", "256x512"})
+    public String density;
+
+    @Param({"0", "1"})
+    public int mediaFormat;
+
+    private int latitudes;
+    private int longitudes;
+
+    @Setup
+    public void setUp() {
+        int separator = density.indexOf('x');
+        latitudes = Integer.parseInt(density.substring(0, separator));
+        longitudes = Integer.parseInt(density.substring(separator + 1));
+    }
+
+    /** The generator from before the sin/cos tables, for comparison. */
+    @Benchmark
+    public float[] legacyCreateUvSphere() {
+        return LegacySphereGenerator.createUvSphere(50, latitudes, longitudes, 180, 360, mediaFormat);
+    }
+
+    @Benchmark
+    public MeshData createUvSphere() {
+        return MeshData.createUvSphere(50, latitudes, longitudes, 180, 360, mediaFormat);
+    }
+
+    @Benchmark
+    public MeshData createIndexedUvSphere() {
+        return MeshData.createIndexedUvSphere(50, latitudes, longitudes, 180, 360, mediaFormat);
+    }
+
+    @Benchmark
+    public MeshData createAdaptiveUvSphere() {
+        return MeshData.createAdaptiveUvSphere(50, latitudes, longitudes, 180, 360, mediaFormat);
+    }
+
+    @Benchmark
+    public MeshData createDualFisheyeSphere() {
+        return MeshData.createDualFisheyeSphere(50, latitudes, longitudes, FRONT_LENS, BACK_LENS);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.benchmark;
+
+import com.dmitrybrant.photo360.rendering.TilePlanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Planning of tiled decodes of large images into the display surface.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TilePlannerBenchmark {
+    private static final int MAX_SURFACE_SIZE = 4096;
+    private static final int TILE_SIZE = 512;
+
+    @Param({"8192x4096", "20000x10000", "30000x4000", "5000x4097"})
+    public String sourceSize;
+
+    private int sourceWidth;
+    private int sourceHeight;
+
+    @Setup
+    public void setUp() {
+        String[] parts = sourceSize.split("x");
+        sourceWidth = Integer.parseInt(parts[0]);
+        sourceHeight = Integer.parseInt(parts[1]);
+    }
+
+    private TilePlanner plan() {
+        // The same scaling as the display surface of a monoscopic image in MediaLoader.
+        float scale = Math.max(1f, (float) sourceWidth / MAX_SURFACE_SIZE);
+        return new TilePlanner(sourceWidth, sourceHeight,
+                Math.max(1, (int) (sourceWidth / scale)), Math.max(1, (int) (sourceHeight / scale)), TILE_SIZE);
+    }
+
+    @Benchmark
+    public TilePlanner planTiles() {
+        return plan();
+    }
+}
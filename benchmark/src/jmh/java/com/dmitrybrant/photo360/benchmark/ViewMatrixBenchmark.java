@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019+ Dmitry Brant. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dmitrybrant.photo360.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-frame matrix math of MonoscopicView.Renderer.onDrawFrame:
+ * viewProjection = projection * (touchPitch * (deviceOrientation * touchYaw)).
+ *
+ * <p>android.opengl.Matrix isn't available on a plain JVM, so this uses a copy of its multiplyMM,
+ * which is the same column-major product.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ViewMatrixBenchmark {
+    private final float[] projectionMatrix = new float[16];
+    private final float[] viewProjectionMatrix = new float[16];
+    private final float[] deviceOrientationMatrix = new float[16];
+    private final float[] touchPitchMatrix = new float[16];
+    private final float[] touchYawMatrix = new float[16];
+    private final float[] viewMatrix = new float[16];
+    private final float[] tempMatrix = new float[16];
+
+    @Setup
+    public void setUp() {
+        perspective(projectionMatrix, 90, 9f / 16f, 0.1f, 100);
+        rotate(deviceOrientationMatrix, 30, 0.2f, 1, 0.1f);
+        rotate(touchPitchMatrix, 10, 1, 0, 0);
+        rotate(touchYawMatrix, 45, 0, 1, 0);
+    }
+
+    @Benchmark
+    public float[] onDrawFrame() {
+        synchronized (this) {
+            multiplyMM(tempMatrix, deviceOrientationMatrix, touchYawMatrix);
+            multiplyMM(viewMatrix, touchPitchMatrix, tempMatrix);
+        }
+        multiplyMM(viewProjectionMatrix, projectionMatrix, viewMatrix);
+        return viewProjectionMatrix;
+    }
+
+    static void multiplyMM(float[] result, float[] lhs, float[] rhs) {
+        for (int i = 0; i < 4; i++) {
+            float rhs0 = rhs[4 * i];
+            float rhs1 = rhs[4 * i + 1];
+            float rhs2 = rhs[4 * i + 2];
+            float rhs3 = rhs[4 * i + 3];
+            for (int j = 0; j < 4; j++) {
+                result[4 * i + j] = lhs[j] * rhs0 + lhs[4 + j] * rhs1 + lhs[8 + j] * rhs2 + lhs[12 + j] * rhs3;
+            }
+        }
+    }
+
+    static void perspective(float[] m, float fovyDegrees, float aspect, float near, float far) {
+        float f = 1.0f / (float) Math.tan(Math.toRadians(fovyDegrees) / 2);
+        Arrays.fill(m, 0);
+        m[0] = f / aspect;
+        m[5] = f;
+        m[10] = (far + near) / (near - far);
+        m[11] = -1;
+        m[14] = 2 * far * near / (near - far);
+    }
+
+    static void rotate(float[] m, float degrees, float x, float y, float z) {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        x /= length;
+        y /= length;
+        z /= length;
+        float s = (float) Math.sin(Math.toRadians(degrees));
+        float c = (float) Math.cos(Math.toRadians(degrees));
+        float nc = 1 - c;
+        Arrays.fill(m, 0);
+        m[0] = x * x * nc + c;
+        m[1] = y * x * nc + z * s;
+        m[2] = x * z * nc - y * s;
+        m[4] = x * y * nc - z * s;
+        m[5] = y * y * nc + c;
+        m[6] = y * z * nc + x * s;
+        m[8] = x * z * nc + y * s;
+        m[9] = y * z * nc - x * s;
+        m[10] = z * z * nc + c;
+        m[15] = 1;
+    }
+}